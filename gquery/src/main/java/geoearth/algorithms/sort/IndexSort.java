@@ -0,0 +1,392 @@
+package geoearth.algorithms.sort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Merge sort of an array of indices by a primitive key.
+ * <p>
+ * Sorts a permutation of indices rather than the keys themselves, so that
+ * several parallel arrays can be reordered by one key without boxing. Ties
+ * are broken by the index, making the resulting order a total order that
+ * does not depend on the initial order of the permutation.
+ * </p>
+ * 
+ * @author cjmcmill
+ * 
+ */
+public final class IndexSort
+{
+    // Ranges at or below this size are sorted by insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private IndexSort()
+    {
+    }
+
+    /**
+     * Sort the indices in index[from, to) by ascending keys[index[i]]
+     * 
+     * @param index
+     *            Indices into keys to be sorted
+     * @param from
+     *            First position to sort (inclusive)
+     * @param to
+     *            Last position to sort (exclusive)
+     * @param keys
+     *            Sort key of each index
+     */
+    public static final void sort(int[] index, int from, int to, double[] keys)
+    {
+	int[] buffer = new int[to - from];
+	sort(index, from, to, keys, buffer);
+    }
+
+    /**
+     * Sort the indices in index[from, to) by ascending keys[index[i]], using
+     * the provided buffer as merge space
+     * 
+     * @param index
+     *            Indices into keys to be sorted
+     * @param from
+     *            First position to sort (inclusive)
+     * @param to
+     *            Last position to sort (exclusive)
+     * @param keys
+     *            Sort key of each index
+     * @param buffer
+     *            Merge space, at least (to - from) long
+     */
+    public static final void sort(int[] index, int from, int to, double[] keys, int[] buffer)
+    {
+	if (to - from <= INSERTION_SORT_THRESHOLD)
+	{
+	    for (int i = from + 1; i < to; i++)
+	    {
+		int current = index[i];
+		int j = i - 1;
+		while (j >= from && greater(keys, index[j], current))
+		{
+		    index[j + 1] = index[j];
+		    j--;
+		}
+		index[j + 1] = current;
+	    }
+	    return;
+	}
+
+	int mid = (from + to) >>> 1;
+	sort(index, from, mid, keys, buffer);
+	sort(index, mid, to, keys, buffer);
+	merge(index, from, mid, to, keys, buffer);
+    }
+
+    /**
+     * Sort the indices in index[from, to) by ascending keys[index[i]], using
+     * the threads of the executor. The range is cut into parts which are
+     * sorted at the same time, and the sorted parts are then merged in pairs,
+     * the merges of each round also running at the same time. As the order is
+     * total, the result is the same as that of the sequential sort.
+     * 
+     * @param index
+     *            Indices into keys to be sorted
+     * @param from
+     *            First position to sort (inclusive)
+     * @param to
+     *            Last position to sort (exclusive)
+     * @param keys
+     *            Sort key of each index
+     * @param executor
+     *            Executor running the parts of the sort
+     * @param parts
+     *            Number of parts to sort at the same time
+     */
+    public static final void sort(final int[] index, int from, int to, final double[] keys,
+	    ExecutorService executor, int parts)
+    {
+	parts = Math.max(1, Math.min(parts, (to - from) / INSERTION_SORT_THRESHOLD));
+	int[] bounds = bounds(from, to, parts);
+	List<Future<?>> results = new ArrayList<Future<?>>(parts);
+	for (int p = 0; p < parts; p++)
+	{
+	    final int partFrom = bounds[p];
+	    final int partTo = bounds[p + 1];
+	    results.add(executor.submit(new Runnable()
+	    {
+		public void run()
+		{
+		    sort(index, partFrom, partTo, keys);
+		}
+	    }));
+	}
+	await(results);
+
+	for (int width = 1; width < parts; width *= 2)
+	{
+	    results.clear();
+	    for (int p = 0; p + width < parts; p += 2 * width)
+	    {
+		final int mergeFrom = bounds[p];
+		final int mergeMid = bounds[p + width];
+		final int mergeTo = bounds[Math.min(p + 2 * width, parts)];
+		results.add(executor.submit(new Runnable()
+		{
+		    public void run()
+		    {
+			merge(index, mergeFrom, mergeMid, mergeTo, keys,
+			      new int[mergeMid - mergeFrom]);
+		    }
+		}));
+	    }
+	    await(results);
+	}
+    }
+
+    /**
+     * Merge the sorted runs index[from, mid) and index[mid, to)
+     * 
+     * @param buffer
+     *            Merge space, at least (mid - from) long
+     */
+    private static final void merge(int[] index, int from, int mid, int to, double[] keys,
+	    int[] buffer)
+    {
+	// Already in order
+	if (!greater(keys, index[mid - 1], index[mid]))
+	{
+	    return;
+	}
+
+	System.arraycopy(index, from, buffer, 0, mid - from);
+	int left = 0;
+	int leftEnd = mid - from;
+	int right = mid;
+	int out = from;
+	while (left < leftEnd && right < to)
+	{
+	    if (greater(keys, buffer[left], index[right]))
+	    {
+		index[out++] = index[right++];
+	    }
+	    else
+	    {
+		index[out++] = buffer[left++];
+	    }
+	}
+	while (left < leftEnd)
+	{
+	    index[out++] = buffer[left++];
+	}
+    }
+
+    /**
+     * Sort the indices in index[from, to) by ascending keys[index[i]]
+     * 
+     * @param index
+     *            Indices into keys to be sorted
+     * @param from
+     *            First position to sort (inclusive)
+     * @param to
+     *            Last position to sort (exclusive)
+     * @param keys
+     *            Sort key of each index
+     */
+    public static final void sort(int[] index, int from, int to, long[] keys)
+    {
+	int[] buffer = new int[to - from];
+	sort(index, from, to, keys, buffer);
+    }
+
+    /**
+     * Sort the indices in index[from, to) by ascending keys[index[i]], using
+     * the provided buffer as merge space
+     * 
+     * @param index
+     *            Indices into keys to be sorted
+     * @param from
+     *            First position to sort (inclusive)
+     * @param to
+     *            Last position to sort (exclusive)
+     * @param keys
+     *            Sort key of each index
+     * @param buffer
+     *            Merge space, at least (to - from) long
+     */
+    public static final void sort(int[] index, int from, int to, long[] keys, int[] buffer)
+    {
+	if (to - from <= INSERTION_SORT_THRESHOLD)
+	{
+	    for (int i = from + 1; i < to; i++)
+	    {
+		int current = index[i];
+		int j = i - 1;
+		while (j >= from && greater(keys, index[j], current))
+		{
+		    index[j + 1] = index[j];
+		    j--;
+		}
+		index[j + 1] = current;
+	    }
+	    return;
+	}
+
+	int mid = (from + to) >>> 1;
+	sort(index, from, mid, keys, buffer);
+	sort(index, mid, to, keys, buffer);
+	merge(index, from, mid, to, keys, buffer);
+    }
+
+    /**
+     * Sort the indices in index[from, to) by ascending keys[index[i]], using
+     * the threads of the executor. The range is cut into parts which are
+     * sorted at the same time, and the sorted parts are then merged in pairs,
+     * the merges of each round also running at the same time. As the order is
+     * total, the result is the same as that of the sequential sort.
+     * 
+     * @param index
+     *            Indices into keys to be sorted
+     * @param from
+     *            First position to sort (inclusive)
+     * @param to
+     *            Last position to sort (exclusive)
+     * @param keys
+     *            Sort key of each index
+     * @param executor
+     *            Executor running the parts of the sort
+     * @param parts
+     *            Number of parts to sort at the same time
+     */
+    public static final void sort(final int[] index, int from, int to, final long[] keys,
+	    ExecutorService executor, int parts)
+    {
+	parts = Math.max(1, Math.min(parts, (to - from) / INSERTION_SORT_THRESHOLD));
+	int[] bounds = bounds(from, to, parts);
+	List<Future<?>> results = new ArrayList<Future<?>>(parts);
+	for (int p = 0; p < parts; p++)
+	{
+	    final int partFrom = bounds[p];
+	    final int partTo = bounds[p + 1];
+	    results.add(executor.submit(new Runnable()
+	    {
+		public void run()
+		{
+		    sort(index, partFrom, partTo, keys);
+		}
+	    }));
+	}
+	await(results);
+
+	for (int width = 1; width < parts; width *= 2)
+	{
+	    results.clear();
+	    for (int p = 0; p + width < parts; p += 2 * width)
+	    {
+		final int mergeFrom = bounds[p];
+		final int mergeMid = bounds[p + width];
+		final int mergeTo = bounds[Math.min(p + 2 * width, parts)];
+		results.add(executor.submit(new Runnable()
+		{
+		    public void run()
+		    {
+			merge(index, mergeFrom, mergeMid, mergeTo, keys,
+			      new int[mergeMid - mergeFrom]);
+		    }
+		}));
+	    }
+	    await(results);
+	}
+    }
+
+    /**
+     * Merge the sorted runs index[from, mid) and index[mid, to)
+     * 
+     * @param buffer
+     *            Merge space, at least (mid - from) long
+     */
+    private static final void merge(int[] index, int from, int mid, int to, long[] keys,
+	    int[] buffer)
+    {
+	// Already in order
+	if (!greater(keys, index[mid - 1], index[mid]))
+	{
+	    return;
+	}
+
+	System.arraycopy(index, from, buffer, 0, mid - from);
+	int left = 0;
+	int leftEnd = mid - from;
+	int right = mid;
+	int out = from;
+	while (left < leftEnd && right < to)
+	{
+	    if (greater(keys, buffer[left], index[right]))
+	    {
+		index[out++] = index[right++];
+	    }
+	    else
+	    {
+		index[out++] = buffer[left++];
+	    }
+	}
+	while (left < leftEnd)
+	{
+	    index[out++] = buffer[left++];
+	}
+    }
+
+    /**
+     * @return bounds of parts of [from, to) of nearly equal size, part p
+     *         running from bounds[p] to bounds[p + 1]
+     */
+    private static final int[] bounds(int from, int to, int parts)
+    {
+	int[] bounds = new int[parts + 1];
+	for (int p = 0; p <= parts; p++)
+	{
+	    bounds[p] = from + (int) ((long) (to - from) * p / parts);
+	}
+	return bounds;
+    }
+
+    /**
+     * Wait for the tasks of a parallel sort to end
+     */
+    private static final void await(List<Future<?>> results)
+    {
+	try
+	{
+	    for (int i = 0; i < results.size(); i++)
+	    {
+		results.get(i).get();
+	    }
+	}
+	catch (InterruptedException e)
+	{
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while waiting for a parallel sort", e);
+	}
+	catch (ExecutionException e)
+	{
+	    throw new IllegalStateException("Parallel sort failed", e.getCause());
+	}
+    }
+
+    /**
+     * @return true if index a sorts after index b
+     */
+    private static final boolean greater(double[] keys, int a, int b)
+    {
+	return keys[a] > keys[b] || (keys[a] == keys[b] && a > b);
+    }
+
+    /**
+     * @return true if index a sorts after index b
+     */
+    private static final boolean greater(long[] keys, int a, int b)
+    {
+	return keys[a] > keys[b] || (keys[a] == keys[b] && a > b);
+    }
+}
@@ -3,6 +3,7 @@ package geoearth.geometry.utils;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
 
 /**
  * Utility class of methods working with Envelopes
@@ -12,6 +13,10 @@ import com.vividsolutions.jts.geom.GeometryFactory;
  */
 public final class EnvelopeUtils
 {
+    // Used to convert envelopes to geometries when measuring the distance to a
+    // geometry other than a point
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
     /**
      * Return the minimum distance between the envelope and the geometry
      * 
@@ -23,11 +28,118 @@ public final class EnvelopeUtils
      */
     public static final double distance(Envelope env, Geometry geom)
     {
-	GeometryFactory geomFact = new GeometryFactory();
-	Geometry envGeom = geomFact.toGeometry(env);
+	if (geom instanceof Point && !env.isNull() && !geom.isEmpty())
+	{
+	    Point p = (Point) geom;
+	    return distance(p.getX(), p.getY(), env.getMinX(), env.getMinY(), env.getMaxX(),
+			    env.getMaxY());
+	}
+	Geometry envGeom = GEOMETRY_FACTORY.toGeometry(env);
 	return envGeom.distance(geom);
     }
 
+    /**
+     * Calculate the square of the minimum distance (MINDIST) between a point
+     * and an envelope. Avoids the square root when distances are only
+     * compared.
+     * 
+     * @return the squared distance, or 0 if the point lies inside the envelope
+     */
+    public static final double distanceSq(double x, double y, double minX, double minY,
+	    double maxX, double maxY)
+    {
+	double dx = 0;
+	if (x < minX)
+	{
+	    dx = minX - x;
+	}
+	else if (x > maxX)
+	{
+	    dx = x - maxX;
+	}
+
+	double dy = 0;
+	if (y < minY)
+	{
+	    dy = minY - y;
+	}
+	else if (y > maxY)
+	{
+	    dy = y - maxY;
+	}
+	return dx * dx + dy * dy;
+    }
+
+    /**
+     * Calculate the minimum distance (MINDIST) between a point and an envelope
+     * 
+     * @return the distance, or 0 if the point lies inside the envelope
+     */
+    public static final double distance(double x, double y, double minX, double minY,
+	    double maxX, double maxY)
+    {
+	return Math.sqrt(distanceSq(x, y, minX, minY, maxX, maxY));
+    }
+
+    /**
+     * Calculate the square of the minimum distance between two envelopes
+     * 
+     * @return the squared distance, or 0 if the envelopes intersect
+     */
+    public static final double distanceSq(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	double dx = Math.max(0, Math.max(aMinX - bMaxX, bMinX - aMaxX));
+	double dy = Math.max(0, Math.max(aMinY - bMaxY, bMinY - aMaxY));
+	return dx * dx + dy * dy;
+    }
+
+    /**
+     * Calculate the minimum distance between two envelopes
+     * 
+     * @return the distance, or 0 if the envelopes intersect
+     */
+    public static final double distance(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	return Math.sqrt(distanceSq(aMinX, aMinY, aMaxX, aMaxY, bMinX, bMinY, bMaxX, bMaxY));
+    }
+
+    /**
+     * Calculate the square of MINMAXDIST between a point and an envelope: the
+     * smallest distance within which the point is guaranteed to find an object
+     * whose minimum bounding box is the envelope. Every face of a minimum
+     * bounding box touches an object, so this is the distance to the farthest
+     * point of the nearer face, minimised over the faces.
+     * 
+     * @return the squared MINMAXDIST
+     */
+    public static final double minMaxDistanceSq(double x, double y, double minX, double minY,
+	    double maxX, double maxY)
+    {
+	// Nearer and farther bound of the envelope along each axis
+	double nearX = (x <= (minX + maxX) / 2) ? minX : maxX;
+	double farX = (x >= (minX + maxX) / 2) ? minX : maxX;
+	double nearY = (y <= (minY + maxY) / 2) ? minY : maxY;
+	double farY = (y >= (minY + maxY) / 2) ? minY : maxY;
+
+	double faceX = (x - nearX) * (x - nearX) + (y - farY) * (y - farY);
+	double faceY = (y - nearY) * (y - nearY) + (x - farX) * (x - farX);
+	return Math.min(faceX, faceY);
+    }
+
+    /**
+     * Calculate MINMAXDIST between a point and an envelope
+     * 
+     * @see #minMaxDistanceSq(double, double, double, double, double, double)
+     * @return the MINMAXDIST
+     */
+    public static final double minMaxDistance(double x, double y, double minX, double minY,
+	    double maxX, double maxY)
+    {
+	return Math.sqrt(minMaxDistanceSq(x, y, minX, minY, maxX, maxY));
+    }
+
     /**
      * Calculate if the edges of the two envelopes overlap
      * 
@@ -62,6 +174,88 @@ public final class EnvelopeUtils
 	return false;
     }
 
+    /**
+     * Calculate if the edges of the two envelopes overlap. Primitive version of
+     * {@link #edgeOverlaps(Envelope, Envelope)}; an envelope whose minimum is
+     * greater than its maximum is treated as null.
+     * 
+     * @return true if one or more of the boundaries of the two envelopes
+     *         overlap
+     */
+    public static final boolean edgeOverlaps(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	if (aMinX > aMaxX || bMinX > bMaxX)
+	{
+	    return false;
+	}
+
+	if ((bMinX <= aMaxX && aMinX <= bMaxX) || (bMinY <= aMaxY && aMinY <= bMaxY))
+	{
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Determine if envelope a intersects envelope b
+     * 
+     * @return true if the two envelopes have at least one point in common
+     */
+    public static final boolean intersects(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	return aMaxX >= bMinX && aMinX <= bMaxX && aMaxY >= bMinY && aMinY <= bMaxY;
+    }
+
+    /**
+     * Determine if envelope a contains envelope b
+     * 
+     * @return true if b lies entirely inside (or on the boundary of) a
+     */
+    public static final boolean contains(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	return aMinX <= bMinX && aMaxX >= bMaxX && aMinY <= bMinY && aMaxY >= bMaxY;
+    }
+
+    /**
+     * Calculate the area of an envelope
+     * 
+     * @return area of the envelope
+     */
+    public static final double area(double minX, double minY, double maxX, double maxY)
+    {
+	return (maxX - minX) * (maxY - minY);
+    }
+
+    /**
+     * Calculate the area of the intersection of two envelopes
+     * 
+     * @return area common to both envelopes, or 0 if they do not intersect
+     */
+    public static final double intersectionArea(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	double width = Math.min(aMaxX, bMaxX) - Math.max(aMinX, bMinX);
+	double height = Math.min(aMaxY, bMaxY) - Math.max(aMinY, bMinY);
+	if (width <= 0 || height <= 0)
+	{
+	    return 0;
+	}
+	return width * height;
+    }
+
+    /**
+     * Calculate the margin (half the perimeter) of an envelope
+     * 
+     * @return sum of the width and height of the envelope
+     */
+    public static final double margin(double minX, double minY, double maxX, double maxY)
+    {
+	return (maxX - minX) + (maxY - minY);
+    }
+
     /**
      * Calculate the area by which origEnv would be enlarged if added to the
      * newEnv. Neither envelope is altered.
@@ -84,4 +278,20 @@ public final class EnvelopeUtils
 
 	return enlargedArea - origEnv.getArea();
     }
+
+    /**
+     * Calculate the area by which envelope a would be enlarged if added to
+     * envelope b. Primitive version of {@link #enlargement(Envelope, Envelope)}.
+     * 
+     * @return The difference in area of the union and envelope a
+     */
+    public static final double enlargement(double aMinX, double aMinY, double aMaxX,
+	    double aMaxY, double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+	double enlargedArea =
+		(Math.max(aMaxX, bMaxX) - Math.min(aMinX, bMinX))
+			* (Math.max(aMaxY, bMaxY) - Math.min(aMinY, bMinY));
+
+	return enlargedArea - area(aMinX, aMinY, aMaxX, aMaxY);
+    }
 }
@@ -0,0 +1,103 @@
+package geoearth.geometry.utils;
+
+/**
+ * Utility class for mapping two dimensional coordinates onto a Hilbert curve.
+ * <p>
+ * Points that are close on the curve are close in space, so sorting by the
+ * curve position groups spatially close objects together.
+ * </p>
+ * 
+ * @author cjmcmill
+ * 
+ */
+public final class HilbertCurve
+{
+    /**
+     * Number of bits per dimension of the grid the curve is drawn on
+     */
+    public static final int ORDER = 16;
+
+    /**
+     * Number of cells along each side of the grid
+     */
+    public static final int SIDE = 1 << ORDER;
+
+    private HilbertCurve()
+    {
+    }
+
+    /**
+     * Return the distance along the Hilbert curve of the given grid cell
+     * 
+     * @param x
+     *            Column of the cell, between 0 and SIDE - 1
+     * @param y
+     *            Row of the cell, between 0 and SIDE - 1
+     * @return Position of the cell along the curve
+     */
+    public static final long key(int x, int y)
+    {
+	long d = 0;
+	for (int s = SIDE / 2; s > 0; s /= 2)
+	{
+	    int rx = (x & s) > 0 ? 1 : 0;
+	    int ry = (y & s) > 0 ? 1 : 0;
+	    d += (long) s * s * ((3 * rx) ^ ry);
+
+	    // Rotate the quadrant so that the curve is continuous
+	    if (ry == 0)
+	    {
+		if (rx == 1)
+		{
+		    x = SIDE - 1 - x;
+		    y = SIDE - 1 - y;
+		}
+		int t = x;
+		x = y;
+		y = t;
+	    }
+	}
+	return d;
+    }
+
+    /**
+     * Return the distance along the Hilbert curve of a point, after scaling the
+     * given extent onto the curve's grid
+     * 
+     * @param x
+     * @param y
+     *            Point to locate
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Extent covered by the curve
+     * @return Position of the point along the curve
+     */
+    public static final long key(double x, double y, double minX, double minY, double maxX,
+	    double maxY)
+    {
+	return key(toGrid(x, minX, maxX), toGrid(y, minY, maxY));
+    }
+
+    /**
+     * Scale a coordinate onto the grid
+     */
+    private static final int toGrid(double value, double min, double max)
+    {
+	if (max <= min)
+	{
+	    return 0;
+	}
+	int cell = (int) ((value - min) / (max - min) * (SIDE - 1));
+	if (cell < 0)
+	{
+	    return 0;
+	}
+	if (cell > SIDE - 1)
+	{
+	    return SIDE - 1;
+	}
+	return cell;
+    }
+}
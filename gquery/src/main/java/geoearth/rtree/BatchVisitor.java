@@ -0,0 +1,24 @@
+package geoearth.rtree;
+
+/**
+ * Interface that defines a procedure to be executed for each result of a batch
+ * of queries, given the index of the query in the batch and the id of the
+ * entry found
+ *
+ * @author cjmcmill
+ *
+ */
+public interface BatchVisitor
+{
+    /**
+     * @param queryIndex
+     *            index of the query in the batch
+     * @param id
+     *            id of an entry matching the query
+     *
+     * @return flag to indicate whether to continue executing the procedure.
+     *         Return true to continue executing, or false to prevent any more
+     *         calls to this method, for this query or any other.
+     */
+    public boolean visit(int queryIndex, int id);
+}
@@ -0,0 +1,23 @@
+package geoearth.rtree;
+
+/**
+ * Cursor over the results of a spatial query, read a batch at a time. The
+ * cursor keeps its place in the index between calls, so that the results can
+ * be handed out page by page without collecting them all first.
+ *
+ * @author cjmcmill
+ *
+ */
+public interface SpatialCursor
+{
+    /**
+     * Copy the next results of the query to a buffer
+     *
+     * @param buf
+     *            Buffer receiving the ids of the next entries found
+     * @return number of ids copied to the start of the buffer, which is less
+     *         than its length only when the query has no more results, and 0
+     *         once all of them have been returned
+     */
+    public int nextBatch(int[] buf);
+}
@@ -45,6 +45,21 @@ public interface SpatialIndex
      */
     public void add(Envelope env, int id);
 
+    /**
+     * Adds a new envelope to the spatial index, given by its coordinates so
+     * that no Envelope has to be created
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            The envelope to add to the spatial index. minX must not be
+     *            more than maxX, nor minY more than maxY.
+     * @param id
+     *            The ID of the envelope to add to the spatial index.
+     */
+    public void add(double minX, double minY, double maxX, double maxY, int id);
+
     /**
      * Finds all rectangles contained by the passed rectangle.
      * 
@@ -57,6 +72,21 @@ public interface SpatialIndex
      */
     public void contains(Envelope env, IntProcedure v);
 
+    /**
+     * Finds all rectangles contained by the passed rectangle, given by its
+     * coordinates.
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            The envelope for which this method finds contained shapes.
+     * @param v
+     *            The visitor whose visit() method is is called for each
+     *            contained shape.
+     */
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v);
+
     /**
      * Deletes a envelope from the spatial index
      * 
@@ -70,6 +100,22 @@ public interface SpatialIndex
      */
     public boolean delete(Envelope env, int id);
 
+    /**
+     * Deletes a envelope, given by its coordinates, from the spatial index
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            The envelope to delete from the spatial index
+     * @param id
+     *            The ID of the envelope to delete from the spatial index
+     * 
+     * @return true if the envelope was deleted false if the envelope was not
+     *         found, or the envelope was found but with a different ID
+     */
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id);
+
     /**
      * Returns the bounds of all the entries in the spatial index, or null if
      * there are no entries.
@@ -107,6 +153,21 @@ public interface SpatialIndex
      */
     public void intersects(Envelope env, IntProcedure v);
 
+    /**
+     * Finds all rectangles that intersect the passed rectangle, given by its
+     * coordinates.
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            The envelope for which this method finds intersecting shapes.
+     * @param v
+     *            The IntProcedure whose execute() method is is called for each
+     *            intersecting shape.
+     */
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure v);
+
     /**
      * Finds all rectangles that are nearest to the passed rectangle, and calls
      * execute() on the passed IntProcedure for each one.
@@ -128,6 +189,22 @@ public interface SpatialIndex
      */
     public void nearest(Point p, IntProcedure v, double distance);
 
+    /**
+     * Finds all rectangles that are nearest to the passed point, given by its
+     * coordinates, and calls execute() on the passed IntProcedure for each one.
+     * 
+     * @param x
+     * @param y
+     *            The point for which this method finds the nearest neighbors.
+     * @param v
+     *            The IntProcedure whose execute() method is is called for each
+     *            nearest neighbor.
+     * @param distance
+     *            The farthest distance away from the point to search.
+     * @see #nearest(Point, IntProcedure, double)
+     */
+    public void nearest(double x, double y, IntProcedure v, double distance);
+
     /**
      * Returns the number of entries in the spatial index
      * 
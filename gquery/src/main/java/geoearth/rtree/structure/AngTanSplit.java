@@ -0,0 +1,187 @@
+package geoearth.rtree.structure;
+
+import geoearth.algorithms.sort.IndexSort;
+import geoearth.geometry.utils.EnvelopeUtils;
+
+/**
+ * Ang and Tan's linear node split. Each entry is assigned, along each axis, to
+ * the side of the node's bounding box it is closer to. The axis giving the most
+ * even distribution is used for the split; ties are resolved by the least
+ * overlap between the two groups, then by the least total area. If a group
+ * ends up with fewer than the minimum number of entries, the entries of the
+ * other group closest to its side are moved across.
+ * <p>
+ * Splits are cheap and tend to produce groups with little overlap, which
+ * suits long, thin envelopes such as road segments.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+public class AngTanSplit implements SplitStrategy
+{
+    // Side of each entry along X (0 left, 1 right) and Y (0 bottom, 1 top)
+    private byte[] xSide = new byte[0];
+    private byte[] ySide = new byte[0];
+
+    // Used to move entries between groups to respect the minimum size
+    private int[] order = new int[0];
+    private int[] buffer = new int[0];
+    private double[] keys = new double[0];
+
+    public void split(double[] minX, double[] minY, double[] maxX, double[] maxY, int count,
+	    int minEntries, byte[] group)
+    {
+	if (xSide.length < count)
+	{
+	    xSide = new byte[count];
+	    ySide = new byte[count];
+	    order = new int[count];
+	    buffer = new int[count];
+	    keys = new double[count];
+	}
+
+	double left = Double.POSITIVE_INFINITY;
+	double bottom = Double.POSITIVE_INFINITY;
+	double right = Double.NEGATIVE_INFINITY;
+	double top = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < count; i++)
+	{
+	    left = Math.min(left, minX[i]);
+	    bottom = Math.min(bottom, minY[i]);
+	    right = Math.max(right, maxX[i]);
+	    top = Math.max(top, maxY[i]);
+	}
+
+	int leftCount = 0;
+	int bottomCount = 0;
+	for (int i = 0; i < count; i++)
+	{
+	    if (minX[i] - left < right - maxX[i])
+	    {
+		xSide[i] = 0;
+		leftCount++;
+	    }
+	    else
+	    {
+		xSide[i] = 1;
+	    }
+	    if (minY[i] - bottom < top - maxY[i])
+	    {
+		ySide[i] = 0;
+		bottomCount++;
+	    }
+	    else
+	    {
+		ySide[i] = 1;
+	    }
+	}
+
+	// Choose the axis with the most even distribution
+	int xLargest = Math.max(leftCount, count - leftCount);
+	int yLargest = Math.max(bottomCount, count - bottomCount);
+	boolean splitX;
+	if (xLargest != yLargest)
+	{
+	    splitX = xLargest < yLargest;
+	}
+	else
+	{
+	    double xOverlap = overlap(minX, minY, maxX, maxY, count, xSide, false);
+	    double yOverlap = overlap(minX, minY, maxX, maxY, count, ySide, false);
+	    if (xOverlap != yOverlap)
+	    {
+		splitX = xOverlap < yOverlap;
+	    }
+	    else
+	    {
+		double xArea = overlap(minX, minY, maxX, maxY, count, xSide, true);
+		double yArea = overlap(minX, minY, maxX, maxY, count, ySide, true);
+		splitX = xArea <= yArea;
+	    }
+	}
+
+	byte[] side = splitX ? xSide : ySide;
+	int count0 = 0;
+	for (int i = 0; i < count; i++)
+	{
+	    group[i] = side[i];
+	    if (side[i] == 0)
+	    {
+		count0++;
+	    }
+	}
+
+	// Move the entries nearest to the smaller group's side of the box
+	// until both groups have the minimum number of entries
+	if (count0 < minEntries || count - count0 < minEntries)
+	{
+	    byte from = (byte) ((count0 < minEntries) ? 1 : 0);
+	    double[] lows = splitX ? minX : minY;
+	    double[] highs = splitX ? maxX : maxY;
+	    double low = splitX ? left : bottom;
+	    double high = splitX ? right : top;
+
+	    int candidates = 0;
+	    for (int i = 0; i < count; i++)
+	    {
+		if (group[i] == from)
+		{
+		    keys[i] = (from == 1) ? lows[i] - low : high - highs[i];
+		    order[candidates++] = i;
+		}
+	    }
+	    IndexSort.sort(order, 0, candidates, keys, buffer);
+
+	    int moveCount = minEntries - ((from == 1) ? count0 : count - count0);
+	    for (int k = 0; k < moveCount; k++)
+	    {
+		group[order[k]] = (byte) (1 - from);
+	    }
+	}
+    }
+
+    /**
+     * Calculate the overlap of the bounding boxes of the two groups given by
+     * side, or the sum of their areas
+     *
+     * @param area
+     *            true to return the total area instead of the overlap
+     */
+    private double overlap(double[] minX, double[] minY, double[] maxX, double[] maxY,
+	    int count, byte[] side, boolean area)
+    {
+	double minX0 = Double.POSITIVE_INFINITY;
+	double minY0 = Double.POSITIVE_INFINITY;
+	double maxX0 = Double.NEGATIVE_INFINITY;
+	double maxY0 = Double.NEGATIVE_INFINITY;
+	double minX1 = Double.POSITIVE_INFINITY;
+	double minY1 = Double.POSITIVE_INFINITY;
+	double maxX1 = Double.NEGATIVE_INFINITY;
+	double maxY1 = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < count; i++)
+	{
+	    if (side[i] == 0)
+	    {
+		minX0 = Math.min(minX0, minX[i]);
+		minY0 = Math.min(minY0, minY[i]);
+		maxX0 = Math.max(maxX0, maxX[i]);
+		maxY0 = Math.max(maxY0, maxY[i]);
+	    }
+	    else
+	    {
+		minX1 = Math.min(minX1, minX[i]);
+		minY1 = Math.min(minY1, minY[i]);
+		maxX1 = Math.max(maxX1, maxX[i]);
+		maxY1 = Math.max(maxY1, maxY[i]);
+	    }
+	}
+	if (area)
+	{
+	    return EnvelopeUtils.area(minX0, minY0, maxX0, maxY0)
+		    + EnvelopeUtils.area(minX1, minY1, maxX1, maxY1);
+	}
+	return EnvelopeUtils.intersectionArea(minX0, minY0, maxX0, maxY0, minX1, minY1, maxX1,
+					      maxY1);
+    }
+}
@@ -0,0 +1,461 @@
+package geoearth.rtree.structure;
+
+import geoearth.algorithms.sort.IndexSort;
+import geoearth.geometry.utils.HilbertCurve;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Packer building an {@link RTree} bottom-up from a set of entries, used by
+ * bulkLoad(), by addAll() on an empty tree and when the BulkLoad property is
+ * set.
+ * <p>
+ * Each level is put in packing order and cut into runs of maxNodeEntries,
+ * which become the nodes of that level; the bounding boxes of those nodes are
+ * the entries of the level above. STR orders every level with
+ * {@link #strOrder}. Hilbert orders the leaf entries with
+ * {@link #hilbertOrder} and keeps that order for the upper levels, whose nodes
+ * are created in curve order.
+ * </p>
+ * <p>
+ * With BulkLoadThreads above 1, levels of at least PARALLEL_MIN_ENTRIES
+ * entries are ordered and filled on a pool of that many threads. The nodes
+ * are still numbered and stored on the calling thread, in the order one
+ * thread would create them, so the tree is the same however many threads
+ * pack it.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class BulkLoader
+{
+    static final int STR = 1;
+    static final int HILBERT = 2;
+
+    // Number of entries of a level below which it is packed on the calling
+    // thread
+    private static final int PARALLEL_MIN_ENTRIES = 1 << 16;
+    // Number of nodes created at a time by a parallel pack, which bounds the
+    // nodes held in memory when Storage is OffHeap or Disk
+    private static final int BATCH_NODES = 1 << 14;
+
+    /**
+     * Receives the nodes created by pack(), on the thread calling it
+     */
+    interface Target
+    {
+	/**
+	 * @return id for the next node created
+	 */
+	int nextNodeId();
+
+	/**
+	 * Store a filled node. The nodes of a level are stored in the order
+	 * of their ids, before those of the level above.
+	 */
+	void store(Node n);
+    }
+
+    private final int maxNodeEntries;
+    private final int minNodeEntries;
+    // Number of threads packing the tree
+    private final int threads;
+
+    BulkLoader(int maxNodeEntries, int minNodeEntries, int threads)
+    {
+	this.maxNodeEntries = maxNodeEntries;
+	this.minNodeEntries = minNodeEntries;
+	this.threads = threads;
+    }
+
+    /**
+     * Build a tree bottom-up from the given entries
+     *
+     * @param method
+     *            STR or HILBERT
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Coordinates of the entries. The arrays are not modified.
+     * @param ids
+     *            IDs of the entries
+     * @param count
+     *            Number of entries, at least 1
+     * @param target
+     *            Receives the nodes
+     * @return the root node, which has already been stored
+     */
+    Node pack(int method, double[] minX, double[] minY, double[] maxX, double[] maxY, int[] ids,
+	    int count, Target target)
+    {
+	ExecutorService executor = null;
+	if (threads > 1 && count >= PARALLEL_MIN_ENTRIES)
+	{
+	    executor = RTree.createThreadPool(threads, "RTree bulk load");
+	}
+	try
+	{
+	    int level = 1;
+	    int entries = count;
+	    // Leaf entries below each entry, null at the leaf level
+	    int[] counts = null;
+	    while (true)
+	    {
+		ExecutorService levelExecutor =
+			(entries >= PARALLEL_MIN_ENTRIES) ? executor : null;
+		int[] order = null;
+		if (method == STR)
+		{
+		    order = strOrder(minX, minY, maxX, maxY, entries, levelExecutor);
+		}
+		else if (level == 1)
+		{
+		    order = hilbertOrder(minX, minY, maxX, maxY, entries, levelExecutor);
+		}
+		else
+		{
+		    order = new int[entries];
+		    for (int i = 0; i < entries; i++)
+		    {
+			order[i] = i;
+		    }
+		}
+
+		int nodeCount = (entries + maxNodeEntries - 1) / maxNodeEntries;
+		double[] nodeMinX = new double[nodeCount];
+		double[] nodeMinY = new double[nodeCount];
+		double[] nodeMaxX = new double[nodeCount];
+		double[] nodeMaxY = new double[nodeCount];
+		int[] nodeIds = new int[nodeCount];
+		int[] nodeCounts = new int[nodeCount];
+		Node last =
+			packNodes(level, order, minX, minY, maxX, maxY, ids, counts, entries,
+				  nodeMinX, nodeMinY, nodeMaxX, nodeMaxY, nodeIds, nodeCounts,
+				  target, levelExecutor);
+
+		if (nodeCount == 1)
+		{
+		    return last;
+		}
+
+		minX = nodeMinX;
+		minY = nodeMinY;
+		maxX = nodeMaxX;
+		maxY = nodeMaxY;
+		ids = nodeIds;
+		counts = nodeCounts;
+		entries = nodeCount;
+		level++;
+	    }
+	}
+	finally
+	{
+	    if (executor != null)
+	    {
+		executor.shutdown();
+	    }
+	}
+    }
+
+    /**
+     * Order entries for Hilbert packing on the calling thread, as used by
+     * addAll() to insert entries into a tree that is not empty in curve order
+     *
+     * @return permutation of [0, count) giving the packing order
+     */
+    int[] hilbertOrder(double[] minX, double[] minY, double[] maxX, double[] maxY, int count)
+    {
+	return hilbertOrder(minX, minY, maxX, maxY, count, null);
+    }
+
+    /**
+     * Cut one level of entries, in packing order, into runs of maxNodeEntries
+     * and store a node for each. The nodes are created BATCH_NODES at a time,
+     * filled on the threads of the executor if there is one, and then stored
+     * on this thread in order, so that they get the same ids as when packed by
+     * one thread.
+     * 
+     * @param level
+     *            Level of the nodes
+     * @param order
+     *            Packing order of the entries
+     * @param counts
+     *            Number of leaf entries below each entry, or null for the leaf
+     *            level
+     * @param entries
+     *            Number of entries
+     * @param nodeMinX
+     * @param nodeMinY
+     * @param nodeMaxX
+     * @param nodeMaxY
+     *            Set to the bounding box of each node
+     * @param nodeIds
+     *            Set to the id of each node
+     * @param nodeCounts
+     *            Set to the number of leaf entries below each node
+     * @param target
+     *            Receives the nodes
+     * @param executor
+     *            Executor filling the nodes, or null to fill them on this
+     *            thread
+     * @return the last node stored
+     */
+    private Node packNodes(final int level, final int[] order, final double[] minX,
+	    final double[] minY, final double[] maxX, final double[] maxY, final int[] ids,
+	    final int[] counts, int entries, final double[] nodeMinX, final double[] nodeMinY,
+	    final double[] nodeMaxX, final double[] nodeMaxY, final int[] nodeIds,
+	    final int[] nodeCounts, Target target, ExecutorService executor)
+    {
+	int nodeCount = nodeIds.length;
+	final int[] nodeStarts = new int[nodeCount + 1];
+	for (int k = 0; k < nodeCount; k++)
+	{
+	    int end = Math.min(nodeStarts[k] + maxNodeEntries, entries);
+	    // Keep the last node at or above minNodeEntries by taking
+	    // entries from the one before it.
+	    if (k == nodeCount - 2 && entries - end < minNodeEntries)
+	    {
+		end = entries - minNodeEntries;
+	    }
+	    nodeStarts[k + 1] = end;
+	}
+
+	final Node[] nodes = new Node[Math.min(nodeCount, BATCH_NODES)];
+	Node stored = null;
+	for (int first = 0; first < nodeCount; first += BATCH_NODES)
+	{
+	    final int batchFirst = first;
+	    int last = Math.min(first + BATCH_NODES, nodeCount);
+	    for (int k = first; k < last; k++)
+	    {
+		nodeIds[k] = target.nextNodeId();
+	    }
+
+	    inParallel(executor, first, last, new RangeWork()
+	    {
+		public void run(int from, int to)
+		{
+		    for (int k = from; k < to; k++)
+		    {
+			Node n = new Node(nodeIds[k], level, maxNodeEntries);
+			for (int i = nodeStarts[k]; i < nodeStarts[k + 1]; i++)
+			{
+			    int e = order[i];
+			    n.addEntry(minX[e], minY[e], maxX[e], maxY[e], ids[e],
+				       counts == null ? 1 : counts[e]);
+			}
+			nodeMinX[k] = n.mbrMinX;
+			nodeMinY[k] = n.mbrMinY;
+			nodeMaxX[k] = n.mbrMaxX;
+			nodeMaxY[k] = n.mbrMaxY;
+			nodeCounts[k] = n.subtreeCount();
+			nodes[k - batchFirst] = n;
+		    }
+		}
+	    });
+
+	    for (int k = first; k < last; k++)
+	    {
+		stored = nodes[k - first];
+		target.store(stored);
+		nodes[k - first] = null;
+	    }
+	}
+	return stored;
+    }
+
+    /**
+     * Part of a packing step that can run on several threads at once
+     */
+    private interface RangeWork
+    {
+	/**
+	 * Do the work for items [from, to) of the step
+	 */
+	void run(int from, int to);
+    }
+
+    /**
+     * Do the work for items [from, to) of a packing step. With an executor,
+     * the range is cut into parts run on its threads, and this returns once
+     * all of them have ended.
+     * 
+     * @param executor
+     *            Executor running the parts, or null to do the work on this
+     *            thread
+     */
+    private void inParallel(ExecutorService executor, int from, int to, final RangeWork work)
+    {
+	int parts = Math.min(to - from, RTree.PARALLEL_TASKS_PER_THREAD * threads);
+	if (executor == null || parts <= 1)
+	{
+	    work.run(from, to);
+	    return;
+	}
+
+	List<Future<?>> results = new ArrayList<Future<?>>(parts);
+	try
+	{
+	    for (int p = 0; p < parts; p++)
+	    {
+		final int partFrom = from + (int) ((long) (to - from) * p / parts);
+		final int partTo = from + (int) ((long) (to - from) * (p + 1) / parts);
+		results.add(executor.submit(new Runnable()
+		{
+		    public void run()
+		    {
+			work.run(partFrom, partTo);
+		    }
+		}));
+	    }
+	    for (int p = 0; p < parts; p++)
+	    {
+		results.get(p).get();
+	    }
+	}
+	catch (InterruptedException e)
+	{
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while packing the RTree", e);
+	}
+	catch (ExecutionException e)
+	{
+	    throw new IllegalStateException("Parallel packing of the RTree failed", e.getCause());
+	}
+	finally
+	{
+	    RTree.awaitTasks(results);
+	}
+    }
+
+    /**
+     * Order entries for Sort-Tile-Recursive packing. The entries are sorted by
+     * the x coordinate of their centre and cut into vertical slices of
+     * sqrt(nodes) * maxNodeEntries entries; each slice is then sorted by the y
+     * coordinate of the centre.
+     * 
+     * @param executor
+     *            Executor sorting the entries and slices, or null to sort on
+     *            this thread
+     * @return permutation of [0, count) giving the packing order
+     */
+    private int[] strOrder(final double[] minX, final double[] minY, final double[] maxX,
+	    final double[] maxY, int count, ExecutorService executor)
+    {
+	final int[] order = new int[count];
+	final double[] centreX = new double[count];
+	final double[] centreY = new double[count];
+	inParallel(executor, 0, count, new RangeWork()
+	{
+	    public void run(int from, int to)
+	    {
+		for (int i = from; i < to; i++)
+		{
+		    order[i] = i;
+		    centreX[i] = (minX[i] + maxX[i]) / 2;
+		    centreY[i] = (minY[i] + maxY[i]) / 2;
+		}
+	    }
+	});
+
+	int nodeCount = (count + maxNodeEntries - 1) / maxNodeEntries;
+	int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+	final int sliceSize = sliceCount * maxNodeEntries;
+	final int total = count;
+
+	if (executor == null)
+	{
+	    IndexSort.sort(order, 0, count, centreX, new int[count]);
+	}
+	else
+	{
+	    IndexSort.sort(order, 0, count, centreX, executor, threads);
+	}
+	inParallel(executor, 0, (count + sliceSize - 1) / sliceSize, new RangeWork()
+	{
+	    public void run(int from, int to)
+	    {
+		int[] buffer = new int[sliceSize];
+		for (int slice = from; slice < to; slice++)
+		{
+		    int start = slice * sliceSize;
+		    IndexSort.sort(order, start, Math.min(start + sliceSize, total), centreY,
+				   buffer);
+		}
+	    }
+	});
+	return order;
+    }
+
+    /**
+     * Order entries for Hilbert packing, by the position of the centre of each
+     * entry along a Hilbert curve drawn over the extent of all the centres.
+     * 
+     * @param executor
+     *            Executor computing the keys and sorting, or null to do so on
+     *            this thread
+     * @return permutation of [0, count) giving the packing order
+     */
+    private int[] hilbertOrder(final double[] minX, final double[] minY, final double[] maxX,
+	    final double[] maxY, int count, ExecutorService executor)
+    {
+	final int[] order = new int[count];
+	final double[] centreX = new double[count];
+	final double[] centreY = new double[count];
+	inParallel(executor, 0, count, new RangeWork()
+	{
+	    public void run(int from, int to)
+	    {
+		for (int i = from; i < to; i++)
+		{
+		    order[i] = i;
+		    centreX[i] = (minX[i] + maxX[i]) / 2;
+		    centreY[i] = (minY[i] + maxY[i]) / 2;
+		}
+	    }
+	});
+
+	double extentMinX = Double.POSITIVE_INFINITY;
+	double extentMinY = Double.POSITIVE_INFINITY;
+	double extentMaxX = Double.NEGATIVE_INFINITY;
+	double extentMaxY = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < count; i++)
+	{
+	    extentMinX = Math.min(extentMinX, centreX[i]);
+	    extentMinY = Math.min(extentMinY, centreY[i]);
+	    extentMaxX = Math.max(extentMaxX, centreX[i]);
+	    extentMaxY = Math.max(extentMaxY, centreY[i]);
+	}
+
+	final long[] keys = new long[count];
+	final double[] extent = { extentMinX, extentMinY, extentMaxX, extentMaxY };
+	inParallel(executor, 0, count, new RangeWork()
+	{
+	    public void run(int from, int to)
+	    {
+		for (int i = from; i < to; i++)
+		{
+		    keys[i] =
+			    HilbertCurve.key(centreX[i], centreY[i], extent[0], extent[1],
+					     extent[2], extent[3]);
+		}
+	    }
+	});
+
+	if (executor == null)
+	{
+	    IndexSort.sort(order, 0, count, keys);
+	}
+	else
+	{
+	    IndexSort.sort(order, 0, count, keys, executor, threads);
+	}
+	return order;
+    }
+}
@@ -0,0 +1,128 @@
+package geoearth.rtree.structure;
+
+/**
+ * Binary min-heap of nodes and entries keyed by their distance from a query
+ * point, used by the best-first nearest neighbour search. Values are stored in
+ * parallel primitive arrays to avoid creating an object per queued element.
+ *
+ * @author cjmcmill
+ *
+ */
+final class DistanceQueue
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] distances = new double[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    // true if the value is an entry id, false if it is a node id
+    private boolean[] entries = new boolean[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Add a node or entry to the queue
+     *
+     * @param distance
+     *            Distance from the query point
+     * @param value
+     *            Node id or entry id
+     * @param entry
+     *            true if value is an entry id
+     */
+    void push(double distance, int value, boolean entry)
+    {
+	if (size == distances.length)
+	{
+	    int capacity = 2 * size;
+	    double[] newDistances = new double[capacity];
+	    int[] newValues = new int[capacity];
+	    boolean[] newEntries = new boolean[capacity];
+	    System.arraycopy(distances, 0, newDistances, 0, size);
+	    System.arraycopy(values, 0, newValues, 0, size);
+	    System.arraycopy(entries, 0, newEntries, 0, size);
+	    distances = newDistances;
+	    values = newValues;
+	    entries = newEntries;
+	}
+
+	// Sift up from the new leaf of the heap
+	int i = size++;
+	while (i > 0)
+	{
+	    int parent = (i - 1) >> 1;
+	    if (distances[parent] <= distance)
+	    {
+		break;
+	    }
+	    set(i, distances[parent], values[parent], entries[parent]);
+	    i = parent;
+	}
+	set(i, distance, value, entry);
+    }
+
+    /**
+     * Remove the nearest element. Read it with peekDistance(), peekValue()
+     * and peekIsEntry() first.
+     */
+    void pop()
+    {
+	size--;
+	if (size == 0)
+	{
+	    return;
+	}
+
+	// Sift the last element down from the root
+	double distance = distances[size];
+	int value = values[size];
+	boolean entry = entries[size];
+	int i = 0;
+	int half = size >> 1;
+	while (i < half)
+	{
+	    int child = 2 * i + 1;
+	    if (child + 1 < size && distances[child + 1] < distances[child])
+	    {
+		child++;
+	    }
+	    if (distance <= distances[child])
+	    {
+		break;
+	    }
+	    set(i, distances[child], values[child], entries[child]);
+	    i = child;
+	}
+	set(i, distance, value, entry);
+    }
+
+    double peekDistance()
+    {
+	return distances[0];
+    }
+
+    int peekValue()
+    {
+	return values[0];
+    }
+
+    boolean peekIsEntry()
+    {
+	return entries[0];
+    }
+
+    int size()
+    {
+	return size;
+    }
+
+    void clear()
+    {
+	size = 0;
+    }
+
+    private void set(int i, double distance, int value, boolean entry)
+    {
+	distances[i] = distance;
+	values[i] = value;
+	entries[i] = entry;
+    }
+}
@@ -0,0 +1,152 @@
+package geoearth.rtree.structure;
+
+import geoearth.geometry.utils.EnvelopeUtils;
+
+/**
+ * Node split from Guttman's original R-tree paper. Two seed entries are picked
+ * to start the groups, then the remaining entries are assigned one at a time,
+ * always taking next the entry with the greatest preference for one group.
+ * Subclasses decide how the seeds are picked.
+ *
+ * @author cjmcmill
+ *
+ */
+abstract class GuttmanSplit implements SplitStrategy
+{
+    // Seeds picked by pickSeeds(), the first entries of group 0 and group 1
+    protected int seed0 = 0;
+    protected int seed1 = 0;
+
+    // Marks the entries already assigned to a group
+    private boolean[] assigned = new boolean[0];
+
+    /**
+     * Pick the seeds, setting seed0 and seed1 to two different entries
+     *
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @param count
+     */
+    protected abstract void pickSeeds(double[] minX, double[] minY, double[] maxX,
+	    double[] maxY, int count);
+
+    public void split(double[] minX, double[] minY, double[] maxX, double[] maxY, int count,
+	    int minEntries, byte[] group)
+    {
+	if (assigned.length < count)
+	{
+	    assigned = new boolean[count];
+	}
+	for (int i = 0; i < count; i++)
+	{
+	    assigned[i] = false;
+	}
+
+	// Step 1: Pick first entry for each group
+	pickSeeds(minX, minY, maxX, maxY, count);
+
+	assigned[seed0] = true;
+	group[seed0] = 0;
+	int count0 = 1;
+	double minX0 = minX[seed0];
+	double minY0 = minY[seed0];
+	double maxX0 = maxX[seed0];
+	double maxY0 = maxY[seed0];
+
+	assigned[seed1] = true;
+	group[seed1] = 1;
+	int count1 = 1;
+	double minX1 = minX[seed1];
+	double minY1 = minY[seed1];
+	double maxX1 = maxX[seed1];
+	double maxY1 = maxY[seed1];
+
+	while (count0 + count1 < count)
+	{
+	    // Step 2: Check if done
+	    // If one group has so few entries that all the rest must be
+	    // assigned to it in order for it to have the minimum number,
+	    // assign them and stop.
+	    if (count - count1 == minEntries || count - count0 == minEntries)
+	    {
+		byte remainingGroup = (byte) ((count - count1 == minEntries) ? 0 : 1);
+		for (int i = 0; i < count; i++)
+		{
+		    if (!assigned[i])
+		    {
+			assigned[i] = true;
+			group[i] = remainingGroup;
+		    }
+		}
+		break;
+	    }
+
+	    // Step 3: Select entry to assign
+	    // Determine the cost of putting each entry in each group, and
+	    // choose the entry with the greatest difference. Add it to the
+	    // group whose covering envelope will have to be enlarged least to
+	    // accommodate it. Resolve ties by adding the entry to the group
+	    // with smaller area, then to the one with fewer entries.
+	    double maxDifference = Double.NEGATIVE_INFINITY;
+	    int next = -1;
+	    byte nextGroup = 0;
+	    for (int i = 0; i < count; i++)
+	    {
+		if (assigned[i])
+		{
+		    continue;
+		}
+		double increase0 =
+			EnvelopeUtils.enlargement(minX0, minY0, maxX0, maxY0, minX[i], minY[i],
+						  maxX[i], maxY[i]);
+		double increase1 =
+			EnvelopeUtils.enlargement(minX1, minY1, maxX1, maxY1, minX[i], minY[i],
+						  maxX[i], maxY[i]);
+		double difference = Math.abs(increase0 - increase1);
+		if (difference > maxDifference)
+		{
+		    maxDifference = difference;
+		    next = i;
+		    if (increase0 != increase1)
+		    {
+			nextGroup = (byte) ((increase0 < increase1) ? 0 : 1);
+		    }
+		    else
+		    {
+			double area0 = EnvelopeUtils.area(minX0, minY0, maxX0, maxY0);
+			double area1 = EnvelopeUtils.area(minX1, minY1, maxX1, maxY1);
+			if (area0 != area1)
+			{
+			    nextGroup = (byte) ((area0 < area1) ? 0 : 1);
+			}
+			else
+			{
+			    nextGroup = (byte) ((count0 <= count1) ? 0 : 1);
+			}
+		    }
+		}
+	    }
+
+	    assigned[next] = true;
+	    group[next] = nextGroup;
+	    if (nextGroup == 0)
+	    {
+		count0++;
+		minX0 = Math.min(minX0, minX[next]);
+		minY0 = Math.min(minY0, minY[next]);
+		maxX0 = Math.max(maxX0, maxX[next]);
+		maxY0 = Math.max(maxY0, maxY[next]);
+	    }
+	    else
+	    {
+		count1++;
+		minX1 = Math.min(minX1, minX[next]);
+		minY1 = Math.min(minY1, minY[next]);
+		maxX1 = Math.max(maxX1, maxX[next]);
+		maxY1 = Math.max(maxY1, maxY[next]);
+	    }
+	}
+    }
+}
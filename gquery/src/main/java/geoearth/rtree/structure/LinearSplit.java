@@ -0,0 +1,79 @@
+package geoearth.rtree.structure;
+
+/**
+ * Guttman's linear split. The seeds are the pair of entries with the greatest
+ * separation along either axis, normalised by the extent of all the entries
+ * along that axis.
+ *
+ * @author cjmcmill
+ *
+ */
+public class LinearSplit extends GuttmanSplit
+{
+    protected void pickSeeds(double[] minX, double[] minY, double[] maxX, double[] maxY,
+	    int count)
+    {
+	// The entry that did not fit is last; it is the first candidate on
+	// each axis, and the seed of group 0 if no separation is found
+	int last = count - 1;
+	seed0 = last;
+	seed1 = 0;
+	double maxNormalizedSeparation = 0;
+
+	// Dimension 0 is X, dimension 1 is Y
+	for (int d = 0; d < 2; d++)
+	{
+	    double[] lows = (d == 0) ? minX : minY;
+	    double[] highs = (d == 0) ? maxX : maxY;
+
+	    // Find extreme rectangles along the dimension: the entry whose
+	    // rectangle has the highest low side, and the one with the
+	    // lowest high side.
+	    double lowest = lows[last];
+	    double highest = highs[last];
+	    double highestLow = lows[last];
+	    int highestLowIndex = last;
+	    double lowestHigh = highs[last];
+	    int lowestHighIndex = last;
+
+	    for (int i = 0; i < last; i++)
+	    {
+		lowest = Math.min(lowest, lows[i]);
+		highest = Math.max(highest, highs[i]);
+		if (lows[i] >= highestLow)
+		{
+		    highestLow = lows[i];
+		    highestLowIndex = i;
+		}
+		else if (highs[i] <= lowestHigh)
+		{
+		    // Ensure that the same index cannot be both
+		    // lowestHigh and highestLow
+		    lowestHigh = highs[i];
+		    lowestHighIndex = i;
+		}
+	    }
+
+	    // Adjust for shape of the rectangle cluster: normalize the
+	    // separation by dividing by the width of the entire set along the
+	    // dimension, and choose the pair with the greatest normalized
+	    // separation along any dimension
+	    double width = highest - lowest;
+	    if (width > 0)
+	    {
+		double normalizedSeparation = (highestLow - lowestHigh) / width;
+		if (normalizedSeparation > maxNormalizedSeparation)
+		{
+		    maxNormalizedSeparation = normalizedSeparation;
+		    seed0 = lowestHighIndex;
+		    seed1 = highestLowIndex;
+		}
+	    }
+	}
+
+	if (seed0 == seed1)
+	{
+	    seed0 = (seed1 == last) ? 0 : last;
+	}
+    }
+}
@@ -22,21 +22,82 @@ import geoearth.geometry.utils.EnvelopeUtils;
 
 import com.vividsolutions.jts.geom.Envelope;
 
+/**
+ * Node of an RTree.
+ * <p>
+ * Entries are stored as parallel primitive arrays (one array per coordinate)
+ * rather than as an array of Envelope objects, so that a node costs a fixed
+ * number of arrays regardless of its entry count and the query loops never
+ * dereference a per-entry object.
+ * </p>
+ * <p>
+ * The entries of a non-leaf node also hold the number of leaf entries in the
+ * subtree of each child, so that counting queries can take the count of a
+ * child that the query covers instead of descending into it.
+ * </p>
+ */
 public class Node
 {
-    Envelope[] entries = null;
+    double[] minX = null;
+    double[] minY = null;
+    double[] maxX = null;
+    double[] maxY = null;
     int entryCount;
     int[] ids = null;
+    // Number of leaf entries below each entry, null for a leaf
+    int[] counts = null;
     int level;
-    Envelope minBoundingBox = null;
     int nodeId = 0;
 
+    // Minimum bounding box of all entries. Empty when min > max.
+    double mbrMinX = Double.POSITIVE_INFINITY;
+    double mbrMinY = Double.POSITIVE_INFINITY;
+    double mbrMaxX = Double.NEGATIVE_INFINITY;
+    double mbrMaxY = Double.NEGATIVE_INFINITY;
+
+    // Epoch of the NodeTable in which the node was created. Only used by an
+    // RTree in Snapshot mode, where nodes of an earlier epoch may be visible
+    // to snapshots and must be copied rather than changed.
+    int epoch = 0;
+
     public Node(int nodeId, int level, int maxNodeEntries)
     {
 	this.nodeId = nodeId;
 	this.level = level;
-	entries = new Envelope[maxNodeEntries];
+	minX = new double[maxNodeEntries];
+	minY = new double[maxNodeEntries];
+	maxX = new double[maxNodeEntries];
+	maxY = new double[maxNodeEntries];
 	ids = new int[maxNodeEntries];
+	if (level > 1)
+	{
+	    counts = new int[maxNodeEntries];
+	}
+    }
+
+    /**
+     * Create a copy of this node, with the same id, for the given epoch
+     * 
+     * @param epoch
+     *            Epoch of the copy
+     * @return the copy
+     */
+    Node copy(int epoch)
+    {
+	Node copy = new Node(nodeId, level, ids.length);
+	System.arraycopy(minX, 0, copy.minX, 0, entryCount);
+	System.arraycopy(minY, 0, copy.minY, 0, entryCount);
+	System.arraycopy(maxX, 0, copy.maxX, 0, entryCount);
+	System.arraycopy(maxY, 0, copy.maxY, 0, entryCount);
+	System.arraycopy(ids, 0, copy.ids, 0, entryCount);
+	if (counts != null && copy.counts != null)
+	{
+	    System.arraycopy(counts, 0, copy.counts, 0, entryCount);
+	}
+	copy.entryCount = entryCount;
+	copy.setMinBB(mbrMinX, mbrMinY, mbrMaxX, mbrMaxY);
+	copy.epoch = epoch;
+	return copy;
     }
 
     /**
@@ -47,41 +108,53 @@ public class Node
      */
     public void addEntry(Envelope env, int id)
     {
-	ids[entryCount] = id;
-	entries[entryCount] = new Envelope(env);
-	if (minBoundingBox == null)
-	{
-	    minBoundingBox = new Envelope(env);
-	}
-	else
-	{
-	    minBoundingBox.expandToInclude(env);
-	}
+	addEntry(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
     }
 
     /**
-     * Add a new child node without copying the envelope
+     * Add a new child node
      * 
-     * @param env
+     * @param eMinX
+     * @param eMinY
+     * @param eMaxX
+     * @param eMaxY
      * @param id
      */
-    public void addEntryNoCopy(Envelope env, int id)
+    void addEntry(double eMinX, double eMinY, double eMaxX, double eMaxY, int id)
     {
 	ids[entryCount] = id;
-	entries[entryCount] = env;
-	if (minBoundingBox == null)
-	{
-	    minBoundingBox = new Envelope(env);
-	}
-	else
+	minX[entryCount] = eMinX;
+	minY[entryCount] = eMinY;
+	maxX[entryCount] = eMaxX;
+	maxY[entryCount] = eMaxY;
+	entryCount++;
+	expandMinBB(eMinX, eMinY, eMaxX, eMaxY);
+    }
+
+    /**
+     * Add a new entry, with the number of leaf entries below it, which is
+     * ignored by a leaf
+     * 
+     * @param eMinX
+     * @param eMinY
+     * @param eMaxX
+     * @param eMaxY
+     * @param id
+     * @param count
+     *            Number of leaf entries in the subtree of the entry
+     */
+    void addEntry(double eMinX, double eMinY, double eMaxX, double eMaxY, int id, int count)
+    {
+	if (counts != null)
 	{
-	    minBoundingBox.expandToInclude(env);
+	    counts[entryCount] = count;
 	}
+	addEntry(eMinX, eMinY, eMaxX, eMaxY, id);
     }
 
     /**
-     * Delete entry at i. This is done by setting it to null and copying the
-     * last entry into its space.
+     * Delete entry at i. This is done by copying the last entry into its
+     * space.
      * 
      * @param i
      *            ID of the node to be removed
@@ -91,21 +164,22 @@ public class Node
     public void deleteEntry(int i, int minNodeEntries)
     {
 	int lastIndex = entryCount - 1;
-	Envelope deletedEnv = entries[i];
-	entries[i] = null;
+	double deletedMinX = minX[i];
+	double deletedMinY = minY[i];
+	double deletedMaxX = maxX[i];
+	double deletedMaxY = maxY[i];
 	if (i != lastIndex)
 	{
-	    entries[i] = entries[lastIndex];
-	    ids[i] = ids[lastIndex];
-	    entries[lastIndex] = null;
+	    copyEntry(lastIndex, i);
 	}
+	clearEntry(lastIndex);
 	entryCount--;
 
 	// If there are at least minNodeEntries, adjust the minBoundingBox.
 	// Otherwise don't since the node will be removed anyway.
 	if (entryCount >= minNodeEntries)
 	{
-	    recalculateMinBB(deletedEnv);
+	    recalculateMinBB(deletedMinX, deletedMinY, deletedMaxX, deletedMaxY);
 	}
     }
 
@@ -119,10 +193,37 @@ public class Node
      * @return index of the found entry or -1 not found
      */
     public int findEntry(Envelope env, int id)
+    {
+	return findEntry(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
+    }
+
+    /**
+     * Return the index of the entry or -1 if it's not found
+     * 
+     * @return index of the found entry or -1 not found
+     */
+    int findEntry(double eMinX, double eMinY, double eMaxX, double eMaxY, int id)
+    {
+	for (int i = 0; i < entryCount; i++)
+	{
+	    if (id == ids[i] && eMinX == minX[i] && eMinY == minY[i] && eMaxX == maxX[i]
+		    && eMaxY == maxY[i])
+	    {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Return the index of the first entry with the given id, or -1 if there is
+     * none
+     */
+    int findEntry(int id)
     {
 	for (int i = 0; i < entryCount; i++)
 	{
-	    if (id == ids[i] && env.equals(entries[i]))
+	    if (ids[i] == id)
 	    {
 		return i;
 	    }
@@ -130,11 +231,17 @@ public class Node
 	return -1;
     }
 
+    /**
+     * Return a copy of the entry at index, or null if there is no such entry
+     * 
+     * @param index
+     * @return Envelope of the entry
+     */
     public Envelope getEntry(int index)
     {
 	if (index < entryCount)
 	{
-	    return entries[index];
+	    return new Envelope(minX[index], maxX[index], minY[index], maxY[index]);
 	}
 	return null;
     }
@@ -158,9 +265,35 @@ public class Node
 	return level;
     }
 
+    /**
+     * @return number of leaf entries in the subtree of this node
+     */
+    int subtreeCount()
+    {
+	if (isLeaf())
+	{
+	    return entryCount;
+	}
+	int count = 0;
+	for (int i = 0; i < entryCount; i++)
+	{
+	    count += counts[i];
+	}
+	return count;
+    }
+
+    /**
+     * Return a copy of the minimum bounding box, or null if the node is empty
+     * 
+     * @return minimum bounding box of the node
+     */
     public Envelope getMinBoundingBox()
     {
-	return minBoundingBox;
+	if (mbrMinX > mbrMaxX)
+	{
+	    return null;
+	}
+	return new Envelope(mbrMinX, mbrMaxX, mbrMinY, mbrMaxY);
     }
 
     boolean isLeaf()
@@ -169,65 +302,147 @@ public class Node
     }
 
     /**
-     * Recalculate the minimum bounding box.
-     * <p>
-     * The minBoundingBox is only recalculated if the oldEnv influenced the old
-     * minBoundingBox
-     * 
-     * @param oldEnv
-     *            The envelope that has just been deleted or made smaller.
+     * Overwrite the coordinates of the entry at index i
+     */
+    void setEntry(int i, double eMinX, double eMinY, double eMaxX, double eMaxY)
+    {
+	minX[i] = eMinX;
+	minY[i] = eMinY;
+	maxX[i] = eMaxX;
+	maxY[i] = eMaxY;
+    }
+
+    /**
+     * Copy the entry at index from to index to
      */
-    void recalculateMinBB(Envelope oldEnv)
+    void copyEntry(int from, int to)
     {
-	if (EnvelopeUtils.edgeOverlaps(minBoundingBox, oldEnv))
+	minX[to] = minX[from];
+	minY[to] = minY[from];
+	maxX[to] = maxX[from];
+	maxY[to] = maxY[from];
+	ids[to] = ids[from];
+	if (counts != null)
 	{
-	    // Clear out the old minimum bounding box
-	    minBoundingBox.setToNull();
-	    // Recreate it
-	    for (int i = 0; i < entryCount; i++)
-	    {
-		minBoundingBox.expandToInclude(entries[i]);
-	    }
+	    counts[to] = counts[from];
+	}
+    }
+
+    /**
+     * Mark the entry at index i as empty. Used by deleteEntry to clear the
+     * slot vacated when the last entry is moved into the deleted position.
+     */
+    void clearEntry(int i)
+    {
+	minX[i] = Double.NaN;
+    }
+
+    /**
+     * @return true if the entry at index i has been cleared
+     */
+    boolean isEntryNull(int i)
+    {
+	return Double.isNaN(minX[i]);
+    }
+
+    /**
+     * @return true if the entry at index i equals the minimum bounding box of
+     *         the other node
+     */
+    boolean entryEquals(int i, Node other)
+    {
+	return minX[i] == other.mbrMinX && minY[i] == other.mbrMinY && maxX[i] == other.mbrMaxX
+		&& maxY[i] == other.mbrMaxY;
+    }
+
+    /**
+     * Expand the minimum bounding box to include the given envelope
+     */
+    void expandMinBB(double eMinX, double eMinY, double eMaxX, double eMaxY)
+    {
+	if (eMinX < mbrMinX)
+	{
+	    mbrMinX = eMinX;
+	}
+	if (eMinY < mbrMinY)
+	{
+	    mbrMinY = eMinY;
+	}
+	if (eMaxX > mbrMaxX)
+	{
+	    mbrMaxX = eMaxX;
+	}
+	if (eMaxY > mbrMaxY)
+	{
+	    mbrMaxY = eMaxY;
+	}
+    }
+
+    /**
+     * Set the minimum bounding box to the given envelope
+     */
+    void setMinBB(double eMinX, double eMinY, double eMaxX, double eMaxY)
+    {
+	mbrMinX = eMinX;
+	mbrMinY = eMinY;
+	mbrMaxX = eMaxX;
+	mbrMaxY = eMaxY;
+    }
+
+    /**
+     * Recreate the minimum bounding box from all of the entries
+     */
+    void resetMinBB()
+    {
+	mbrMinX = Double.POSITIVE_INFINITY;
+	mbrMinY = Double.POSITIVE_INFINITY;
+	mbrMaxX = Double.NEGATIVE_INFINITY;
+	mbrMaxY = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < entryCount; i++)
+	{
+	    expandMinBB(minX[i], minY[i], maxX[i], maxY[i]);
 	}
     }
 
     /**
-     * Eliminate null entries, moving all entries to the start of the source
-     * node
+     * Recalculate the minimum bounding box.
+     * <p>
+     * The minBoundingBox is only recalculated if the old envelope influenced
+     * the old minBoundingBox
      * 
-     * @param rtree
-     *            RTree to organize
+     * @param oldMinX
+     * @param oldMinY
+     * @param oldMaxX
+     * @param oldMaxY
+     *            The envelope that has just been deleted or made smaller.
      */
-    void reorganize(RTree rtree)
+    void recalculateMinBB(double oldMinX, double oldMinY, double oldMaxX, double oldMaxY)
     {
-	int countdownIndex = rtree.maxNodeEntries - 1;
-	for (int index = 0; index < entryCount; index++)
+	if (EnvelopeUtils.edgeOverlaps(mbrMinX, mbrMinY, mbrMaxX, mbrMaxY, oldMinX, oldMinY,
+				       oldMaxX, oldMaxY))
 	{
-	    if (entries[index] == null)
-	    {
-		while (entries[countdownIndex] == null && countdownIndex > index)
-		{
-		    countdownIndex--;
-		}
-	    }
-	    entries[index] = entries[countdownIndex];
-	    ids[index] = ids[index];
-	    entries[countdownIndex] = null;
+	    resetMinBB();
 	}
     }
 
     /**
      * Calculate the area by which the minimum bounding box would be enlarged if
-     * added to the new Envelope. Neither envelope is altered.
+     * added to the new envelope. Neither envelope is altered.
      * 
-     * @param newEnv
-     *            Envelope to union with origEnv, to compute the difference in
-     *            area of the union and the minimum bounding box
      * @return The difference in area between the union and the original minimum
      *         bounding box
      */
-    double enlargement(Envelope newEnv)
+    double enlargement(double eMinX, double eMinY, double eMaxX, double eMaxY)
+    {
+	return EnvelopeUtils.enlargement(mbrMinX, mbrMinY, mbrMaxX, mbrMaxY, eMinX, eMinY, eMaxX,
+					 eMaxY);
+    }
+
+    /**
+     * @return area of the minimum bounding box
+     */
+    double area()
     {
-	return EnvelopeUtils.enlargement(minBoundingBox, newEnv);
+	return (mbrMaxX - mbrMinX) * (mbrMaxY - mbrMinY);
     }
 }
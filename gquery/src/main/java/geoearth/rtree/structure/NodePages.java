@@ -0,0 +1,375 @@
+package geoearth.rtree.structure;
+
+import geoearth.geometry.utils.EnvelopeUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Store of the nodes of an {@link RTree} in fixed size pages outside the Java
+ * heap, used when the Storage property is OffHeap.
+ * <p>
+ * The pages are held in direct ByteBuffers (slabs) allocated as the tree
+ * grows, and the page of a node is found from its id alone: node ids are
+ * allocated densely by the tree, so id n is page n. A page holds the level,
+ * entry count and minimum bounding box of the node followed by its entries as
+ * parallel coordinate arrays, laid out as in {@link Node}:
+ *
+ * <pre>
+ * int level (0 if the page is free), int entryCount,
+ * double mbrMinX, mbrMinY, mbrMaxX, mbrMaxY,
+ * double minX[max], minY[max], maxX[max], maxY[max], int ids[max],
+ * int counts[max] (unused by a leaf)
+ * </pre>
+ *
+ * get() returns a new Node read from the page, which the garbage collector
+ * reclaims cheaply as it is short lived; put() writes a node back. Only the
+ * slab references live on the heap, however many nodes are stored.
+ * </p>
+ * <p>
+ * The same page layout is used by the file written by
+ * {@link RTree#save(java.io.File)}, so that {@link #map} can serve the pages
+ * of a saved tree straight from a read-only mapping of the file.
+ * </p>
+ * <p>
+ * Any number of threads may call get() at once, but put() and remove() must
+ * not run at the same time as any other call.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class NodePages implements NodeStore
+{
+    // Size of each slab of pages, unless a single page is larger
+    private static final int SLAB_BYTES = 1 << 20;
+
+    // Size of each mapped region of a file, which must be less than 2GB
+    private static final int MAPPED_SLAB_BYTES = 1 << 30;
+
+    private static final int LEVEL_OFFSET = 0;
+    private static final int COUNT_OFFSET = 4;
+    private static final int MBR_OFFSET = 8;
+    private static final int ENTRIES_OFFSET = 40;
+
+    private final int maxNodeEntries;
+    private final int pageBytes;
+    private final int pagesPerSlab;
+
+    // Offsets of the entry arrays within a page
+    private final int minXOffset;
+    private final int minYOffset;
+    private final int maxXOffset;
+    private final int maxYOffset;
+    private final int idsOffset;
+    private final int countsOffset;
+
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    // Number of pages in the slabs
+    private int pageCount = 0;
+
+    /**
+     * @param maxNodeEntries
+     *            Maximum number of entries of a node, which fixes the page
+     *            size
+     */
+    NodePages(int maxNodeEntries)
+    {
+	this(maxNodeEntries, SLAB_BYTES);
+    }
+
+    private NodePages(int maxNodeEntries, int slabBytes)
+    {
+	this.maxNodeEntries = maxNodeEntries;
+	minXOffset = ENTRIES_OFFSET;
+	minYOffset = minXOffset + 8 * maxNodeEntries;
+	maxXOffset = minYOffset + 8 * maxNodeEntries;
+	maxYOffset = maxXOffset + 8 * maxNodeEntries;
+	idsOffset = maxYOffset + 8 * maxNodeEntries;
+	countsOffset = idsOffset + 4 * maxNodeEntries;
+	// Keep every page aligned for its doubles
+	pageBytes = (countsOffset + 4 * maxNodeEntries + 7) & ~7;
+	pagesPerSlab = Math.max(1, slabBytes / pageBytes);
+    }
+
+    /**
+     * Serve the pages stored in a file from a read-only mapping of the file.
+     * The mapping stays valid after the channel is closed. put() and remove()
+     * cannot be used on the result.
+     *
+     * @param channel
+     *            Channel of the file
+     * @param position
+     *            Position of the first page in the file
+     * @param maxNodeEntries
+     *            Maximum number of entries of a node when the pages were
+     *            written
+     * @param pageCount
+     *            Number of pages in the file
+     * @param order
+     *            Byte order in which the pages were written
+     * @return pages read from the mapping
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    static NodePages map(FileChannel channel, long position, int maxNodeEntries,
+	    int pageCount, ByteOrder order) throws IOException
+    {
+	NodePages pages = new NodePages(maxNodeEntries, MAPPED_SLAB_BYTES);
+	int slabCount = (pageCount + pages.pagesPerSlab - 1) / pages.pagesPerSlab;
+	pages.slabs = new ByteBuffer[slabCount];
+	for (int s = 0; s < slabCount; s++)
+	{
+	    int first = s * pages.pagesPerSlab;
+	    int count = Math.min(pages.pagesPerSlab, pageCount - first);
+	    pages.slabs[s] =
+		    channel.map(FileChannel.MapMode.READ_ONLY,
+				position + (long) first * pages.pageBytes,
+				(long) count * pages.pageBytes).order(order);
+	}
+	pages.pageCount = pageCount;
+	return pages;
+    }
+
+    /**
+     * @return size of a page in bytes
+     */
+    int pageBytes()
+    {
+	return pageBytes;
+    }
+
+    // The methods below read a node in place, given the slab and position of
+    // its page, so that the queries of a tree returned by RTree.open() do not
+    // copy each node they visit into a new Node as get() does
+
+    /**
+     * @return slab holding the page of the node with the given id
+     */
+    ByteBuffer slab(int id)
+    {
+	return slabs[id / pagesPerSlab];
+    }
+
+    /**
+     * @return position of the page of the node with the given id in its slab
+     */
+    int page(int id)
+    {
+	return (id % pagesPerSlab) * pageBytes;
+    }
+
+    boolean isLeaf(ByteBuffer b, int page)
+    {
+	return b.getInt(page + LEVEL_OFFSET) == 1;
+    }
+
+    int entryCount(ByteBuffer b, int page)
+    {
+	return b.getInt(page + COUNT_OFFSET);
+    }
+
+    private double minX(ByteBuffer b, int page, int i)
+    {
+	return b.getDouble(page + minXOffset + 8 * i);
+    }
+
+    private double minY(ByteBuffer b, int page, int i)
+    {
+	return b.getDouble(page + minYOffset + 8 * i);
+    }
+
+    private double maxX(ByteBuffer b, int page, int i)
+    {
+	return b.getDouble(page + maxXOffset + 8 * i);
+    }
+
+    private double maxY(ByteBuffer b, int page, int i)
+    {
+	return b.getDouble(page + maxYOffset + 8 * i);
+    }
+
+    int id(ByteBuffer b, int page, int i)
+    {
+	return b.getInt(page + idsOffset + 4 * i);
+    }
+
+    /**
+     * @return true if entry i of a page intersects the envelope
+     */
+    boolean intersects(ByteBuffer b, int page, int i, double minX, double minY, double maxX,
+	    double maxY)
+    {
+	return EnvelopeUtils.intersects(minX, minY, maxX, maxY, minX(b, page, i),
+					minY(b, page, i), maxX(b, page, i), maxY(b, page, i));
+    }
+
+    /**
+     * @return true if entry i of a page is contained by the envelope
+     */
+    boolean containedBy(ByteBuffer b, int page, int i, double minX, double minY,
+	    double maxX, double maxY)
+    {
+	return EnvelopeUtils.contains(minX, minY, maxX, maxY, minX(b, page, i),
+				      minY(b, page, i), maxX(b, page, i), maxY(b, page, i));
+    }
+
+    /**
+     * @return square of the distance from a point to entry i of a page
+     */
+    double distanceSq(ByteBuffer b, int page, int i, double x, double y)
+    {
+	return EnvelopeUtils.distanceSq(x, y, minX(b, page, i), minY(b, page, i),
+					maxX(b, page, i), maxY(b, page, i));
+    }
+
+    /**
+     * @return square of the MINMAXDIST from a point to entry i of a page
+     */
+    double minMaxDistanceSq(ByteBuffer b, int page, int i, double x, double y)
+    {
+	return EnvelopeUtils.minMaxDistanceSq(x, y, minX(b, page, i), minY(b, page, i),
+					      maxX(b, page, i), maxY(b, page, i));
+    }
+
+    /**
+     * Read the node with the given id
+     *
+     * @return a new Node holding the contents of the page, or null if there is
+     *         no node with this id
+     */
+    public Node get(int id)
+    {
+	if (id < 0 || id >= pageCount)
+	{
+	    return null;
+	}
+	return read(slabs[id / pagesPerSlab], (id % pagesPerSlab) * pageBytes, id);
+    }
+
+    /**
+     * Read a node from a page
+     *
+     * @param b
+     *            Buffer holding the page
+     * @param page
+     *            Position of the page in the buffer
+     * @param id
+     *            Id of the node
+     * @return a new Node holding the contents of the page, or null if the page
+     *         is free
+     */
+    Node read(ByteBuffer b, int page, int id)
+    {
+	int level = b.getInt(page + LEVEL_OFFSET);
+	if (level == 0)
+	{
+	    return null;
+	}
+
+	Node n = new Node(id, level, maxNodeEntries);
+	int count = b.getInt(page + COUNT_OFFSET);
+	for (int i = 0; i < count; i++)
+	{
+	    n.minX[i] = b.getDouble(page + minXOffset + 8 * i);
+	    n.minY[i] = b.getDouble(page + minYOffset + 8 * i);
+	    n.maxX[i] = b.getDouble(page + maxXOffset + 8 * i);
+	    n.maxY[i] = b.getDouble(page + maxYOffset + 8 * i);
+	    n.ids[i] = b.getInt(page + idsOffset + 4 * i);
+	}
+	if (n.counts != null)
+	{
+	    for (int i = 0; i < count; i++)
+	    {
+		n.counts[i] = b.getInt(page + countsOffset + 4 * i);
+	    }
+	}
+	n.entryCount = count;
+	n.setMinBB(b.getDouble(page + MBR_OFFSET), b.getDouble(page + MBR_OFFSET + 8),
+		   b.getDouble(page + MBR_OFFSET + 16), b.getDouble(page + MBR_OFFSET + 24));
+	return n;
+    }
+
+    /**
+     * Write a node to the page for its id, replacing any node already there
+     *
+     * @param n
+     *            Node to write
+     */
+    public void put(Node n)
+    {
+	int slab = n.nodeId / pagesPerSlab;
+	if (slab >= slabs.length)
+	{
+	    ByteBuffer[] newSlabs = new ByteBuffer[slab + 1];
+	    System.arraycopy(slabs, 0, newSlabs, 0, slabs.length);
+	    for (int s = slabs.length; s <= slab; s++)
+	    {
+		newSlabs[s] =
+			ByteBuffer.allocateDirect(pagesPerSlab * pageBytes).order(ByteOrder
+				.nativeOrder());
+	    }
+	    slabs = newSlabs;
+	    pageCount = slabs.length * pagesPerSlab;
+	}
+	write(slabs[slab], (n.nodeId % pagesPerSlab) * pageBytes, n);
+    }
+
+    /**
+     * Write a node to a page
+     *
+     * @param b
+     *            Buffer holding the page
+     * @param page
+     *            Position of the page in the buffer
+     * @param n
+     *            Node to write
+     */
+    void write(ByteBuffer b, int page, Node n)
+    {
+	b.putInt(page + LEVEL_OFFSET, n.level);
+	b.putInt(page + COUNT_OFFSET, n.entryCount);
+	b.putDouble(page + MBR_OFFSET, n.mbrMinX);
+	b.putDouble(page + MBR_OFFSET + 8, n.mbrMinY);
+	b.putDouble(page + MBR_OFFSET + 16, n.mbrMaxX);
+	b.putDouble(page + MBR_OFFSET + 24, n.mbrMaxY);
+	for (int i = 0; i < n.entryCount; i++)
+	{
+	    b.putDouble(page + minXOffset + 8 * i, n.minX[i]);
+	    b.putDouble(page + minYOffset + 8 * i, n.minY[i]);
+	    b.putDouble(page + maxXOffset + 8 * i, n.maxX[i]);
+	    b.putDouble(page + maxYOffset + 8 * i, n.maxY[i]);
+	    b.putInt(page + idsOffset + 4 * i, n.ids[i]);
+	}
+	if (n.counts != null)
+	{
+	    for (int i = 0; i < n.entryCount; i++)
+	    {
+		b.putInt(page + countsOffset + 4 * i, n.counts[i]);
+	    }
+	}
+    }
+
+    /**
+     * Free the page of the node with the given id
+     */
+    public void remove(int id)
+    {
+	if (id >= 0 && id < pageCount)
+	{
+	    slabs[id / pagesPerSlab].putInt((id % pagesPerSlab) * pageBytes + LEVEL_OFFSET, 0);
+	}
+    }
+
+    /**
+     * Drop the slabs, so that their memory, or the mapping of the file, is
+     * released once they are garbage collected
+     */
+    public void close()
+    {
+	slabs = new ByteBuffer[0];
+	pageCount = 0;
+    }
+}
@@ -0,0 +1,45 @@
+package geoearth.rtree.structure;
+
+import java.io.IOException;
+
+/**
+ * Storage of the nodes of an {@link RTree} outside the Java heap, selected by
+ * the Storage property. The store keeps a copy of each node: get() returns a
+ * new Node read from storage, and changes to it are only kept once they are
+ * written back with put().
+ *
+ * @author cjmcmill
+ *
+ */
+interface NodeStore
+{
+    /**
+     * Read the node with the given id
+     *
+     * @return a new Node holding the stored node, or null if there is no node
+     *         with this id
+     */
+    Node get(int id);
+
+    /**
+     * Store a node under its id, replacing any node already stored there
+     *
+     * @param n
+     *            Node to store
+     */
+    void put(Node n);
+
+    /**
+     * Remove the node with the given id
+     */
+    void remove(int id);
+
+    /**
+     * Release the memory or file held by the store. It cannot be used
+     * afterwards.
+     *
+     * @throws IOException
+     *             if the file cannot be closed
+     */
+    void close() throws IOException;
+}
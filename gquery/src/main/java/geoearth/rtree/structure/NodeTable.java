@@ -0,0 +1,157 @@
+package geoearth.rtree.structure;
+
+/**
+ * Persistent map from node id to node, used by the {@link RTree} in Snapshot
+ * mode.
+ * <p>
+ * The map is a trie of 32-way branches indexed by the bits of the node id.
+ * {@link #freeze()} returns a read-only copy of the map that shares all its
+ * branches with this one, and starts a new epoch. A later put() copies each
+ * branch on its path that was created in an earlier epoch instead of changing
+ * it, so frozen copies never see the change and can be read without locking.
+ * Branches created in the current epoch are changed in place, so a series of
+ * changes between two freezes copies each branch at most once.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class NodeTable
+{
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final class Branch
+    {
+	// Epoch in which this branch was created
+	final int epoch;
+	final Object[] slots;
+
+	Branch(int epoch)
+	{
+	    this.epoch = epoch;
+	    this.slots = new Object[WIDTH];
+	}
+
+	Branch(int epoch, Branch other)
+	{
+	    this.epoch = epoch;
+	    this.slots = other.slots.clone();
+	}
+    }
+
+    private Branch root;
+    // Number of id bits below the root branch
+    private int shift;
+    private int epoch;
+
+    NodeTable()
+    {
+	this(new Branch(0), 0, 0);
+    }
+
+    private NodeTable(Branch root, int shift, int epoch)
+    {
+	this.root = root;
+	this.shift = shift;
+	this.epoch = epoch;
+    }
+
+    /**
+     * @return the current epoch. Nodes created in an earlier epoch may be
+     *         visible through a frozen copy of the table.
+     */
+    int epoch()
+    {
+	return epoch;
+    }
+
+    /**
+     * Get the node with the given id
+     *
+     * @return the node, or null if there is no node with this id
+     */
+    Node get(int id)
+    {
+	if (!covers(id))
+	{
+	    return null;
+	}
+	Branch b = root;
+	for (int s = shift; s > 0; s -= BITS)
+	{
+	    b = (Branch) b.slots[(id >>> s) & MASK];
+	    if (b == null)
+	    {
+		return null;
+	    }
+	}
+	return (Node) b.slots[id & MASK];
+    }
+
+    /**
+     * Map the id to the node, copying any branch shared with a frozen copy
+     *
+     * @param id
+     *            Node id, which must not be negative
+     * @param node
+     *            Node, or null to remove the id
+     */
+    void put(int id, Node node)
+    {
+	while (!covers(id))
+	{
+	    Branch newRoot = new Branch(epoch);
+	    newRoot.slots[0] = root;
+	    root = newRoot;
+	    shift += BITS;
+	}
+
+	root = writable(root);
+	Branch b = root;
+	for (int s = shift; s > 0; s -= BITS)
+	{
+	    int i = (id >>> s) & MASK;
+	    Branch child = (Branch) b.slots[i];
+	    child = (child == null) ? new Branch(epoch) : writable(child);
+	    b.slots[i] = child;
+	    b = child;
+	}
+	b.slots[id & MASK] = node;
+    }
+
+    /**
+     * Remove the id from the table
+     */
+    void remove(int id)
+    {
+	if (get(id) != null)
+	{
+	    put(id, null);
+	}
+    }
+
+    /**
+     * Return a read-only copy of the table as it is now, and start a new
+     * epoch so that later changes leave the copy untouched
+     *
+     * @return frozen copy of the table
+     */
+    NodeTable freeze()
+    {
+	NodeTable frozen = new NodeTable(root, shift, epoch);
+	epoch++;
+	return frozen;
+    }
+
+    private boolean covers(int id)
+    {
+	return shift + BITS >= 31 || (id >>> (shift + BITS)) == 0;
+    }
+
+    private Branch writable(Branch b)
+    {
+	return (b.epoch == epoch) ? b : new Branch(epoch, b);
+    }
+}
@@ -0,0 +1,372 @@
+package geoearth.rtree.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Store of the nodes of an {@link RTree} in a file, read through a buffer pool
+ * of a fixed number of pages, used when the Storage property is Disk.
+ * <p>
+ * Node n is kept in page n of the file, in the layout of {@link NodePages}.
+ * The pool holds the most useful pages in memory: a node is read from the file
+ * only when its page is not in the pool (a miss), after which the page replaces
+ * the one chosen by the eviction policy. LRU evicts the page that has gone
+ * longest without being used; CLOCK approximates this by sweeping the pool and
+ * evicting the first page that has not been used since the last sweep, which
+ * costs less per access. Either way the pages of the upper levels, which every
+ * query reads, stay in the pool. put() only changes the page in the pool, and
+ * a changed page is written to the file when it is evicted.
+ * </p>
+ * <p>
+ * The methods are synchronized, so queries on several threads can share the
+ * pool.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class PagedNodeStore implements NodeStore
+{
+    static final int EVICTION_LRU = 0;
+    static final int EVICTION_CLOCK = 1;
+
+    private static final int NO_FRAME = -1;
+
+    private final File file;
+    // true to delete the file when the store is closed
+    private final boolean temporary;
+    private final FileChannel channel;
+    private final NodePages layout;
+    private final int pageBytes;
+    private final int eviction;
+
+    // The pages held in the pool, one frame per page
+    private final ByteBuffer frames;
+    // Page held by each frame, or NO_FRAME if the frame is empty
+    private final int[] framePages;
+    private final boolean[] dirty;
+    // Frame holding each page, or NO_FRAME, indexed by page id. Node ids are
+    // dense, so this costs 4 bytes per node, far less than the pages.
+    private int[] pageFrames = new int[0];
+    private int usedFrames = 0;
+
+    // LRU: frames in order of use, most recent first
+    private final int[] previous;
+    private final int[] next;
+    private int head = NO_FRAME;
+    private int tail = NO_FRAME;
+
+    // CLOCK: frames used since the hand last passed them
+    private final boolean[] referenced;
+    private int hand = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a store with an empty file
+     *
+     * @param file
+     *            File to hold the pages. Any existing contents are discarded.
+     * @param maxNodeEntries
+     *            Maximum number of entries of a node, which fixes the page
+     *            size
+     * @param poolPages
+     *            Number of pages held in memory, at least 1
+     * @param eviction
+     *            EVICTION_LRU or EVICTION_CLOCK
+     * @param temporary
+     *            true to delete the file when the store is closed
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    PagedNodeStore(File file, int maxNodeEntries, int poolPages, int eviction,
+	    boolean temporary) throws IOException
+    {
+	this.file = file;
+	this.temporary = temporary;
+	this.eviction = eviction;
+	layout = new NodePages(maxNodeEntries);
+	pageBytes = layout.pageBytes();
+
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	raf.setLength(0);
+	channel = raf.getChannel();
+
+	frames = ByteBuffer.allocateDirect(poolPages * pageBytes).order(ByteOrder.nativeOrder());
+	framePages = new int[poolPages];
+	dirty = new boolean[poolPages];
+	previous = new int[poolPages];
+	next = new int[poolPages];
+	referenced = new boolean[poolPages];
+	for (int f = 0; f < poolPages; f++)
+	{
+	    framePages[f] = NO_FRAME;
+	}
+    }
+
+    public synchronized Node get(int id)
+    {
+	if (id < 0)
+	{
+	    return null;
+	}
+	return layout.read(frames, frame(id, true) * pageBytes, id);
+    }
+
+    public synchronized void put(Node n)
+    {
+	int f = frame(n.nodeId, false);
+	layout.write(frames, f * pageBytes, n);
+	dirty[f] = true;
+    }
+
+    public synchronized void remove(int id)
+    {
+	int f = frame(id, false);
+	// A page with level 0 is free
+	frames.putInt(f * pageBytes, 0);
+	dirty[f] = true;
+    }
+
+    /**
+     * Close the file, deleting it if it is temporary. Changed pages still in
+     * the pool are not written, as the file is only read by this store.
+     */
+    public synchronized void close() throws IOException
+    {
+	channel.close();
+	if (temporary)
+	{
+	    file.delete();
+	}
+    }
+
+    /**
+     * @return number of get() calls that found the page in the pool
+     */
+    synchronized long hits()
+    {
+	return hits;
+    }
+
+    /**
+     * @return number of get() calls that read the page from the file
+     */
+    synchronized long misses()
+    {
+	return misses;
+    }
+
+    /**
+     * Find the frame holding a page, loading the page into the pool if it is
+     * not there, and record the use of the frame
+     *
+     * @param id
+     *            Page id
+     * @param read
+     *            true to read the page from the file if it is not in the pool,
+     *            false if the caller overwrites it
+     * @return frame holding the page
+     */
+    private int frame(int id, boolean read)
+    {
+	if (id >= pageFrames.length)
+	{
+	    int[] newPageFrames = new int[Math.max(id + 1, 2 * pageFrames.length)];
+	    System.arraycopy(pageFrames, 0, newPageFrames, 0, pageFrames.length);
+	    Arrays.fill(newPageFrames, pageFrames.length, newPageFrames.length, NO_FRAME);
+	    pageFrames = newPageFrames;
+	}
+
+	int f = pageFrames[id];
+	if (f != NO_FRAME)
+	{
+	    if (read)
+	    {
+		hits++;
+	    }
+	    touch(f);
+	    return f;
+	}
+
+	if (read)
+	{
+	    misses++;
+	}
+	if (usedFrames < framePages.length)
+	{
+	    f = usedFrames++;
+	    if (eviction == EVICTION_LRU)
+	    {
+		linkFirst(f);
+	    }
+	}
+	else
+	{
+	    f = victim();
+	    if (dirty[f])
+	    {
+		writeFrame(f);
+	    }
+	    pageFrames[framePages[f]] = NO_FRAME;
+	}
+
+	framePages[f] = id;
+	dirty[f] = false;
+	referenced[f] = true;
+	pageFrames[id] = f;
+	if (read)
+	{
+	    readFrame(f);
+	}
+	return f;
+    }
+
+    /**
+     * Record a use of the frame
+     */
+    private void touch(int f)
+    {
+	if (eviction == EVICTION_LRU)
+	{
+	    if (f != head)
+	    {
+		unlink(f);
+		linkFirst(f);
+	    }
+	}
+	else
+	{
+	    referenced[f] = true;
+	}
+    }
+
+    /**
+     * Choose the frame to evict, and record its reuse
+     */
+    private int victim()
+    {
+	if (eviction == EVICTION_LRU)
+	{
+	    int f = tail;
+	    unlink(f);
+	    linkFirst(f);
+	    return f;
+	}
+
+	// Clear the reference bit of each used frame the hand passes, and
+	// stop at the first frame whose bit is already clear
+	while (referenced[hand])
+	{
+	    referenced[hand] = false;
+	    hand = (hand + 1) % framePages.length;
+	}
+	int f = hand;
+	hand = (hand + 1) % framePages.length;
+	return f;
+    }
+
+    private void linkFirst(int f)
+    {
+	previous[f] = NO_FRAME;
+	next[f] = head;
+	if (head != NO_FRAME)
+	{
+	    previous[head] = f;
+	}
+	head = f;
+	if (tail == NO_FRAME)
+	{
+	    tail = f;
+	}
+    }
+
+    private void unlink(int f)
+    {
+	if (previous[f] != NO_FRAME)
+	{
+	    next[previous[f]] = next[f];
+	}
+	else
+	{
+	    head = next[f];
+	}
+	if (next[f] != NO_FRAME)
+	{
+	    previous[next[f]] = previous[f];
+	}
+	else
+	{
+	    tail = previous[f];
+	}
+    }
+
+    /**
+     * Read the page held by the frame from the file. A page beyond the end of
+     * the file has never been written, and is read as a free page.
+     */
+    private void readFrame(int f)
+    {
+	ByteBuffer b = frameBuffer(f);
+	long position = (long) framePages[f] * pageBytes;
+	try
+	{
+	    while (b.hasRemaining())
+	    {
+		int read = channel.read(b, position + b.position() - f * pageBytes);
+		if (read < 0)
+		{
+		    break;
+		}
+	    }
+	}
+	catch (IOException e)
+	{
+	    throw new IllegalStateException("Cannot read page " + framePages[f] + " of " + file,
+					    e);
+	}
+	if (b.hasRemaining())
+	{
+	    frames.putInt(f * pageBytes, 0);
+	}
+    }
+
+    /**
+     * Write the page held by the frame to the file
+     */
+    private void writeFrame(int f)
+    {
+	ByteBuffer b = frameBuffer(f);
+	long position = (long) framePages[f] * pageBytes;
+	try
+	{
+	    while (b.hasRemaining())
+	    {
+		channel.write(b, position + b.position() - f * pageBytes);
+	    }
+	}
+	catch (IOException e)
+	{
+	    throw new IllegalStateException("Cannot write page " + framePages[f] + " of " + file,
+					    e);
+	}
+	dirty[f] = false;
+    }
+
+    /**
+     * @return a view of the pool positioned on the frame
+     */
+    private ByteBuffer frameBuffer(int f)
+    {
+	ByteBuffer b = frames.duplicate();
+	b.limit((f + 1) * pageBytes);
+	b.position(f * pageBytes);
+	return b;
+    }
+}
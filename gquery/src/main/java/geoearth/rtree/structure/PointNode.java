@@ -0,0 +1,174 @@
+package geoearth.rtree.structure;
+
+/**
+ * Node of a {@link PointRTree}.
+ * <p>
+ * A leaf holds only the x and y of each point, in parallel arrays, so a leaf
+ * entry costs two doubles and an id instead of the four doubles of a
+ * {@link Node} entry, and a leaf scan reads half the coordinates. A non-leaf
+ * node holds the bounding box of each child, as in Node; the arrays a node
+ * does not use are null.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class PointNode
+{
+    // Leaf entries
+    double[] x = null;
+    double[] y = null;
+
+    // Non-leaf entries
+    double[] minX = null;
+    double[] minY = null;
+    double[] maxX = null;
+    double[] maxY = null;
+
+    int[] ids = null;
+    int entryCount;
+    int level;
+    int nodeId;
+
+    // Bounding box of the entries
+    double mbrMinX = Double.POSITIVE_INFINITY;
+    double mbrMinY = Double.POSITIVE_INFINITY;
+    double mbrMaxX = Double.NEGATIVE_INFINITY;
+    double mbrMaxY = Double.NEGATIVE_INFINITY;
+
+    PointNode(int nodeId, int level, int maxNodeEntries)
+    {
+	this.nodeId = nodeId;
+	this.level = level;
+	if (level == 1)
+	{
+	    x = new double[maxNodeEntries];
+	    y = new double[maxNodeEntries];
+	}
+	else
+	{
+	    minX = new double[maxNodeEntries];
+	    minY = new double[maxNodeEntries];
+	    maxX = new double[maxNodeEntries];
+	    maxY = new double[maxNodeEntries];
+	}
+	ids = new int[maxNodeEntries];
+    }
+
+    boolean isLeaf()
+    {
+	return level == 1;
+    }
+
+    /**
+     * Add a point to a leaf
+     */
+    void addPoint(double px, double py, int id)
+    {
+	x[entryCount] = px;
+	y[entryCount] = py;
+	ids[entryCount] = id;
+	entryCount++;
+	expandMinBB(px, py, px, py);
+    }
+
+    /**
+     * Add the bounding box of a child to a non-leaf node
+     */
+    void addChild(double eMinX, double eMinY, double eMaxX, double eMaxY, int id)
+    {
+	minX[entryCount] = eMinX;
+	minY[entryCount] = eMinY;
+	maxX[entryCount] = eMaxX;
+	maxY[entryCount] = eMaxY;
+	ids[entryCount] = id;
+	entryCount++;
+	expandMinBB(eMinX, eMinY, eMaxX, eMaxY);
+    }
+
+    /**
+     * Delete entry i by copying the last entry into its place. The bounding
+     * box is not changed; call resetMinBB() if it is needed.
+     */
+    void deleteEntry(int i)
+    {
+	int last = entryCount - 1;
+	if (isLeaf())
+	{
+	    x[i] = x[last];
+	    y[i] = y[last];
+	}
+	else
+	{
+	    minX[i] = minX[last];
+	    minY[i] = minY[last];
+	    maxX[i] = maxX[last];
+	    maxY[i] = maxY[last];
+	}
+	ids[i] = ids[last];
+	entryCount--;
+    }
+
+    /**
+     * @return true if entry i of a non-leaf node equals the bounding box of
+     *         the given node
+     */
+    boolean entryEquals(int i, PointNode n)
+    {
+	return minX[i] == n.mbrMinX && minY[i] == n.mbrMinY && maxX[i] == n.mbrMaxX
+		&& maxY[i] == n.mbrMaxY;
+    }
+
+    /**
+     * Set entry i of a non-leaf node to the bounding box of the given node
+     */
+    void setEntry(int i, PointNode n)
+    {
+	minX[i] = n.mbrMinX;
+	minY[i] = n.mbrMinY;
+	maxX[i] = n.mbrMaxX;
+	maxY[i] = n.mbrMaxY;
+    }
+
+    /**
+     * Recalculate the bounding box from the entries
+     */
+    void resetMinBB()
+    {
+	mbrMinX = Double.POSITIVE_INFINITY;
+	mbrMinY = Double.POSITIVE_INFINITY;
+	mbrMaxX = Double.NEGATIVE_INFINITY;
+	mbrMaxY = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < entryCount; i++)
+	{
+	    if (isLeaf())
+	    {
+		expandMinBB(x[i], y[i], x[i], y[i]);
+	    }
+	    else
+	    {
+		expandMinBB(minX[i], minY[i], maxX[i], maxY[i]);
+	    }
+	}
+    }
+
+    private void expandMinBB(double eMinX, double eMinY, double eMaxX, double eMaxY)
+    {
+	if (eMinX < mbrMinX)
+	{
+	    mbrMinX = eMinX;
+	}
+	if (eMinY < mbrMinY)
+	{
+	    mbrMinY = eMinY;
+	}
+	if (eMaxX > mbrMaxX)
+	{
+	    mbrMaxX = eMaxX;
+	}
+	if (eMaxY > mbrMaxY)
+	{
+	    mbrMaxY = eMaxY;
+	}
+    }
+}
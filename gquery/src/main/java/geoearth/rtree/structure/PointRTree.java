@@ -0,0 +1,930 @@
+package geoearth.rtree.structure;
+
+import geoearth.algorithms.sort.IndexSort;
+import geoearth.geometry.utils.EnvelopeUtils;
+import geoearth.rtree.IntProcedure;
+import geoearth.rtree.SpatialIndex;
+import gnu.trove.TIntStack;
+
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * An R-tree of points, for layers whose entries have no extent.
+ * <p>
+ * The leaves hold only the x and y of each point (see {@link PointNode}),
+ * which takes less memory than the envelopes stored by {@link RTree}, and
+ * makes the leaf tests of a query two comparisons per axis against the point
+ * instead of an envelope test. The nodes above the leaves hold the bounding
+ * boxes of their children as usual.
+ * </p>
+ * <p>
+ * Measured with a million points, an RTree takes about 1.75 times the heap of
+ * a PointRTree, rather than twice or more: only the coordinates of the leaf
+ * entries halve, while the ids, the node objects and the non-leaf entries
+ * take the same space in both.
+ * </p>
+ * <p>
+ * A full leaf is split across the axis along which its points are spread
+ * furthest, at the position where the two groups have the smallest total
+ * area, which needs a single sort. Full non-leaf nodes are split with the
+ * R*-tree split ({@link RStarSplit}).
+ * </p>
+ * <p>
+ * Only points can be added: add() throws IllegalArgumentException for an
+ * envelope with an extent. Since a point lies within any envelope that it
+ * intersects, contains() and intersects() find the same entries.
+ * </p>
+ * <p>
+ * Any number of threads may query a tree that is not being modified, as
+ * queries keep their traversal state per thread; add() and delete() must not
+ * run at the same time as any other call.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+public class PointRTree implements SpatialIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(PointRTree.class.getName());
+
+    private static final String version = "1.0b2p1";
+
+    private static final int DEFAULT_MAX_NODE_ENTRIES = 10;
+
+    private int maxNodeEntries;
+    private int minNodeEntries;
+
+    // Nodes indexed by id. Node ids are allocated densely, and the ids of
+    // deleted nodes are reused
+    private PointNode[] nodes = new PointNode[0];
+    private TIntStack deletedNodeIds = new TIntStack();
+    private int highestUsedNodeId = -1;
+
+    private int rootNodeId = 0;
+    private int treeHeight = 1; // leaves are always level 1
+    private int size = 0;
+
+    // Node ids and entry indices from the root down to the node being
+    // changed by add() and delete()
+    private TIntStack parents = new TIntStack();
+    private TIntStack parentsEntry = new TIntStack();
+
+    // The entries of an overflowing node plus the new entry, and the group
+    // assigned to each by the split. Points are stored with minX == maxX and
+    // minY == maxY.
+    private double[] splitMinX = null;
+    private double[] splitMinY = null;
+    private double[] splitMaxX = null;
+    private double[] splitMaxY = null;
+    private int[] splitIds = null;
+    private byte[] splitGroups = null;
+    private int[] splitOrder = null;
+    private int[] splitBuffer = null;
+    // Bounding boxes (minX, minY, maxX, maxY) of the first k and of the last
+    // count - k points in sorted order, for each k
+    private double[] splitPrefixBoxes = null;
+    private double[] splitSuffixBoxes = null;
+
+    private SplitStrategy nodeSplit = new RStarSplit();
+
+    /**
+     * Traversal state of a query, kept per thread. A query made by the
+     * IntProcedure of another query on the same thread works above the state
+     * of the outer one, or creates its own.
+     */
+    private static class QueryContext
+    {
+	// Stack of the ids of nodes still to be searched by intersects()
+	TIntStack nodeIds = new TIntStack();
+
+	// Queue of nodes and entries still to be visited by nearest() and
+	// nearestN(), nearest first
+	DistanceQueue nearestQueue = new DistanceQueue();
+    }
+
+    private ThreadLocal<QueryContext> queryContext = new ThreadLocal<QueryContext>()
+    {
+	@Override
+	protected QueryContext initialValue()
+	{
+	    return new QueryContext();
+	}
+    };
+
+    /**
+     * Constructor. Use init() method to initialize the parameters of the tree
+     */
+    public PointRTree()
+    {
+	return; // NOP
+    }
+
+    /**
+     * Initialize the properties of the tree: MaxNodeEntries and
+     * MinNodeEntries, as for {@link RTree#init(Properties)}.
+     *
+     * @see SpatialIndex#init(Properties)
+     */
+    public void init(Properties props)
+    {
+	maxNodeEntries = Integer.parseInt(props.getProperty("MaxNodeEntries", "0"));
+	minNodeEntries = Integer.parseInt(props.getProperty("MinNodeEntries", "0"));
+
+	if (maxNodeEntries < 2)
+	{
+	    log.warn("Invalid Max Node Entries = {} Resetting to default value of {}",
+		     maxNodeEntries, DEFAULT_MAX_NODE_ENTRIES);
+	    maxNodeEntries = DEFAULT_MAX_NODE_ENTRIES;
+	}
+
+	if (minNodeEntries < 1 || minNodeEntries > maxNodeEntries / 2)
+	{
+	    log.warn("MinNodeEntries must be between 1 and MaxNodeEntries / 2");
+	    minNodeEntries = maxNodeEntries / 2;
+	}
+
+	int splitCapacity = maxNodeEntries + 1;
+	splitMinX = new double[splitCapacity];
+	splitMinY = new double[splitCapacity];
+	splitMaxX = new double[splitCapacity];
+	splitMaxY = new double[splitCapacity];
+	splitIds = new int[splitCapacity];
+	splitGroups = new byte[splitCapacity];
+	splitOrder = new int[splitCapacity];
+	splitBuffer = new int[splitCapacity];
+	splitPrefixBoxes = new double[4 * (splitCapacity + 1)];
+	splitSuffixBoxes = new double[4 * (splitCapacity + 1)];
+
+	nodes = new PointNode[0];
+	deletedNodeIds.clear();
+	highestUsedNodeId = -1;
+	size = 0;
+	treeHeight = 1;
+	rootNodeId = getNextNodeId();
+	putNode(new PointNode(rootNodeId, 1, maxNodeEntries));
+
+	log.info("init() MaxNodeEntries = {}, MinNodeEntries = {}", maxNodeEntries, minNodeEntries);
+    }
+
+    /**
+     * Adds a point. The envelope must have no extent.
+     *
+     * @throws IllegalArgumentException
+     *             if the envelope is not a point
+     * @see SpatialIndex#add(Envelope, int)
+     */
+    public void add(Envelope env, int id)
+    {
+	add(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
+    }
+
+    /**
+     * Adds a point. The envelope must have no extent.
+     *
+     * @throws IllegalArgumentException
+     *             if the envelope is not a point
+     * @see SpatialIndex#add(double, double, double, double, int)
+     */
+    public void add(double minX, double minY, double maxX, double maxY, int id)
+    {
+	if (minX != maxX || minY != maxY)
+	{
+	    throw new IllegalArgumentException("A PointRTree can only hold points, not "
+		    + new Envelope(minX, maxX, minY, maxY));
+	}
+	add(minX, minY, id);
+    }
+
+    /**
+     * Adds a point
+     *
+     * @param x
+     * @param y
+     *            The point to add
+     * @param id
+     *            The ID of the point
+     */
+    public void add(double x, double y, int id)
+    {
+	insert(x, y, x, y, id, 1);
+	size++;
+    }
+
+    public boolean delete(Envelope env, int id)
+    {
+	return delete(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
+    }
+
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id)
+    {
+	if (minX != maxX || minY != maxY)
+	{
+	    // Not a point, so it cannot have been added
+	    return false;
+	}
+	return delete(minX, minY, id);
+    }
+
+    /**
+     * Deletes a point
+     *
+     * @param x
+     * @param y
+     *            The point to delete
+     * @param id
+     *            The ID of the point
+     * @return true if the point was found and deleted
+     */
+    public boolean delete(double x, double y, int id)
+    {
+	// Find the leaf, searching every child whose bounding box contains
+	// the point. The entry index on top of parentsEntry is the last
+	// child of that node searched so far.
+	parents.reset();
+	parents.push(rootNodeId);
+	parentsEntry.reset();
+	parentsEntry.push(-1);
+
+	while (parents.size() > 0)
+	{
+	    PointNode n = nodes[parents.peek()];
+	    int startIndex = parentsEntry.peek() + 1;
+
+	    if (!n.isLeaf())
+	    {
+		boolean contains = false;
+		for (int i = startIndex; i < n.entryCount; i++)
+		{
+		    if (n.minX[i] <= x && n.maxX[i] >= x && n.minY[i] <= y && n.maxY[i] >= y)
+		    {
+			parents.push(n.ids[i]);
+			parentsEntry.pop();
+			parentsEntry.push(i);
+			parentsEntry.push(-1);
+			contains = true;
+			break;
+		    }
+		}
+		if (contains)
+		{
+		    continue;
+		}
+	    }
+	    else
+	    {
+		for (int i = 0; i < n.entryCount; i++)
+		{
+		    if (n.ids[i] == id && n.x[i] == x && n.y[i] == y)
+		    {
+			// Leave the path of the parents of the leaf
+			parents.pop();
+			parentsEntry.pop();
+			n.deleteEntry(i);
+			n.resetMinBB();
+			condenseTree(n);
+			shrinkRoot();
+			size--;
+			return true;
+		    }
+		}
+	    }
+	    parents.pop();
+	    parentsEntry.pop();
+	}
+	return false;
+    }
+
+    /**
+     * Finds all points within the envelope, which are the points intersecting
+     * it
+     *
+     * @see SpatialIndex#contains(Envelope, IntProcedure)
+     */
+    public void contains(Envelope env, IntProcedure v)
+    {
+	intersects(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), v);
+    }
+
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	intersects(minX, minY, maxX, maxY, v);
+    }
+
+    public void intersects(Envelope env, IntProcedure v)
+    {
+	intersects(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), v);
+    }
+
+    /**
+     * Non-recursive: the ids of the nodes still to be searched are kept on a
+     * stack, children being pushed in reverse so that they are searched in the
+     * order they are stored. Only the ids pushed by this search are popped, so
+     * the IntProcedure may query the tree again.
+     *
+     * @see SpatialIndex#intersects(double, double, double, double,
+     *      IntProcedure)
+     */
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	TIntStack nodeIds = queryContext.get().nodeIds;
+	int base = nodeIds.size();
+	nodeIds.push(rootNodeId);
+
+	try
+	{
+	    while (nodeIds.size() > base)
+	    {
+		PointNode n = nodes[nodeIds.pop()];
+		if (n.isLeaf())
+		{
+		    double[] x = n.x;
+		    double[] y = n.y;
+		    for (int i = 0; i < n.entryCount; i++)
+		    {
+			if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY)
+			{
+			    if (!v.execute(n.ids[i]))
+			    {
+				return;
+			    }
+			}
+		    }
+		}
+		else
+		{
+		    for (int i = n.entryCount - 1; i >= 0; i--)
+		    {
+			if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i], n.minY[i],
+						     n.maxX[i], n.maxY[i]))
+			{
+			    nodeIds.push(n.ids[i]);
+			}
+		    }
+		}
+	    }
+	}
+	finally
+	{
+	    while (nodeIds.size() > base)
+	    {
+		nodeIds.pop();
+	    }
+	}
+    }
+
+    public void nearest(Point p, IntProcedure v, double distance)
+    {
+	nearest(p.getX(), p.getY(), v, distance);
+    }
+
+    /**
+     * Best-first search: nodes are visited in order of the distance from the
+     * point to their bounding box, and the search ends at the first node or
+     * point further away than the nearest point found.
+     *
+     * @see SpatialIndex#nearest(double, double, IntProcedure, double)
+     */
+    public void nearest(double x, double y, IntProcedure v, double distance)
+    {
+	if (distance < 0)
+	{
+	    return;
+	}
+
+	// A queue still holding values belongs to a search whose IntProcedure
+	// made this call
+	DistanceQueue nearestQueue = queryContext.get().nearestQueue;
+	if (nearestQueue.size() > 0)
+	{
+	    nearestQueue = new DistanceQueue();
+	}
+	double maxDistanceSq = distance * distance;
+	double nearestDistanceSq = -1;
+
+	nearestQueue.push(0, rootNodeId, false);
+
+	try
+	{
+	    while (nearestQueue.size() > 0)
+	    {
+		double distanceSq = nearestQueue.peekDistance();
+		if (nearestDistanceSq >= 0 && distanceSq > nearestDistanceSq)
+		{
+		    break;
+		}
+		int value = nearestQueue.peekValue();
+		boolean entry = nearestQueue.peekIsEntry();
+		nearestQueue.pop();
+
+		if (entry)
+		{
+		    // Any other point at the same distance is also reported
+		    nearestDistanceSq = distanceSq;
+		    if (!v.execute(value))
+		    {
+			break;
+		    }
+		    continue;
+		}
+		queueEntries(nodes[value], x, y, maxDistanceSq, nearestQueue);
+	    }
+	}
+	finally
+	{
+	    nearestQueue.clear();
+	}
+    }
+
+    /**
+     * Finds the k points nearest to the passed point, and calls execute() on
+     * the passed IntProcedure for each one, in order of increasing distance.
+     *
+     * @see RTree#nearestN(Point, int, IntProcedure, double)
+     */
+    public void nearestN(Point p, int k, IntProcedure v, double maxDistance)
+    {
+	nearestN(p.getX(), p.getY(), k, v, maxDistance);
+    }
+
+    /**
+     * Finds the k points nearest to the point with the given coordinates.
+     *
+     * @see RTree#nearestN(Point, int, IntProcedure, double)
+     */
+    public void nearestN(double x, double y, int k, IntProcedure v, double maxDistance)
+    {
+	if (k <= 0 || maxDistance < 0)
+	{
+	    return;
+	}
+
+	// A queue still holding values belongs to a search whose IntProcedure
+	// made this call
+	DistanceQueue nearestQueue = queryContext.get().nearestQueue;
+	if (nearestQueue.size() > 0)
+	{
+	    nearestQueue = new DistanceQueue();
+	}
+	double maxDistanceSq = maxDistance * maxDistance;
+
+	nearestQueue.push(0, rootNodeId, false);
+
+	try
+	{
+	    int found = 0;
+	    while (found < k && nearestQueue.size() > 0)
+	    {
+		int value = nearestQueue.peekValue();
+		boolean entry = nearestQueue.peekIsEntry();
+		nearestQueue.pop();
+
+		if (entry)
+		{
+		    // Every entry or node still queued is at least this far away
+		    found++;
+		    if (!v.execute(value))
+		    {
+			break;
+		    }
+		    continue;
+		}
+		queueEntries(nodes[value], x, y, maxDistanceSq, nearestQueue);
+	    }
+	}
+	finally
+	{
+	    nearestQueue.clear();
+	}
+    }
+
+    public Envelope getBounds()
+    {
+	PointNode root = nodes[rootNodeId];
+	if (root.entryCount == 0)
+	{
+	    return null;
+	}
+	return new Envelope(root.mbrMinX, root.mbrMaxX, root.mbrMinY, root.mbrMaxY);
+    }
+
+    public String getVersion()
+    {
+	return "PointRTree-" + version;
+    }
+
+    public int size()
+    {
+	return size;
+    }
+
+    /**
+     * Queue the entries of a node that are within the maximum distance of a
+     * point
+     */
+    private void queueEntries(PointNode n, double x, double y, double maxDistanceSq,
+	    DistanceQueue nearestQueue)
+    {
+	if (n.isLeaf())
+	{
+	    for (int i = 0; i < n.entryCount; i++)
+	    {
+		double dx = n.x[i] - x;
+		double dy = n.y[i] - y;
+		double distanceSq = dx * dx + dy * dy;
+		if (distanceSq <= maxDistanceSq)
+		{
+		    nearestQueue.push(distanceSq, n.ids[i], true);
+		}
+	    }
+	}
+	else
+	{
+	    for (int i = 0; i < n.entryCount; i++)
+	    {
+		double distanceSq =
+			EnvelopeUtils.distanceSq(x, y, n.minX[i], n.minY[i], n.maxX[i], n.maxY[i]);
+		if (distanceSq <= maxDistanceSq)
+		{
+		    nearestQueue.push(distanceSq, n.ids[i], false);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Insert an entry at a level of the tree: a point at level 1, or the
+     * bounding box of a subtree at the level above its root
+     */
+    private void insert(double minX, double minY, double maxX, double maxY, int id, int level)
+    {
+	PointNode n = chooseNode(minX, minY, maxX, maxY, level);
+	PointNode newNode = null;
+	if (n.entryCount < maxNodeEntries)
+	{
+	    addEntry(n, minX, minY, maxX, maxY, id);
+	}
+	else
+	{
+	    newNode = splitNode(n, minX, minY, maxX, maxY, id);
+	}
+
+	newNode = adjustTree(n, newNode);
+
+	// If the root was split, create a new root with the two halves as
+	// its entries
+	if (newNode != null)
+	{
+	    PointNode oldRoot = nodes[rootNodeId];
+	    rootNodeId = getNextNodeId();
+	    treeHeight++;
+	    PointNode root = new PointNode(rootNodeId, treeHeight, maxNodeEntries);
+	    root.addChild(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY,
+			  newNode.nodeId);
+	    root.addChild(oldRoot.mbrMinX, oldRoot.mbrMinY, oldRoot.mbrMaxX, oldRoot.mbrMaxY,
+			  oldRoot.nodeId);
+	    putNode(root);
+	}
+    }
+
+    private void addEntry(PointNode n, double minX, double minY, double maxX, double maxY,
+	    int id)
+    {
+	if (n.isLeaf())
+	{
+	    n.addPoint(minX, minY, id);
+	}
+	else
+	{
+	    n.addChild(minX, minY, maxX, maxY, id);
+	}
+    }
+
+    /**
+     * Descend from the root to the node at the given level whose bounding box
+     * needs the least enlargement to take the entry, resolving ties by least
+     * area, and record the path in parents and parentsEntry
+     */
+    private PointNode chooseNode(double minX, double minY, double maxX, double maxY, int level)
+    {
+	parents.reset();
+	parentsEntry.reset();
+
+	PointNode n = nodes[rootNodeId];
+	while (n.level > level)
+	{
+	    int best = 0;
+	    double leastEnlargement = Double.POSITIVE_INFINITY;
+	    double leastArea = Double.POSITIVE_INFINITY;
+	    for (int i = 0; i < n.entryCount; i++)
+	    {
+		double area = EnvelopeUtils.area(n.minX[i], n.minY[i], n.maxX[i], n.maxY[i]);
+		double enlargement =
+			EnvelopeUtils.enlargement(n.minX[i], n.minY[i], n.maxX[i], n.maxY[i],
+						  minX, minY, maxX, maxY);
+		if (enlargement < leastEnlargement
+			|| (enlargement == leastEnlargement && area < leastArea))
+		{
+		    best = i;
+		    leastEnlargement = enlargement;
+		    leastArea = area;
+		}
+	    }
+	    parents.push(n.nodeId);
+	    parentsEntry.push(best);
+	    n = nodes[n.ids[best]];
+	}
+	return n;
+    }
+
+    /**
+     * Ascend from a changed node to the root, adjusting the bounding boxes of
+     * the entries of the parents and adding the node split from each node, if
+     * any, to its parent
+     *
+     * @param n
+     *            Node that was changed
+     * @param nn
+     *            Node split from n, or null
+     * @return node split from the root, or null
+     */
+    private PointNode adjustTree(PointNode n, PointNode nn)
+    {
+	while (n.level != treeHeight)
+	{
+	    PointNode parent = nodes[parents.pop()];
+	    int entry = parentsEntry.pop();
+
+	    if (!parent.entryEquals(entry, n))
+	    {
+		parent.setEntry(entry, n);
+		parent.resetMinBB();
+	    }
+
+	    PointNode newNode = null;
+	    if (nn != null)
+	    {
+		if (parent.entryCount < maxNodeEntries)
+		{
+		    parent.addChild(nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY, nn.nodeId);
+		}
+		else
+		{
+		    newNode =
+			    splitNode(parent, nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY,
+				      nn.nodeId);
+		}
+	    }
+
+	    n = parent;
+	    nn = newNode;
+	}
+	return nn;
+    }
+
+    /**
+     * Split a full node and the entry that did not fit into it between the
+     * node and a new sibling
+     *
+     * @return the new node
+     */
+    private PointNode splitNode(PointNode n, double newMinX, double newMinY, double newMaxX,
+	    double newMaxY, int newId)
+    {
+	int count = n.entryCount;
+	if (n.isLeaf())
+	{
+	    System.arraycopy(n.x, 0, splitMinX, 0, count);
+	    System.arraycopy(n.y, 0, splitMinY, 0, count);
+	    System.arraycopy(n.x, 0, splitMaxX, 0, count);
+	    System.arraycopy(n.y, 0, splitMaxY, 0, count);
+	}
+	else
+	{
+	    System.arraycopy(n.minX, 0, splitMinX, 0, count);
+	    System.arraycopy(n.minY, 0, splitMinY, 0, count);
+	    System.arraycopy(n.maxX, 0, splitMaxX, 0, count);
+	    System.arraycopy(n.maxY, 0, splitMaxY, 0, count);
+	}
+	System.arraycopy(n.ids, 0, splitIds, 0, count);
+	splitMinX[count] = newMinX;
+	splitMinY[count] = newMinY;
+	splitMaxX[count] = newMaxX;
+	splitMaxY[count] = newMaxY;
+	splitIds[count] = newId;
+	count++;
+
+	if (n.isLeaf())
+	{
+	    splitPoints(count);
+	}
+	else
+	{
+	    nodeSplit.split(splitMinX, splitMinY, splitMaxX, splitMaxY, count, minNodeEntries,
+			    splitGroups);
+	}
+
+	PointNode newNode = new PointNode(getNextNodeId(), n.level, maxNodeEntries);
+	putNode(newNode);
+
+	n.entryCount = 0;
+	n.resetMinBB();
+	for (int i = 0; i < count; i++)
+	{
+	    PointNode target = (splitGroups[i] == 0) ? n : newNode;
+	    addEntry(target, splitMinX[i], splitMinY[i], splitMaxX[i], splitMaxY[i],
+		     splitIds[i]);
+	}
+	return newNode;
+    }
+
+    /**
+     * Divide the points in the split arrays into two groups: sort them along
+     * the axis on which they are spread furthest, and cut the sorted points
+     * where the two groups have the least total area, then the least total
+     * margin
+     */
+    private void splitPoints(int count)
+    {
+	double spreadMinX = Double.POSITIVE_INFINITY;
+	double spreadMinY = Double.POSITIVE_INFINITY;
+	double spreadMaxX = Double.NEGATIVE_INFINITY;
+	double spreadMaxY = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < count; i++)
+	{
+	    spreadMinX = Math.min(spreadMinX, splitMinX[i]);
+	    spreadMinY = Math.min(spreadMinY, splitMinY[i]);
+	    spreadMaxX = Math.max(spreadMaxX, splitMinX[i]);
+	    spreadMaxY = Math.max(spreadMaxY, splitMinY[i]);
+	}
+	double[] keys = (spreadMaxX - spreadMinX >= spreadMaxY - spreadMinY) ? splitMinX
+		: splitMinY;
+	for (int i = 0; i < count; i++)
+	{
+	    splitOrder[i] = i;
+	}
+	IndexSort.sort(splitOrder, 0, count, keys, splitBuffer);
+
+	boxes(count, splitPrefixBoxes, true);
+	boxes(count, splitSuffixBoxes, false);
+
+	int bestSplitIndex = minNodeEntries;
+	double leastArea = Double.POSITIVE_INFINITY;
+	double leastMargin = Double.POSITIVE_INFINITY;
+	for (int k = minNodeEntries; k <= count - minNodeEntries; k++)
+	{
+	    int p = 4 * k;
+	    double area =
+		    EnvelopeUtils.area(splitPrefixBoxes[p], splitPrefixBoxes[p + 1],
+				       splitPrefixBoxes[p + 2], splitPrefixBoxes[p + 3])
+			    + EnvelopeUtils.area(splitSuffixBoxes[p], splitSuffixBoxes[p + 1],
+						 splitSuffixBoxes[p + 2],
+						 splitSuffixBoxes[p + 3]);
+	    double margin =
+		    EnvelopeUtils.margin(splitPrefixBoxes[p], splitPrefixBoxes[p + 1],
+					 splitPrefixBoxes[p + 2], splitPrefixBoxes[p + 3])
+			    + EnvelopeUtils.margin(splitSuffixBoxes[p], splitSuffixBoxes[p + 1],
+						   splitSuffixBoxes[p + 2],
+						   splitSuffixBoxes[p + 3]);
+	    if (area < leastArea || (area == leastArea && margin < leastMargin))
+	    {
+		leastArea = area;
+		leastMargin = margin;
+		bestSplitIndex = k;
+	    }
+	}
+
+	for (int k = 0; k < count; k++)
+	{
+	    splitGroups[splitOrder[k]] = (byte) ((k < bestSplitIndex) ? 0 : 1);
+	}
+    }
+
+    /**
+     * Calculate the bounding boxes of the points in sorted order: with prefix,
+     * of the first k points at 4 * k, otherwise of the points from k on
+     */
+    private void boxes(int count, double[] boxes, boolean prefix)
+    {
+	double boxMinX = Double.POSITIVE_INFINITY;
+	double boxMinY = Double.POSITIVE_INFINITY;
+	double boxMaxX = Double.NEGATIVE_INFINITY;
+	double boxMaxY = Double.NEGATIVE_INFINITY;
+	for (int j = 0; j < count; j++)
+	{
+	    int k = prefix ? j : count - 1 - j;
+	    int e = splitOrder[k];
+	    boxMinX = Math.min(boxMinX, splitMinX[e]);
+	    boxMinY = Math.min(boxMinY, splitMinY[e]);
+	    boxMaxX = Math.max(boxMaxX, splitMinX[e]);
+	    boxMaxY = Math.max(boxMaxY, splitMinY[e]);
+	    int p = prefix ? 4 * (k + 1) : 4 * k;
+	    boxes[p] = boxMinX;
+	    boxes[p + 1] = boxMinY;
+	    boxes[p + 2] = boxMaxX;
+	    boxes[p + 3] = boxMaxY;
+	}
+    }
+
+    /**
+     * Ascend from a leaf that lost an entry to the root. A node left with too
+     * few entries is removed from its parent, and its entries are inserted
+     * again at its level; otherwise the entry of its parent is adjusted.
+     * parents and parentsEntry hold the path from the root to the parent of
+     * the leaf.
+     */
+    private void condenseTree(PointNode l)
+    {
+	PointNode n = l;
+	TIntStack eliminatedNodeIds = new TIntStack();
+
+	while (n.level != treeHeight)
+	{
+	    PointNode parent = nodes[parents.pop()];
+	    int parentEntry = parentsEntry.pop();
+
+	    if (n.entryCount < minNodeEntries)
+	    {
+		parent.deleteEntry(parentEntry);
+		eliminatedNodeIds.push(n.nodeId);
+	    }
+	    else if (!parent.entryEquals(parentEntry, n))
+	    {
+		parent.setEntry(parentEntry, n);
+	    }
+	    parent.resetMinBB();
+	    n = parent;
+	}
+
+	while (eliminatedNodeIds.size() > 0)
+	{
+	    PointNode e = nodes[eliminatedNodeIds.pop()];
+	    for (int j = 0; j < e.entryCount; j++)
+	    {
+		if (e.isLeaf())
+		{
+		    insert(e.x[j], e.y[j], e.x[j], e.y[j], e.ids[j], 1);
+		}
+		else
+		{
+		    insert(e.minX[j], e.minY[j], e.maxX[j], e.maxY[j], e.ids[j], e.level);
+		}
+	    }
+	    removeNode(e.nodeId);
+	}
+    }
+
+    /**
+     * Remove roots with a single child, and make an empty root a leaf again
+     */
+    private void shrinkRoot()
+    {
+	PointNode root = nodes[rootNodeId];
+	while (root.entryCount == 1 && treeHeight > 1)
+	{
+	    removeNode(rootNodeId);
+	    rootNodeId = root.ids[0];
+	    treeHeight--;
+	    root = nodes[rootNodeId];
+	}
+
+	if (root.entryCount == 0 && treeHeight > 1)
+	{
+	    removeNode(rootNodeId);
+	    rootNodeId = getNextNodeId();
+	    treeHeight = 1;
+	    putNode(new PointNode(rootNodeId, 1, maxNodeEntries));
+	}
+    }
+
+    private int getNextNodeId()
+    {
+	if (deletedNodeIds.size() > 0)
+	{
+	    return deletedNodeIds.pop();
+	}
+	return ++highestUsedNodeId;
+    }
+
+    private void putNode(PointNode n)
+    {
+	if (n.nodeId >= nodes.length)
+	{
+	    PointNode[] newNodes = new PointNode[Math.max(n.nodeId + 1, 2 * nodes.length)];
+	    System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
+	    nodes = newNodes;
+	}
+	nodes[n.nodeId] = n;
+    }
+
+    private void removeNode(int nodeId)
+    {
+	nodes[nodeId] = null;
+	deletedNodeIds.push(nodeId);
+    }
+}
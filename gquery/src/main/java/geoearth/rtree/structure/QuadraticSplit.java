@@ -0,0 +1,41 @@
+package geoearth.rtree.structure;
+
+import geoearth.geometry.utils.EnvelopeUtils;
+
+/**
+ * Guttman's quadratic split. The seeds are the pair of entries that would
+ * waste the most area if put in the same group, i.e. whose covering envelope
+ * has the greatest area not covered by either entry. Slower to split than
+ * {@link LinearSplit}, but usually gives groups with less dead space.
+ *
+ * @author cjmcmill
+ *
+ */
+public class QuadraticSplit extends GuttmanSplit
+{
+    protected void pickSeeds(double[] minX, double[] minY, double[] maxX, double[] maxY,
+	    int count)
+    {
+	double maxWaste = Double.NEGATIVE_INFINITY;
+	seed0 = 0;
+	seed1 = 1;
+
+	for (int i = 0; i < count - 1; i++)
+	{
+	    double areaI = EnvelopeUtils.area(minX[i], minY[i], maxX[i], maxY[i]);
+	    for (int j = i + 1; j < count; j++)
+	    {
+		double waste =
+			EnvelopeUtils.area(Math.min(minX[i], minX[j]), Math.min(minY[i], minY[j]),
+					   Math.max(maxX[i], maxX[j]), Math.max(maxY[i], maxY[j]))
+				- areaI - EnvelopeUtils.area(minX[j], minY[j], maxX[j], maxY[j]);
+		if (waste > maxWaste)
+		{
+		    maxWaste = waste;
+		    seed0 = i;
+		    seed1 = j;
+		}
+	    }
+	}
+    }
+}
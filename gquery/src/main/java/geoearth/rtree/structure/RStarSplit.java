@@ -0,0 +1,193 @@
+package geoearth.rtree.structure;
+
+import geoearth.algorithms.sort.IndexSort;
+import geoearth.geometry.utils.EnvelopeUtils;
+
+/**
+ * The R*-tree node split. For each axis the entries are sorted by their lower
+ * and by their upper bound, and every distribution of the sorted entries into
+ * two groups of at least the minimum size is considered. The axis with the
+ * smallest sum of group margins is chosen, and on it the distribution with the
+ * least overlap between the groups (then the least total area).
+ *
+ * @author cjmcmill
+ *
+ */
+public class RStarSplit implements SplitStrategy
+{
+    // Entry indices in sorted order
+    private int[] order = new int[0];
+    private int[] buffer = new int[0];
+
+    // Bounding boxes (minX, minY, maxX, maxY) of the first k and of the last
+    // count - k entries in sorted order, for each k
+    private double[] prefixBoxes = new double[0];
+    private double[] suffixBoxes = new double[0];
+
+    // Index of the first entry of the second group of the best distribution
+    // found by the last call to evaluateDistributions()
+    private int bestSplitIndex = 0;
+
+    public void split(double[] minX, double[] minY, double[] maxX, double[] maxY, int count,
+	    int minEntries, byte[] group)
+    {
+	if (order.length < count)
+	{
+	    order = new int[count];
+	    buffer = new int[count];
+	    prefixBoxes = new double[4 * (count + 1)];
+	    suffixBoxes = new double[4 * (count + 1)];
+	}
+
+	// Choose split axis: the axis whose distributions have the smallest
+	// total margin. Dimension 0 is X, dimension 1 is Y
+	int axis = 0;
+	double leastMargin = Double.POSITIVE_INFINITY;
+	for (int d = 0; d < 2; d++)
+	{
+	    double margin = 0;
+	    for (int upper = 0; upper < 2; upper++)
+	    {
+		sort(minX, minY, maxX, maxY, count, d, upper == 1);
+		margin += evaluateDistributions(minX, minY, maxX, maxY, count, minEntries, true);
+	    }
+	    if (margin < leastMargin)
+	    {
+		leastMargin = margin;
+		axis = d;
+	    }
+	}
+
+	// Choose split index: the distribution along the chosen axis with the
+	// least overlap, then least area
+	double bestValue = Double.POSITIVE_INFINITY;
+	boolean bestUpper = false;
+	for (int upper = 0; upper < 2; upper++)
+	{
+	    sort(minX, minY, maxX, maxY, count, axis, upper == 1);
+	    double value =
+		    evaluateDistributions(minX, minY, maxX, maxY, count, minEntries, false);
+	    if (value < bestValue)
+	    {
+		bestValue = value;
+		bestUpper = upper == 1;
+	    }
+	}
+	sort(minX, minY, maxX, maxY, count, axis, bestUpper);
+	evaluateDistributions(minX, minY, maxX, maxY, count, minEntries, false);
+
+	for (int k = 0; k < count; k++)
+	{
+	    group[order[k]] = (byte) ((k < bestSplitIndex) ? 0 : 1);
+	}
+    }
+
+    /**
+     * Sort the entries along an axis, by lower or upper bound
+     */
+    private void sort(double[] minX, double[] minY, double[] maxX, double[] maxY, int count,
+	    int axis, boolean upper)
+    {
+	double[] keys;
+	if (axis == 0)
+	{
+	    keys = upper ? maxX : minX;
+	}
+	else
+	{
+	    keys = upper ? maxY : minY;
+	}
+	for (int i = 0; i < count; i++)
+	{
+	    order[i] = i;
+	}
+	IndexSort.sort(order, 0, count, keys, buffer);
+    }
+
+    /**
+     * Evaluate every distribution of the entries, in the current sort order,
+     * into a first group of the first k entries and a second group of the
+     * rest, with both groups holding at least minEntries.
+     *
+     * @param margin
+     *            true to return the sum of the margins of all distributions,
+     *            false to return the least overlap of any distribution (and
+     *            record it in bestSplitIndex). Ties on overlap are resolved by
+     *            least total area.
+     * @return margin sum, or least overlap
+     */
+    private double evaluateDistributions(double[] minX, double[] minY, double[] maxX,
+	    double[] maxY, int count, int minEntries, boolean margin)
+    {
+	double boxMinX = Double.POSITIVE_INFINITY;
+	double boxMinY = Double.POSITIVE_INFINITY;
+	double boxMaxX = Double.NEGATIVE_INFINITY;
+	double boxMaxY = Double.NEGATIVE_INFINITY;
+	for (int k = 0; k < count; k++)
+	{
+	    int e = order[k];
+	    boxMinX = Math.min(boxMinX, minX[e]);
+	    boxMinY = Math.min(boxMinY, minY[e]);
+	    boxMaxX = Math.max(boxMaxX, maxX[e]);
+	    boxMaxY = Math.max(boxMaxY, maxY[e]);
+	    prefixBoxes[4 * (k + 1)] = boxMinX;
+	    prefixBoxes[4 * (k + 1) + 1] = boxMinY;
+	    prefixBoxes[4 * (k + 1) + 2] = boxMaxX;
+	    prefixBoxes[4 * (k + 1) + 3] = boxMaxY;
+	}
+	boxMinX = Double.POSITIVE_INFINITY;
+	boxMinY = Double.POSITIVE_INFINITY;
+	boxMaxX = Double.NEGATIVE_INFINITY;
+	boxMaxY = Double.NEGATIVE_INFINITY;
+	for (int k = count - 1; k >= 0; k--)
+	{
+	    int e = order[k];
+	    boxMinX = Math.min(boxMinX, minX[e]);
+	    boxMinY = Math.min(boxMinY, minY[e]);
+	    boxMaxX = Math.max(boxMaxX, maxX[e]);
+	    boxMaxY = Math.max(boxMaxY, maxY[e]);
+	    suffixBoxes[4 * k] = boxMinX;
+	    suffixBoxes[4 * k + 1] = boxMinY;
+	    suffixBoxes[4 * k + 2] = boxMaxX;
+	    suffixBoxes[4 * k + 3] = boxMaxY;
+	}
+
+	double marginSum = 0;
+	double leastOverlap = Double.POSITIVE_INFINITY;
+	double leastArea = Double.POSITIVE_INFINITY;
+	for (int k = minEntries; k <= count - minEntries; k++)
+	{
+	    double aMinX = prefixBoxes[4 * k];
+	    double aMinY = prefixBoxes[4 * k + 1];
+	    double aMaxX = prefixBoxes[4 * k + 2];
+	    double aMaxY = prefixBoxes[4 * k + 3];
+	    double bMinX = suffixBoxes[4 * k];
+	    double bMinY = suffixBoxes[4 * k + 1];
+	    double bMaxX = suffixBoxes[4 * k + 2];
+	    double bMaxY = suffixBoxes[4 * k + 3];
+
+	    if (margin)
+	    {
+		marginSum +=
+			EnvelopeUtils.margin(aMinX, aMinY, aMaxX, aMaxY)
+				+ EnvelopeUtils.margin(bMinX, bMinY, bMaxX, bMaxY);
+	    }
+	    else
+	    {
+		double overlap =
+			EnvelopeUtils.intersectionArea(aMinX, aMinY, aMaxX, aMaxY, bMinX, bMinY,
+						       bMaxX, bMaxY);
+		double area =
+			EnvelopeUtils.area(aMinX, aMinY, aMaxX, aMaxY)
+				+ EnvelopeUtils.area(bMinX, bMinY, bMaxX, bMaxY);
+		if (overlap < leastOverlap || (overlap == leastOverlap && area < leastArea))
+		{
+		    leastOverlap = overlap;
+		    leastArea = area;
+		    bestSplitIndex = k;
+		}
+	    }
+	}
+	return margin ? marginSum : leastOverlap;
+    }
+}
@@ -18,15 +18,37 @@
 //  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 package geoearth.rtree.structure;
 
+import geoearth.algorithms.sort.IndexSort;
 import geoearth.geometry.utils.EnvelopeUtils;
+import geoearth.rtree.BatchVisitor;
 import geoearth.rtree.IntProcedure;
+import geoearth.rtree.SpatialCursor;
 import geoearth.rtree.SpatialIndex;
+import gnu.trove.TDoubleArrayList;
 import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
 import gnu.trove.TIntObjectHashMap;
-import gnu.trove.TIntProcedure;
 import gnu.trove.TIntStack;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,9 +61,11 @@ import com.vividsolutions.jts.geom.Point;
  * This is a lightweight RTree implementation, specifically designed for the
  * following features (in order of importance):
  * <ul>
- * <li>Fast intersection query performance. To achieve this, the RTree uses only
- * main memory to store entries. Obviously this will only improve performance if
- * there is enough physical memory to avoid paging.</li>
+ * <li>Fast intersection query performance. To achieve this, the RTree uses
+ * main memory to store entries by default. Obviously this will only improve
+ * performance if there is enough physical memory to avoid paging. Trees larger
+ * than memory can keep their nodes in a file instead, read through a buffer
+ * pool (see the Storage property of {@link #init(Properties)}).</li>
  * <li>Low memory requirements.</li>
  * <li>Fast add performance.</li>
  * </ul>
@@ -64,25 +88,123 @@ public class RTree implements SpatialIndex
 
     private static final String version = "1.0b2p1";
 
+    // Log of changes and checkpoints, when the LogFile property is set
+    private TreeLog changeLog = null;
+
     // parameters of the tree
     private static final int DEFAULT_MAX_NODE_ENTRIES = 10;
     int maxNodeEntries = 10;
     int minNodeEntries = 10;
 
-    // Map of NodeID -> Node object
-    // [X] TODO eliminate the this map - it should not be needed
-    // Nodes can be found by traversing the tree.
-    private TIntObjectHashMap nodeMap = new TIntObjectHashMap();
+    // Bulk loading algorithm, BULK_LOAD_NONE or one of those of BulkLoader,
+    // and the packer used by bulkLoad(), addAll() and the BulkLoad property
+    private static final int BULK_LOAD_NONE = 0;
+    private int bulkLoad = BULK_LOAD_NONE;
+    private BulkLoader packer = null;
+
+    // Entries added to an empty tree while bulk loading is enabled. They are
+    // packed into the tree the first time it is queried or modified, under
+    // packLock, so that the first queries may run on several threads even
+    // when Concurrency is None. pendingIds is cleared once they are packed.
+    private TDoubleArrayList pendingMinX = null;
+    private TDoubleArrayList pendingMinY = null;
+    private TDoubleArrayList pendingMaxX = null;
+    private TDoubleArrayList pendingMaxY = null;
+    private volatile TIntArrayList pendingIds = null;
+    private final Object packLock = new Object();
+
+    // Tree variants
+    private static final int TREE_VARIANT_LINEAR = 0;
+    private static final int TREE_VARIANT_QUADRATIC = 1;
+    private static final int TREE_VARIANT_ANGTAN = 2;
+    private static final int TREE_VARIANT_RSTAR = 3;
+    private int treeVariant = TREE_VARIANT_LINEAR;
+
+    // Divides the entries of an overflowing node, chosen by the tree variant
+    private SplitStrategy splitStrategy = null;
+
+    // Fraction of the entries of an overflowing node that the R* variant
+    // removes and reinserts, instead of splitting the node
+    private static final double REINSERT_FRACTION = 0.3;
+
+    // Bit n is set once a node at level n has overflowed during the current
+    // insertion, so that each level reinserts at most once (R* variant)
+    private long overflowedLevels = 0;
+
+    // While addAll() inserts entries, the path from the root to the leaf
+    // chosen for the last entry, as node ids and entry indices
+    private boolean cachePath = false;
+    private int cachedLeafId = -1;
+    private int cachedPathLength = 0;
+    private int[] cachedPathIds = new int[0];
+    private int[] cachedPathEntries = new int[0];
+    // Number of changed nodes at which addAll() writes them back to the node
+    // store, when Storage is OffHeap or Disk
+    private static final int ADD_ALL_FLUSH_NODES = 4096;
+
+    // Entries removed from overflowing nodes, waiting to be reinserted at the
+    // given level (R* variant)
+    private TDoubleArrayList reinsertMinX = new TDoubleArrayList();
+    private TDoubleArrayList reinsertMinY = new TDoubleArrayList();
+    private TDoubleArrayList reinsertMaxX = new TDoubleArrayList();
+    private TDoubleArrayList reinsertMaxY = new TDoubleArrayList();
+    private TIntArrayList reinsertIds = new TIntArrayList();
+    private TIntArrayList reinsertCounts = new TIntArrayList();
+    private TIntArrayList reinsertLevels = new TIntArrayList();
+
+    // The entries of an overflowing node plus the new entry, used by node
+    // splits and R* reinsertion, and the group assigned to each by the split
+    private double[] splitMinX = null;
+    private double[] splitMinY = null;
+    private double[] splitMaxX = null;
+    private double[] splitMaxY = null;
+    private int[] splitIds = null;
+    private int[] splitCounts = null;
+    private int[] splitOrder = null;
+    private int[] splitBuffer = null;
+    private double[] splitKeys = null;
+    private byte[] splitGroups = null;
+
+    // Table of NodeID -> Node object. Node ids are dense, as the ids of
+    // deleted nodes are reused, so the node is found by indexing the array
+    // instead of hashing the id. It grows by doubling, and is null when one of
+    // the stores below is used instead.
+    private Node[] nodes = new Node[0];
+
+    // Persistent map of NodeID -> Node object, used instead of nodes when
+    // Concurrency is Snapshot
+    private NodeTable nodeTable = null;
+
+    // Storage of the nodes outside the heap, used instead of nodes when
+    // Storage is OffHeap or Disk, and the nodes read or created by the change
+    // in progress, which are written back to the store when it ends
+    private NodeStore nodeStore = null;
+    private TIntObjectHashMap dirtyNodes = null;
+
+    // The pages of a tree returned by open(), which its queries read in place
+    // rather than through getNode(), otherwise null
+    private NodePages mappedPages = null;
+
+    // Pool running the tasks of large intersects() queries when QueryThreads
+    // is more than 1, otherwise null
+    private ExecutorService queryExecutor = null;
+    private int queryThreads = 1;
+    // A parallel query is split into this many tasks per thread, so that
+    // threads finishing early can take on more
+    static final int PARALLEL_TASKS_PER_THREAD = 4;
+    // Queries expected to reach fewer leaves than this run on the calling
+    // thread, as they would take less time than handing out tasks
+    private static final int PARALLEL_MIN_LEAVES = 1024;
+    // Idle query threads end after this time
+    private static final int QUERY_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // true for a view returned by snapshot() or a tree returned by open(),
+    // which cannot be modified
+    private boolean readOnly = false;
 
     // internal consistency checking - set to true if debugging tree corruption
     private static final boolean INTERNAL_CONSISTENCY_CHECKING = false;
 
-    // used to mark the status of entries during a node split
-    private static final int ENTRY_STATUS_ASSIGNED = 0;
-    private static final int ENTRY_STATUS_UNASSIGNED = 1;
-    private byte[] entryStatus = null;
-    private byte[] initialEntryStatus = null;
-
     // Stacks used to store nodeId and entry index of each node
     // from the root down to the leaf. Enables fast lookup
     // of nodes when is a split is propagated up the tree.
@@ -93,47 +215,186 @@ public class RTree implements SpatialIndex
     private int treeHeight = 1; // leaves are always level 1
     private int rootNodeId = 0;
     private int size = 0;
+    // Number of changes made to the entries, so that a cursor can detect a
+    // change made while it is open
+    private int modCount = 0;
 
     // Enables creation of new nodes
     private int highestUsedNodeId = rootNodeId;
 
-    // Deleted node objects are retained in the nodeMap,
-    // so that they can be reused. Store the IDs of nodes
-    // which can be reused
-    private TIntStack deletedNodeIds = new TIntStack();
+    // Map of entry ID -> ID of the leaf holding the entry, kept when the
+    // IdIndex property is set so that delete(int) can go straight to the leaf
+    private TIntIntHashMap leafIds = null;
 
-    // List of nearest rectangles. Use a member variable to
-    // avoid recreating the object each time nearest() is called.
-    private TIntArrayList nearestIds = new TIntArrayList();
+    // Store the IDs of deleted nodes, which are reused
+    // before new IDs, so that the node ids stay dense
+    private TIntStack deletedNodeIds = new TIntStack();
 
-    // Inner class used as a bridge between the trove4j TIntProcedure
-    // and the SpatialIndex IntProcedure. This is used because
-    // the nearest rectangles must be stored as they are found, in
-    // case a closer one is found later.
-    // 
-    // A single instance of this class is used to avoid creating a new
-    // one every time nearest() is called.
-    private class TIntProcedureVisit implements TIntProcedure
+    /**
+     * Cursor returned by intersectsCursor(). The search is the depth first
+     * search of intersects(), with the node id and the next entry to test at
+     * each level kept in the cursor so that it can stop when the buffer is
+     * full and carry on from the same place on the next call.
+     */
+    private final class IntersectsCursor implements SpatialCursor
     {
-	public IntProcedure m_intProcedure = null;
+	private final double minX;
+	private final double minY;
+	private final double maxX;
+	private final double maxY;
+	private final int expectedModCount;
 
-	public TIntProcedureVisit()
+	// Node ids and next entry indices from the root down to the node being
+	// searched
+	private int[] pathIds;
+	private int[] pathEntries;
+	private int depth = 0;
+
+	/**
+	 * Called with the read lock held, if any
+	 */
+	IntersectsCursor(double minX, double minY, double maxX, double maxY)
 	{
+	    this.minX = minX;
+	    this.minY = minY;
+	    this.maxX = maxX;
+	    this.maxY = maxY;
+	    expectedModCount = modCount;
+	    pathIds = new int[treeHeight];
+	    pathEntries = new int[treeHeight];
+
+	    Node rootNode = getNode(rootNodeId);
+	    if (rootNode.entryCount > 0
+		    && EnvelopeUtils.intersects(rootNode.mbrMinX, rootNode.mbrMinY,
+						rootNode.mbrMaxX, rootNode.mbrMaxY, minX, minY, maxX,
+						maxY))
+	    {
+		pathIds[0] = rootNodeId;
+		depth = 1;
+	    }
 	}
 
-	public void setProcedure(IntProcedure ip)
+	public int nextBatch(int[] buf)
 	{
-	    m_intProcedure = ip;
+	    if (depth == 0)
+	    {
+		return 0;
+	    }
+
+	    beginRead();
+	    try
+	    {
+		if (modCount != expectedModCount)
+		{
+		    throw new ConcurrentModificationException(
+							      "RTree was changed while a cursor was open");
+		}
+
+		int count = 0;
+		while (depth > 0 && count < buf.length)
+		{
+		    Node n = getNode(pathIds[depth - 1]);
+		    int i = pathEntries[depth - 1];
+		    if (n.isLeaf())
+		    {
+			for (; i < n.entryCount && count < buf.length; i++)
+			{
+			    if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i],
+							 n.minY[i], n.maxX[i], n.maxY[i]))
+			    {
+				buf[count++] = n.ids[i];
+			    }
+			}
+		    }
+		    else
+		    {
+			while (i < n.entryCount
+				&& !EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i],
+							     n.minY[i], n.maxX[i], n.maxY[i]))
+			{
+			    i++;
+			}
+			if (i < n.entryCount)
+			{
+			    // Search the child, and carry on after it when it has
+			    // been searched
+			    pathEntries[depth - 1] = i + 1;
+			    pathIds[depth] = n.ids[i];
+			    pathEntries[depth] = 0;
+			    depth++;
+			    continue;
+			}
+		    }
+
+		    if (i < n.entryCount)
+		    {
+			pathEntries[depth - 1] = i;
+		    }
+		    else
+		    {
+			depth--;
+		    }
+		}
+		return count;
+	    }
+	    finally
+	    {
+		endRead();
+	    }
 	}
+    }
 
-	public boolean execute(int i)
+    // Traversal state of the query methods. Each thread has its own, so that
+    // queries can run concurrently; add() and delete() use the member stacks
+    // above, as only one of them runs at a time. Reused to avoid recreating
+    // the objects on every query. A query made by the IntProcedure of another
+    // query on the same thread works above the state of the outer one, or
+    // creates its own, so that the outer query is not disturbed. The class is
+    // static, as the state left with long-lived threads such as the query
+    // threads must not keep the tree from being collected.
+    private static class QueryContext
+    {
+	// Stacks of node ids and entry indices from the root down to the
+	// node being searched by contains()
+	TIntStack parents = new TIntStack();
+	TIntStack parentsEntry = new TIntStack();
+
+	// Stack of the ids of nodes still to be searched by intersects()
+	TIntStack nodeIds = new TIntStack();
+
+	// Stack of the nodes still to be searched by intersectsBatch(), each
+	// pushed with the start and length of the list of its queries in
+	// batchQueries. The lists are freed in stack order.
+	TIntStack batchNodes = new TIntStack();
+	int[] batchQueries = new int[0];
+
+	// List of nearest rectangles found by nearest(). The nearest
+	// rectangles must be stored as they are found, in case a closer one is
+	// found later.
+	TIntArrayList nearestIds = new TIntArrayList();
+
+	// Stack of the nodes still to be searched by nearest(), with the
+	// distance of each from the query point
+	TIntStack nearestNodes = new TIntStack();
+	TDoubleArrayList nearestNodeDistancesSq = new TDoubleArrayList();
+
+	// Queue of nodes and entries still to be visited by nearestN(),
+	// nearest first
+	DistanceQueue nearestQueue = new DistanceQueue();
+    }
+
+    private ThreadLocal<QueryContext> queryContext = new ThreadLocal<QueryContext>()
+    {
+	@Override
+	protected QueryContext initialValue()
 	{
-	    m_intProcedure.execute(i);
-	    return true;
+	    return new QueryContext();
 	}
     };
 
-    private TIntProcedureVisit visitProc = new TIntProcedureVisit();
+    // Lock guarding the tree when Concurrency is ReadWrite or Snapshot,
+    // otherwise null
+    private ReentrantReadWriteLock lock = null;
 
     /**
      * Constructor. Use init() method to initialize the parameters of the RTree
@@ -143,14 +404,83 @@ public class RTree implements SpatialIndex
 	return; // NOP
     }
 
+    /**
+     * Create a new RTree containing the given entries, packed using the
+     * algorithm named by the BulkLoad property: Sort-Tile-Recursive (STR, the
+     * default) or Hilbert.
+     * <p>
+     * Packing fills every node to MaxNodeEntries (apart from the last node of
+     * each level) and runs in O(n log n), which is far faster than calling
+     * add() for each entry. The result is a normal RTree, so entries can still
+     * be added and deleted afterwards.
+     * </p>
+     * 
+     * @param props
+     *            Properties used to initialize the RTree, see
+     *            {@link #init(Properties)}
+     * @param envs
+     *            Envelopes of the entries
+     * @param ids
+     *            IDs of the entries
+     * @return RTree containing all of the entries
+     */
+    public static RTree bulkLoad(Properties props, Envelope[] envs, int[] ids)
+    {
+	int count = envs.length;
+	double[] minX = new double[count];
+	double[] minY = new double[count];
+	double[] maxX = new double[count];
+	double[] maxY = new double[count];
+	for (int i = 0; i < count; i++)
+	{
+	    minX[i] = envs[i].getMinX();
+	    minY[i] = envs[i].getMinY();
+	    maxX[i] = envs[i].getMaxX();
+	    maxY[i] = envs[i].getMaxY();
+	}
+	return bulkLoad(props, minX, minY, maxX, maxY, ids, count);
+    }
+
+    /**
+     * Create a new RTree containing the given entries, packed using the
+     * algorithm named by the BulkLoad property.
+     * 
+     * @param props
+     *            Properties used to initialize the RTree, see
+     *            {@link #init(Properties)}
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Coordinates of the entries
+     * @param ids
+     *            IDs of the entries
+     * @param count
+     *            Number of entries to load from the arrays
+     * @return RTree containing all of the entries
+     * @see #bulkLoad(Properties, Envelope[], int[])
+     */
+    public static RTree bulkLoad(Properties props, double[] minX, double[] minY, double[] maxX,
+	    double[] maxY, int[] ids, int count)
+    {
+	RTree tree = new RTree();
+	tree.init(props);
+	int method = (tree.bulkLoad == BULK_LOAD_NONE) ? BulkLoader.STR : tree.bulkLoad;
+	// Entries are packed immediately, so nothing is buffered
+	tree.pendingIds = null;
+	tree.pack(method, minX, minY, maxX, maxY, ids, count);
+	tree.size = count;
+	return tree;
+    }
+
     // -------------------------------------------------------------------------
     // public implementation of SpatialIndex interface:
     // init(Properties)
-    // add(Rectangle, int)
-    // delete(Rectangle, int)
-    // nearest(Point, IntProcedure, float)
-    // intersects(Rectangle, IntProcedure)
-    // contains(Rectangle, IntProcedure)
+    // add(Rectangle, int) and add(double, double, double, double, int)
+    // delete(Rectangle, int) and delete(double, double, double, double, int)
+    // nearest(Point, IntProcedure, float) and nearest(double, double, ...)
+    // intersects(Rectangle, IntProcedure) and intersects(double, ...)
+    // contains(Rectangle, IntProcedure) and contains(double, ...)
     // size()
     // -------------------------------------------------------------------------
 
@@ -165,6 +495,77 @@ public class RTree implements SpatialIndex
      * <li>MinNodeEntries</li> This specifies the minimum number of entries in a
      * node. The default value is half of the MaxNodeEntries value (rounded
      * down), which is used if the property is not specified or is less than 1.
+     * <li>BulkLoad</li> One of None, STR or Hilbert. When set to STR or Hilbert,
+     * entries added to the empty tree are buffered and packed into the tree
+     * with that algorithm the first time the tree is queried or an entry is
+     * deleted; later entries are inserted normally. Packing is done under a
+     * lock, so queries that start together on several threads wait for it
+     * and then see the packed tree, whatever the Concurrency property. The
+     * default is None. The
+     * same property selects the algorithm used by
+     * {@link #bulkLoad(Properties, Envelope[], int[])}, which defaults to STR.
+     * <li>BulkLoadThreads</li> Number of threads used to pack the tree. With
+     * more than 1, the sorts and the filling of the nodes of each large level
+     * are shared between that many threads; the tree is the same as when
+     * packed by one thread. The default is 1.
+     * <li>TreeVariant</li> Linear or Quadratic, for Guttman's linear or
+     * quadratic split, AngTan, for Ang and Tan's linear split, or Rstar, for the
+     * R*-tree insertion algorithm (overlap minimising choice of leaf, margin
+     * based split and forced reinsertion). See {@link SplitStrategy}. The
+     * default is Linear.
+     * <li>Concurrency</li> None or ReadWrite. Queries keep their traversal state
+     * per thread, so any number of threads may query a tree that is not being
+     * modified. With ReadWrite, queries share a read lock and add() and
+     * delete() take a write lock, so queries can run on many threads while
+     * another thread modifies the tree. Snapshot locks in the same way, and
+     * in addition never changes a node that may be visible to a view returned
+     * by {@link #snapshot()}; changed nodes are copied instead, so views can be
+     * queried without locking. The default is None, which leaves locking to
+     * the caller, apart from the packing of the entries buffered by BulkLoad.
+     * <li>Storage</li> Heap, OffHeap or Disk. With OffHeap the nodes are kept in
+     * pages in direct buffers outside the Java heap, so the heap used by the
+     * tree stays small however many entries it holds and does not lengthen
+     * full garbage collections. Queries copy each node they visit from its
+     * page into a short lived Node, so they are slower than with Heap.
+     * With Disk the nodes are kept in pages in a file, read through a buffer
+     * pool of a fixed number of pages, so that a tree larger than memory can
+     * be used; see {@link #getPageHits()}. OffHeap and Disk cannot be combined
+     * with Concurrency Snapshot. The default is Heap.
+     * <li>StorageFile</li> File holding the pages when Storage is Disk. Any
+     * existing contents are discarded. The default is a temporary file, which
+     * is deleted when the tree is closed or the JVM exits.
+     * <li>BufferPoolPages</li> Number of pages held in memory when Storage is
+     * Disk. The default is 1024.
+     * <li>BufferPoolEviction</li> LRU or Clock, the policy choosing the page
+     * to evict from the buffer pool when Storage is Disk. The default is LRU.
+     * <li>LogFile</li> File to which every add() and delete() is logged before
+     * it returns, so that the tree can be recovered after a crash by calling
+     * init() again with the same properties: the last checkpoint is loaded and
+     * the changes logged after it are replayed. Not set by default, which
+     * disables logging.
+     * <li>LogGroupCommit</li> Number of logged changes that are written to disk
+     * together. With the default of 1, each change is on disk when add() or
+     * delete() returns, and changes made on several threads at once share a
+     * disk write. A larger value writes less often, but a crash loses the
+     * changes not yet written; {@link #sync()} writes them at once.
+     * <li>CheckpointFile</li> File to which {@link #checkpoint()} writes the
+     * tree, in the format of {@link #save(File)}. The default is the LogFile
+     * name followed by ".checkpoint".
+     * <li>CheckpointRecords</li> Number of logged changes after which a
+     * checkpoint is written and the log emptied, which bounds the time taken
+     * to replay the log. The default is 100000; 0 only writes checkpoints when
+     * checkpoint() is called.
+     * <li>QueryThreads</li> Number of threads an intersects() query may use.
+     * With more than 1, the subtrees reached by a large query are searched by
+     * a pool of that many threads, each collecting the ids it finds, and the
+     * ids are passed to the IntProcedure on the calling thread in the same
+     * order as by a single thread. Queries reaching few leaves run on the
+     * calling thread. The default is 1.
+     * <li>IdIndex</li> true to keep a map from the id of each entry to the
+     * leaf holding it, so that {@link #delete(int)} can delete an entry given
+     * only its id. The map costs memory and time on every change that moves
+     * entries between leaves. The ids of the entries must then be unique. The
+     * default is false.
      * </ul>
      * </p>
      * 
@@ -172,6 +573,14 @@ public class RTree implements SpatialIndex
      */
     public void init(Properties props)
     {
+	if (readOnly)
+	{
+	    throw new UnsupportedOperationException("A read-only RTree cannot be modified");
+	}
+
+	// Release the storage and log of any earlier init()
+	closeFiles();
+
 	maxNodeEntries = Integer.parseInt(props.getProperty("MaxNodeEntries", "0"));
 	minNodeEntries = Integer.parseInt(props.getProperty("MinNodeEntries", "0"));
 
@@ -193,726 +602,2903 @@ public class RTree implements SpatialIndex
 	    minNodeEntries = maxNodeEntries / 2;
 	}
 
-	entryStatus = new byte[maxNodeEntries];
-	initialEntryStatus = new byte[maxNodeEntries];
+	int splitCapacity = maxNodeEntries + 1;
+	splitMinX = new double[splitCapacity];
+	splitMinY = new double[splitCapacity];
+	splitMaxX = new double[splitCapacity];
+	splitMaxY = new double[splitCapacity];
+	splitIds = new int[splitCapacity];
+	splitCounts = new int[splitCapacity];
+	splitOrder = new int[splitCapacity];
+	splitBuffer = new int[splitCapacity];
+	splitKeys = new double[splitCapacity];
+	splitGroups = new byte[splitCapacity];
+
+	String treeVariantProperty = props.getProperty("TreeVariant", "Linear");
+	if (treeVariantProperty.equalsIgnoreCase("Quadratic"))
+	{
+	    treeVariant = TREE_VARIANT_QUADRATIC;
+	    splitStrategy = new QuadraticSplit();
+	}
+	else if (treeVariantProperty.equalsIgnoreCase("AngTan"))
+	{
+	    treeVariant = TREE_VARIANT_ANGTAN;
+	    splitStrategy = new AngTanSplit();
+	}
+	else if (treeVariantProperty.equalsIgnoreCase("Rstar"))
+	{
+	    treeVariant = TREE_VARIANT_RSTAR;
+	    splitStrategy = new RStarSplit();
+	}
+	else
+	{
+	    if (!treeVariantProperty.equalsIgnoreCase("Linear"))
+	    {
+		log.error("Property key TreeVariant: invalid value {} , defaulting to Linear",
+			  treeVariantProperty);
+	    }
+	    treeVariant = TREE_VARIANT_LINEAR;
+	    splitStrategy = new LinearSplit();
+	}
+
+	String bulkLoadProperty = props.getProperty("BulkLoad", "None");
+	if (bulkLoadProperty.equalsIgnoreCase("STR"))
+	{
+	    bulkLoad = BulkLoader.STR;
+	}
+	else if (bulkLoadProperty.equalsIgnoreCase("Hilbert"))
+	{
+	    bulkLoad = BulkLoader.HILBERT;
+	}
+	else
+	{
+	    if (!bulkLoadProperty.equalsIgnoreCase("None"))
+	    {
+		log.error("Property key BulkLoad: invalid value {} , defaulting to None",
+			  bulkLoadProperty);
+	    }
+	    bulkLoad = BULK_LOAD_NONE;
+	}
+
+	int bulkLoadThreads = Integer.parseInt(props.getProperty("BulkLoadThreads", "1"));
+	if (bulkLoadThreads < 1)
+	{
+	    log.error("Property key BulkLoadThreads: invalid value {} , defaulting to 1",
+		      bulkLoadThreads);
+	    bulkLoadThreads = 1;
+	}
+	packer = new BulkLoader(maxNodeEntries, minNodeEntries, bulkLoadThreads);
+
+	String concurrencyProperty = props.getProperty("Concurrency", "None");
+	if (concurrencyProperty.equalsIgnoreCase("ReadWrite"))
+	{
+	    lock = new ReentrantReadWriteLock();
+	}
+	else if (concurrencyProperty.equalsIgnoreCase("Snapshot"))
+	{
+	    lock = new ReentrantReadWriteLock();
+	    nodeTable = new NodeTable();
+	    nodes = null;
+	}
+	else
+	{
+	    if (!concurrencyProperty.equalsIgnoreCase("None"))
+	    {
+		log.error("Property key Concurrency: invalid value {} , defaulting to None",
+			  concurrencyProperty);
+	    }
+	    lock = null;
+	}
+
+	String storageProperty = props.getProperty("Storage", "Heap");
+	if (!storageProperty.equalsIgnoreCase("Heap") && nodeTable != null)
+	{
+	    log.error("Property key Storage: {} cannot be used with Concurrency Snapshot , defaulting to Heap",
+		      storageProperty);
+	}
+	else if (storageProperty.equalsIgnoreCase("OffHeap"))
+	{
+	    nodeStore = new NodePages(maxNodeEntries);
+	}
+	else if (storageProperty.equalsIgnoreCase("Disk"))
+	{
+	    nodeStore = createPagedNodeStore(props);
+	}
+	else if (!storageProperty.equalsIgnoreCase("Heap"))
+	{
+	    log.error("Property key Storage: invalid value {} , defaulting to Heap",
+		      storageProperty);
+	}
+	if (nodeStore != null)
+	{
+	    dirtyNodes = new TIntObjectHashMap();
+	    nodes = null;
+	}
+
+	if (bulkLoad != BULK_LOAD_NONE)
+	{
+	    pendingMinX = new TDoubleArrayList();
+	    pendingMinY = new TDoubleArrayList();
+	    pendingMaxX = new TDoubleArrayList();
+	    pendingMaxY = new TDoubleArrayList();
+	    pendingIds = new TIntArrayList();
+	}
+
+	if (Boolean.valueOf(props.getProperty("IdIndex", "false")).booleanValue())
+	{
+	    leafIds = new TIntIntHashMap();
+	}
 
-	for (int i = 0; i < maxNodeEntries; i++)
+	queryThreads = Integer.parseInt(props.getProperty("QueryThreads", "1"));
+	if (queryThreads < 1)
+	{
+	    log.error("Property key QueryThreads: invalid value {} , defaulting to 1",
+		      queryThreads);
+	    queryThreads = 1;
+	}
+	if (queryThreads > 1)
 	{
-	    initialEntryStatus[i] = ENTRY_STATUS_UNASSIGNED;
+	    queryExecutor = createThreadPool(queryThreads, "RTree query");
 	}
 
 	Node root = new Node(rootNodeId, 1, maxNodeEntries);
-	nodeMap.put(rootNodeId, root);
+	putNode(root);
+	flushNodes();
+
+	String logFileName = props.getProperty("LogFile");
+	if (logFileName != null)
+	{
+	    openLog(props, logFileName);
+	}
 
 	log.info("init() MaxNodeEntries = {}, MinNodeEntries = {}", maxNodeEntries, minNodeEntries);
     }
 
-    @Override
-    public void add(Envelope env, int id)
+    /**
+     * Create a pool running the tasks of parallel queries or packing. Its
+     * threads are daemons, and end when idle, so the pool needs no shutdown.
+     * 
+     * @param threads
+     *            Number of threads
+     * @param name
+     *            Name of the threads
+     * @return the pool
+     */
+    static ExecutorService createThreadPool(int threads, final String name)
     {
-	log.debug("Adding envelope {}, id {}", env, id);
-	add(new Envelope(env), id, 1);
-
-	size++;
+	ThreadPoolExecutor executor =
+		new ThreadPoolExecutor(threads, threads, QUERY_THREAD_KEEP_ALIVE_SECONDS,
+				       TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				       new ThreadFactory()
+				       {
+					   public Thread newThread(Runnable r)
+					   {
+					       Thread t = new Thread(r, name);
+					       t.setDaemon(true);
+					       return t;
+					   }
+				       });
+	executor.allowCoreThreadTimeOut(true);
+	return executor;
     }
 
     /**
-     * Adds a new entry at a specified level in the tree
+     * Create the store of a tree whose Storage property is Disk
      * 
-     * @param env
-     *            Envelope to add
-     * @param id
-     *            ID of the Envelope
-     * @param level
-     *            Level at which the entry should be added to the tree
+     * @param props
+     *            Properties passed to init()
+     * @return the store
      */
-    private void add(Envelope env, int id, int level)
+    private PagedNodeStore createPagedNodeStore(Properties props)
     {
-	// Step 1: Find position for new record]
-	// Invoke ChooseLeaf to select a leaf node L
-	// in which to place env
-	Node n = chooseNode(env, level);
-	Node newLeaf = null;
+	int poolPages = Integer.parseInt(props.getProperty("BufferPoolPages", "1024"));
+	if (poolPages < 1)
+	{
+	    log.error("Property key BufferPoolPages: invalid value {} , defaulting to 1024",
+		      poolPages);
+	    poolPages = 1024;
+	}
 
-	// Step 2: Add record to leaf node
-	// If n has room for another entry, install Entry
-	// Otherwise invoke SplitNode to obtain newLeaf
-	// containing Entry and all the old entries of n
-	if (n.entryCount < maxNodeEntries)
+	int eviction;
+	String evictionProperty = props.getProperty("BufferPoolEviction", "LRU");
+	if (evictionProperty.equalsIgnoreCase("Clock"))
 	{
-	    n.addEntryNoCopy(env, id);
+	    eviction = PagedNodeStore.EVICTION_CLOCK;
 	}
 	else
 	{
-	    newLeaf = splitNode(n, env, id);
+	    if (!evictionProperty.equalsIgnoreCase("LRU"))
+	    {
+		log.error("Property key BufferPoolEviction: invalid value {} , defaulting to LRU",
+			  evictionProperty);
+	    }
+	    eviction = PagedNodeStore.EVICTION_LRU;
 	}
 
-	// Step 3: Propagate changes up the tree
-	// Invoke AdjustTree on n, passing newLeaf
-	// if a split was performed
-	Node newNode = adjustTree(n, newLeaf);
-
-	// Step 4: Grow tree taller
-	// If node split propagation cause the root to split,
-	// create a new root whose children are the two resulting nodes.
-	if (newNode != null)
+	String fileName = props.getProperty("StorageFile");
+	try
 	{
-	    int oldRootNodeId = rootNodeId;
-	    Node oldRoot = getNode(oldRootNodeId);
-
-	    rootNodeId = getNextNodeId();
-	    treeHeight++;
-	    Node root = new Node(rootNodeId, treeHeight, maxNodeEntries);
-	    root.addEntry(newNode.minBoundingBox, newNode.nodeId);
-	    root.addEntry(oldRoot.minBoundingBox, oldRoot.nodeId);
-	    nodeMap.put(rootNodeId, root);
+	    File file;
+	    if (fileName != null)
+	    {
+		file = new File(fileName);
+	    }
+	    else
+	    {
+		file = File.createTempFile("rtree", ".pages");
+		file.deleteOnExit();
+	    }
+	    return new PagedNodeStore(file, maxNodeEntries, poolPages, eviction, fileName == null);
 	}
-
-	if (INTERNAL_CONSISTENCY_CHECKING)
+	catch (IOException e)
 	{
-	    checkConsistency(rootNodeId, treeHeight, null);
+	    throw new IllegalStateException("Cannot create the RTree storage file", e);
 	}
     }
 
-    @Override
-    public boolean delete(Envelope en, int id)
+    /**
+     * Load the last checkpoint and replay the log written after it, then
+     * start logging changes
+     * 
+     * @param props
+     *            Properties passed to init()
+     * @param logFileName
+     *            Value of the LogFile property
+     */
+    private void openLog(Properties props, String logFileName)
     {
-	// FindLeaf algorithm inlined here. Note the "official" algorithm
-	// searches all overlapping entries. This seemed inefficient,
-	// as an entry is only worth searching if it contains (NOT overlaps)
-	// the envelope we are searching for.
-	// 
-	// Also the algorithm has be changed so it is not recursive
+	int groupCommit = Integer.parseInt(props.getProperty("LogGroupCommit", "1"));
+	if (groupCommit < 1)
+	{
+	    log.error("Property key LogGroupCommit: invalid value {} , defaulting to 1",
+		      groupCommit);
+	    groupCommit = 1;
+	}
+	int checkpointRecords =
+		Integer.parseInt(props.getProperty("CheckpointRecords", "100000"));
+	if (checkpointRecords < 0)
+	{
+	    log.error("Property key CheckpointRecords: invalid value {} , defaulting to 100000",
+		      checkpointRecords);
+	    checkpointRecords = 100000;
+	}
+	File checkpointFile =
+		new File(props.getProperty("CheckpointFile", logFileName + ".checkpoint"));
 
-	// Algorithm: Search subtrees
-	// If root is not a leaf, check each entry
-	// to determine if it contains env.
-	// For each entry found invoke findLeaf
-	// on the node pointed to by the entry,
-	// until r is found or all entries have been checked.
-	parents.clear();
-	parents.push(rootNodeId);
+	// Replay through the public methods, before changeLog is set so that
+	// the changes are not logged again
+	TreeLog.Tree tree = new TreeLog.Tree()
+	{
+	    public void add(double minX, double minY, double maxX, double maxY, int id)
+	    {
+		RTree.this.add(minX, minY, maxX, maxY, id);
+	    }
 
-	parentsEntry.clear();
-	parentsEntry.push(-1);
-	Node n = null;
-	// index of entry to be deleted in leaf
-	int foundIndex = -1;
+	    public void delete(double minX, double minY, double maxX, double maxY, int id)
+	    {
+		RTree.this.delete(minX, minY, maxX, maxY, id);
+	    }
 
-	while (foundIndex == -1 && parents.size() > 0)
-	{
-	    n = getNode(parents.peek());
-	    int startIndex = parentsEntry.peek() + 1;
+	    public long load(File file) throws IOException
+	    {
+		return RTree.this.load(file);
+	    }
 
-	    if (!n.isLeaf())
+	    public void write(File file, long generation) throws IOException
 	    {
-		deleteLog.debug("Searching node {} , from index {}", n.nodeId, startIndex);
-		boolean contains = false;
-		for (int i = startIndex; i < n.entryCount; i++)
-		{
-		    if (n.entries[i].contains(en))
-		    {
-			parents.push(n.ids[i]);
-			parentsEntry.pop();
-			// This becomes the start index when the child has been
-			// searched
-			parentsEntry.push(i);
-			parentsEntry.push(-1);
-			contains = true;
-			break; // goto the next iteration of while
-		    }
-		}
-		if (contains)
-		{
-		    continue;
-		}
-		foundIndex = n.findEntry(en, id);
-		parents.pop();
-		parentsEntry.pop();
+		loadPending();
+		RTree.this.write(file, generation, true);
 	    }
+	};
+	try
+	{
+	    changeLog =
+		    new TreeLog(new File(logFileName), checkpointFile, groupCommit,
+				checkpointRecords, tree);
+	}
+	catch (IOException e)
+	{
+	    throw new IllegalStateException("Cannot recover the RTree from log " + logFileName, e);
 	}
+	log.info("Recovered {} entries from log {}", size, logFileName);
+    }
 
-	if (foundIndex != -1)
+    /**
+     * Log a change. The caller holds the write lock, if any.
+     * 
+     * @param type
+     *            WriteAheadLog.ADD or WriteAheadLog.DELETE
+     * @return LSN to pass to commitLog(), or 0 if logging is disabled
+     */
+    private long logChange(byte type, double minX, double minY, double maxX, double maxY, int id)
+    {
+	if (changeLog == null)
 	{
-	    n.deleteEntry(foundIndex, minNodeEntries);
-	    condenseTree(n);
-	    size--;
+	    return 0;
 	}
+	return changeLog.append(type, minX, minY, maxX, maxY, id);
+    }
 
-	// Shrink the tree if possible (i.e. if root node has exactly one entry,
+    /**
+     * Log the entries added by addAll(). The caller holds the write lock, if
+     * any.
+     * 
+     * @return LSN of the last entry, to pass to commitLog(), or 0 if logging
+     *         is disabled
+     */
+    private long logBatch(double[] minX, double[] minY, double[] maxX, double[] maxY,
+	    int[] ids, int count)
+    {
+	if (changeLog == null)
+	{
+	    return 0;
+	}
+	return changeLog.appendBatch(minX, minY, maxX, maxY, ids, count);
+    }
+
+    /**
+     * Make a logged change durable, together with any other changes logged
+     * since the last disk write if LogGroupCommit allows. Called after the
+     * write lock is released, so that other threads can log changes that the
+     * same disk write makes durable.
+     * 
+     * @param lsn
+     *            Value returned by logChange()
+     */
+    private void commitLog(long lsn)
+    {
+	if (lsn == 0)
+	{
+	    return;
+	}
+	try
+	{
+	    changeLog.commit(lsn);
+	}
+	catch (IOException e)
+	{
+	    throw new IllegalStateException("Cannot write the RTree log", e);
+	}
+    }
+
+    @Override
+    public void add(Envelope env, int id)
+    {
+	add(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
+    }
+
+    @Override
+    public void add(double minX, double minY, double maxX, double maxY, int id)
+    {
+	long lsn = 0;
+	beginWrite();
+	try
+	{
+	    if (log.isDebugEnabled())
+	    {
+		log.debug("Adding envelope {}, id {}", new Envelope(minX, maxX, minY, maxY), id);
+	    }
+	    if (pendingIds != null)
+	    {
+		pendingMinX.add(minX);
+		pendingMinY.add(minY);
+		pendingMaxX.add(maxX);
+		pendingMaxY.add(maxY);
+		pendingIds.add(id);
+	    }
+	    else
+	    {
+		overflowedLevels = 0;
+		add(minX, minY, maxX, maxY, id, 1, 1);
+		reinsertQueued();
+	    }
+
+	    size++;
+	    modCount++;
+	    lsn = logChange(WriteAheadLog.ADD, minX, minY, maxX, maxY, id);
+	}
+	finally
+	{
+	    endWrite();
+	}
+	commitLog(lsn);
+    }
+
+    /**
+     * Add many entries at once. Much faster than calling add() for each:
+     * <ul>
+     * <li>If the tree is empty, the entries are packed with the algorithm named
+     * by the BulkLoad property (STR if it is None), as by
+     * {@link #bulkLoad(Properties, double[], double[], double[], double[], int[], int)}
+     * .</li>
+     * <li>Otherwise they are inserted in Hilbert curve order of their centres,
+     * so that consecutive entries usually go to the same part of the tree.
+     * The path to the leaf of the previous entry is kept, and the search for
+     * the leaf of the next entry starts from the lowest node on it that
+     * already covers the entry, rather than from the root.</li>
+     * </ul>
+     * The write lock, if any, is taken once for the whole batch.
+     * 
+     * @param coords
+     *            Coordinates of the entries, four per entry in the order
+     *            minX, minY, maxX, maxY
+     * @param ids
+     *            IDs of the entries
+     * @param count
+     *            Number of entries to add from the arrays
+     */
+    public void addAll(double[] coords, int[] ids, int count)
+    {
+	double[] minX = new double[count];
+	double[] minY = new double[count];
+	double[] maxX = new double[count];
+	double[] maxY = new double[count];
+	for (int i = 0; i < count; i++)
+	{
+	    minX[i] = coords[4 * i];
+	    minY[i] = coords[4 * i + 1];
+	    maxX[i] = coords[4 * i + 2];
+	    maxY[i] = coords[4 * i + 3];
+	}
+	addAll(minX, minY, maxX, maxY, ids, count);
+    }
+
+    /**
+     * Add many entries at once
+     * 
+     * @param envs
+     *            Envelopes of the entries
+     * @param ids
+     *            IDs of the entries
+     * @see #addAll(double[], int[], int)
+     */
+    public void addAll(Envelope[] envs, int[] ids)
+    {
+	int count = envs.length;
+	double[] minX = new double[count];
+	double[] minY = new double[count];
+	double[] maxX = new double[count];
+	double[] maxY = new double[count];
+	for (int i = 0; i < count; i++)
+	{
+	    minX[i] = envs[i].getMinX();
+	    minY[i] = envs[i].getMinY();
+	    maxX[i] = envs[i].getMaxX();
+	    maxY[i] = envs[i].getMaxY();
+	}
+	addAll(minX, minY, maxX, maxY, ids, count);
+    }
+
+    /**
+     * Add many entries at once
+     * 
+     * @see #addAll(double[], int[], int)
+     */
+    private void addAll(double[] minX, double[] minY, double[] maxX, double[] maxY, int[] ids,
+	    int count)
+    {
+	long lsn = 0;
+	beginWrite();
+	try
+	{
+	    if (pendingIds != null)
+	    {
+		for (int i = 0; i < count; i++)
+		{
+		    pendingMinX.add(minX[i]);
+		    pendingMinY.add(minY[i]);
+		    pendingMaxX.add(maxX[i]);
+		    pendingMaxY.add(maxY[i]);
+		    pendingIds.add(ids[i]);
+		}
+	    }
+	    else if (size == 0 && count > 0)
+	    {
+		pack((bulkLoad == BULK_LOAD_NONE) ? BulkLoader.STR : bulkLoad, minX, minY, maxX,
+		     maxY, ids, count);
+	    }
+	    else
+	    {
+		int[] order = packer.hilbertOrder(minX, minY, maxX, maxY, count);
+		cachePath = true;
+		try
+		{
+		    for (int i = 0; i < count; i++)
+		    {
+			int e = order[i];
+			overflowedLevels = 0;
+			add(minX[e], minY[e], maxX[e], maxY[e], ids[e], 1, 1);
+			reinsertQueued();
+			if (nodeStore != null && dirtyNodes.size() >= ADD_ALL_FLUSH_NODES)
+			{
+			    flushNodes();
+			}
+		    }
+		}
+		finally
+		{
+		    cachePath = false;
+		    cachedLeafId = -1;
+		}
+	    }
+
+	    size += count;
+	    modCount++;
+	    lsn = logBatch(minX, minY, maxX, maxY, ids, count);
+	}
+	finally
+	{
+	    endWrite();
+	}
+	commitLog(lsn);
+    }
+
+    /**
+     * Adds a new entry at a specified level in the tree
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Envelope to add
+     * @param id
+     *            ID of the Envelope
+     * @param count
+     *            Number of leaf entries below the entry: 1 for a leaf entry,
+     *            the size of the subtree for an entry of a higher level
+     * @param level
+     *            Level at which the entry should be added to the tree
+     */
+    private void add(double minX, double minY, double maxX, double maxY, int id, int count,
+	    int level)
+    {
+	// Step 1: Find position for new record]
+	// Invoke ChooseLeaf to select a leaf node L
+	// in which to place env
+	Node n = writableNode(chooseNode(minX, minY, maxX, maxY, level));
+	Node newLeaf = null;
+	if (leafIds != null && level == 1)
+	{
+	    // Corrected by splitNode() if the entry moves to the new node, and
+	    // by its reinsertion if it is queued
+	    leafIds.put(id, n.nodeId);
+	}
+
+	// Step 2: Add record to leaf node
+	// If n has room for another entry, install Entry
+	// Otherwise invoke SplitNode to obtain newLeaf
+	// containing Entry and all the old entries of n
+	if (n.entryCount < maxNodeEntries)
+	{
+	    n.addEntry(minX, minY, maxX, maxY, id, count);
+	}
+	else if (!queueReinsert(n, minX, minY, maxX, maxY, id, count))
+	{
+	    newLeaf = splitNode(n, minX, minY, maxX, maxY, id, count);
+	}
+
+	// Step 3: Propagate changes up the tree
+	// Invoke AdjustTree on n, passing newLeaf
+	// if a split was performed
+	Node newNode = adjustTree(n, newLeaf);
+
+	// Step 4: Grow tree taller
+	// If node split propagation cause the root to split,
+	// create a new root whose children are the two resulting nodes.
+	if (newNode != null)
+	{
+	    int oldRootNodeId = rootNodeId;
+	    Node oldRoot = getNode(oldRootNodeId);
+
+	    rootNodeId = getNextNodeId();
+	    treeHeight++;
+	    Node root = new Node(rootNodeId, treeHeight, maxNodeEntries);
+	    root.addEntry(newNode.mbrMinX, newNode.mbrMinY, newNode.mbrMaxX, newNode.mbrMaxY,
+			  newNode.nodeId, newNode.subtreeCount());
+	    root.addEntry(oldRoot.mbrMinX, oldRoot.mbrMinY, oldRoot.mbrMaxX, oldRoot.mbrMaxY,
+			  oldRoot.nodeId, oldRoot.subtreeCount());
+	    putNode(root);
+	}
+
+	if (INTERNAL_CONSISTENCY_CHECKING)
+	{
+	    checkConsistency(rootNodeId, treeHeight, null);
+	}
+    }
+
+    @Override
+    public boolean delete(Envelope en, int id)
+    {
+	return delete(en.getMinX(), en.getMinY(), en.getMaxX(), en.getMaxY(), id);
+    }
+
+    @Override
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id)
+    {
+	boolean deleted = false;
+	long lsn = 0;
+	beginWrite();
+	try
+	{
+	    deleted = deleteEntry(minX, minY, maxX, maxY, id);
+	    if (deleted)
+	    {
+		lsn = logChange(WriteAheadLog.DELETE, minX, minY, maxX, maxY, id);
+	    }
+	}
+	finally
+	{
+	    endWrite();
+	}
+	commitLog(lsn);
+	return deleted;
+    }
+
+    /**
+     * Delete the entry with the given id, without knowing its envelope. The
+     * entry is found through the map kept when the IdIndex property is set, so
+     * only the leaf holding it and the nodes above it are read, rather than
+     * every subtree that could contain it.
+     * 
+     * @param id
+     *            ID of the entry
+     * @return true if the entry was found and deleted
+     * @throws IllegalStateException
+     *             if the IdIndex property is not set
+     */
+    public boolean delete(int id)
+    {
+	boolean deleted = false;
+	long lsn = 0;
+	beginWrite();
+	try
+	{
+	    if (leafIds == null)
+	    {
+		throw new IllegalStateException("delete(int) requires the IdIndex property");
+	    }
+	    loadPending();
+	    if (leafIds.containsKey(id))
+	    {
+		Node leaf = getNode(leafIds.get(id));
+		int index = leaf.findEntry(id);
+		if (index == -1 || !findParents(leaf))
+		{
+		    throw new IllegalStateException("Entry " + id + " is not in leaf " + leaf.nodeId
+			    + " given by the id index");
+		}
+		double minX = leaf.minX[index];
+		double minY = leaf.minY[index];
+		double maxX = leaf.maxX[index];
+		double maxY = leaf.maxY[index];
+		removeEntry(leaf, index);
+		deleted = true;
+		lsn = logChange(WriteAheadLog.DELETE, minX, minY, maxX, maxY, id);
+	    }
+	}
+	finally
+	{
+	    endWrite();
+	}
+	commitLog(lsn);
+	return deleted;
+    }
+
+    /**
+     * Set the parents stacks to the path from the root to the given leaf, as
+     * deleteEntry() leaves them for condenseTree(). Only nodes whose entry
+     * contains the leaf are searched, and the leaves themselves are not read.
+     * 
+     * @param leaf
+     *            Leaf to find
+     * @return true if the leaf was found
+     */
+    private boolean findParents(Node leaf)
+    {
+	parents.clear();
+	parentsEntry.clear();
+	if (leaf.nodeId == rootNodeId)
+	{
+	    return true;
+	}
+	parents.push(rootNodeId);
+	parentsEntry.push(-1);
+
+	while (parents.size() > 0)
+	{
+	    Node n = getNode(parents.peek());
+	    int startIndex = parentsEntry.peek() + 1;
+	    boolean found = false;
+	    for (int i = startIndex; i < n.entryCount; i++)
+	    {
+		if (n.level == 2 ? n.ids[i] == leaf.nodeId : EnvelopeUtils.contains(n.minX[i],
+			n.minY[i], n.maxX[i], n.maxY[i], leaf.mbrMinX, leaf.mbrMinY, leaf.mbrMaxX,
+			leaf.mbrMaxY))
+		{
+		    parentsEntry.pop();
+		    parentsEntry.push(i);
+		    if (n.level == 2)
+		    {
+			return true;
+		    }
+		    parents.push(n.ids[i]);
+		    parentsEntry.push(-1);
+		    found = true;
+		    break;
+		}
+	    }
+	    if (!found)
+	    {
+		parents.pop();
+		parentsEntry.pop();
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Delete an entry. The caller holds the write lock, if any.
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Envelope of the entry
+     * @param id
+     *            ID of the entry
+     * @return true if the entry was found and deleted
+     */
+    private boolean deleteEntry(double minX, double minY, double maxX, double maxY, int id)
+    {
+	// FindLeaf algorithm inlined here. Note the "official" algorithm
+	// searches all overlapping entries. This seemed inefficient,
+	// as an entry is only worth searching if it contains (NOT overlaps)
+	// the envelope we are searching for.
+	// 
+	// Also the algorithm has be changed so it is not recursive
+
+	// Algorithm: Search subtrees
+	// If root is not a leaf, check each entry
+	// to determine if it contains env.
+	// For each entry found invoke findLeaf
+	// on the node pointed to by the entry,
+	// until r is found or all entries have been checked.
+	loadPending();
+
+	parents.clear();
+	parents.push(rootNodeId);
+
+	parentsEntry.clear();
+	parentsEntry.push(-1);
+	Node n = null;
+	// index of entry to be deleted in leaf
+	int foundIndex = -1;
+
+	while (foundIndex == -1 && parents.size() > 0)
+	{
+	    n = getNode(parents.peek());
+	    int startIndex = parentsEntry.peek() + 1;
+
+	    if (!n.isLeaf())
+	    {
+		deleteLog.debug("Searching node {} , from index {}", n.nodeId, startIndex);
+		boolean contains = false;
+		for (int i = startIndex; i < n.entryCount; i++)
+		{
+		    if (EnvelopeUtils.contains(n.minX[i], n.minY[i], n.maxX[i], n.maxY[i], minX, minY,
+					       maxX, maxY))
+		    {
+			parents.push(n.ids[i]);
+			parentsEntry.pop();
+			// This becomes the start index when the child has been
+			// searched
+			parentsEntry.push(i);
+			parentsEntry.push(-1);
+			contains = true;
+			break; // goto the next iteration of while
+		    }
+		}
+		if (contains)
+		{
+		    continue;
+		}
+	    }
+	    else
+	    {
+		foundIndex = n.findEntry(minX, minY, maxX, maxY, id);
+	    }
+
+	    parents.pop();
+	    parentsEntry.pop();
+	}
+
+	if (foundIndex != -1)
+	{
+	    removeEntry(n, foundIndex);
+	}
+	return (foundIndex != -1);
+    }
+
+    /**
+     * Remove an entry from a leaf and condense the tree. The parents stacks
+     * hold the path from the root to the leaf.
+     * 
+     * @param n
+     *            Leaf holding the entry
+     * @param index
+     *            Index of the entry in the leaf
+     */
+    private void removeEntry(Node n, int index)
+    {
+	n = writableNode(n);
+	if (leafIds != null)
+	{
+	    leafIds.remove(n.ids[index]);
+	}
+	n.deleteEntry(index, minNodeEntries);
+	overflowedLevels = 0;
+	condenseTree(n);
+	reinsertQueued();
+	size--;
+	modCount++;
+
+	// Shrink the tree if possible (i.e. if root node has exactly one entry,
 	// and that entry is not a leaf node, delete the root and its entry
 	// becomes the new root
 	Node root = getNode(rootNodeId);
 	while (root.entryCount == 1 && treeHeight > 1)
 	{
-	    root.entryCount = 0;
-	    rootNodeId = root.ids[0];
-	    treeHeight--;
-	    root = getNode(rootNodeId);
+	    removeNode(rootNodeId);
+	    deletedNodeIds.push(rootNodeId);
+	    rootNodeId = root.ids[0];
+	    treeHeight--;
+	    root = getNode(rootNodeId);
+	}
+
+	// An empty root becomes a leaf again
+	if (root.entryCount == 0 && root.level != 1)
+	{
+	    root = writableNode(root);
+	    root.level = 1;
+	    treeHeight = 1;
+	}
+    }
+
+    @Override
+    public void contains(Envelope env, IntProcedure v)
+    {
+	contains(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), v);
+    }
+
+    @Override
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	beginRead();
+	try
+	{
+	    searchContains(minX, minY, maxX, maxY, v);
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Find all entries contained by an envelope. The caller holds the read
+     * lock, if any.
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Envelope that must contain the entries
+     * @param v
+     *            Procedure called for each entry found
+     */
+    private void searchContains(double minX, double minY, double maxX, double maxY,
+	    IntProcedure v)
+    {
+	// Find all envelopes in the tree that are contained by the passed
+	// envelope.
+	// <p>
+	// Written to be non-recursive (should model other searches on this?)
+	// Only the entries pushed by this search are popped, so the
+	// IntProcedure may query the tree again without disturbing it.
+
+	if (mappedPages != null)
+	{
+	    containsPages(minX, minY, maxX, maxY, v);
+	    return;
+	}
+
+	// Test to see if the envelopes intersect before proceeding
+	// if no intersection return immediately
+	Node rootNode = getNode(rootNodeId);
+	if (!EnvelopeUtils.intersects(rootNode.mbrMinX, rootNode.mbrMinY, rootNode.mbrMaxX,
+				      rootNode.mbrMaxY, minX, minY, maxX, maxY))
+	{
+	    return;
+	}
+
+	QueryContext context = queryContext.get();
+	TIntStack parents = context.parents;
+	TIntStack parentsEntry = context.parentsEntry;
+	int parentsBase = parents.size();
+	int parentsEntryBase = parentsEntry.size();
+
+	parents.push(rootNodeId);
+	parentsEntry.push(-1);
+
+	try
+	{
+	    while (parents.size() > parentsBase)
+	    {
+		Node n = getNode(parents.peek());
+		int startIndex = parentsEntry.peek() + 1;
+
+		if (!n.isLeaf())
+		{
+		    // go through every entry in the index node to check
+		    // if it intersects the passed rectangle.
+		    // If so, it could contain entries that are contained
+		    boolean intersects = false;
+		    for (int i = startIndex; i < n.entryCount; i++)
+		    {
+			if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i],
+						     n.minY[i], n.maxX[i], n.maxY[i]))
+			{
+			    parents.push(n.ids[i]);
+			    parentsEntry.pop();
+			    // This becomes the start index when the child has
+			    // been searched
+			    parentsEntry.push(i);
+			    parentsEntry.push(-1);
+			    intersects = true;
+			    break; // goto the next iteration of while
+			}
+		    }
+		    if (intersects)
+		    {
+			continue;
+		    }
+		}
+		else
+		{
+		    // go through every entry in the leaf to check
+		    // if it is contained by the passed envelope
+		    for (int i = 0; i < n.entryCount; i++)
+		    {
+			if (EnvelopeUtils.contains(minX, minY, maxX, maxY, n.minX[i], n.minY[i],
+						   n.maxX[i], n.maxY[i]))
+			{
+			    if (!v.execute(n.ids[i]))
+			    {
+				return;
+			    }
+			}
+		    }
+		}
+		parents.pop();
+		parentsEntry.pop();
+	    }
+	}
+	finally
+	{
+	    popTo(parents, parentsBase);
+	    popTo(parentsEntry, parentsEntryBase);
+	}
+    }
+
+    /**
+     * Count the entries intersecting an envelope, without visiting them. A
+     * child whose bounding box lies within the envelope is counted from the
+     * subtree count held by its parent, so only the nodes on the boundary of
+     * the envelope are read.
+     * 
+     * @param env
+     *            Envelope to search for
+     * @return number of entries intersecting the envelope
+     */
+    public int countIntersects(Envelope env)
+    {
+	return countIntersects(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY());
+    }
+
+    /**
+     * Count the entries intersecting the envelope with the given coordinates
+     * 
+     * @see #countIntersects(Envelope)
+     */
+    public int countIntersects(double minX, double minY, double maxX, double maxY)
+    {
+	beginRead();
+	try
+	{
+	    return count(minX, minY, maxX, maxY, false);
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Count the entries contained by an envelope, without visiting them. As
+     * for countIntersects(), a child whose bounding box lies within the
+     * envelope is counted without reading it.
+     * 
+     * @param env
+     *            Envelope that must contain the entries
+     * @return number of entries contained by the envelope
+     */
+    public int countContains(Envelope env)
+    {
+	return countContains(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY());
+    }
+
+    /**
+     * Count the entries contained by the envelope with the given coordinates
+     * 
+     * @see #countContains(Envelope)
+     */
+    public int countContains(double minX, double minY, double maxX, double maxY)
+    {
+	beginRead();
+	try
+	{
+	    return count(minX, minY, maxX, maxY, true);
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Count the entries intersecting or contained by an envelope. The caller
+     * holds the read lock, if any.
+     * 
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @param contains
+     *            true to count the entries contained by the envelope, false
+     *            to count those intersecting it
+     * @return number of entries found
+     */
+    private int count(double minX, double minY, double maxX, double maxY, boolean contains)
+    {
+	// Only the ids pushed here are popped, so that a count made by the
+	// IntProcedure of a search leaves the search intact
+	TIntStack nodeIds = queryContext.get().nodeIds;
+	int base = nodeIds.size();
+	nodeIds.push(rootNodeId);
+
+	int count = 0;
+	while (nodeIds.size() > base)
+	{
+	    Node n = getNode(nodeIds.pop());
+	    if (n.isLeaf())
+	    {
+		for (int i = 0; i < n.entryCount; i++)
+		{
+		    if (contains ? EnvelopeUtils.contains(minX, minY, maxX, maxY, n.minX[i],
+							  n.minY[i], n.maxX[i], n.maxY[i])
+			    : EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i],
+						       n.minY[i], n.maxX[i], n.maxY[i]))
+		    {
+			count++;
+		    }
+		}
+	    }
+	    else
+	    {
+		for (int i = 0; i < n.entryCount; i++)
+		{
+		    // Every entry below a child within the envelope is both
+		    // contained by and intersects it
+		    if (EnvelopeUtils.contains(minX, minY, maxX, maxY, n.minX[i], n.minY[i],
+					       n.maxX[i], n.maxY[i]))
+		    {
+			count += n.counts[i];
+		    }
+		    else if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i],
+						      n.minY[i], n.maxX[i], n.maxY[i]))
+		    {
+			nodeIds.push(n.ids[i]);
+		    }
+		}
+	    }
+	}
+	return count;
+    }
+
+    @Override
+    public Envelope getBounds()
+    {
+	beginRead();
+	try
+	{
+	    Envelope bounds = null;
+
+	    Node n = getNode(rootNodeId);
+	    if (n != null)
+	    {
+		bounds = n.getMinBoundingBox();
+	    }
+	    return bounds;
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    @Override
+    public String getVersion()
+    {
+	return "RTree-" + version;
+    }
+
+    @Override
+    public void intersects(Envelope r, IntProcedure ip)
+    {
+	intersects(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), ip);
+    }
+
+    @Override
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure ip)
+    {
+	beginRead();
+	try
+	{
+	    if (queryExecutor != null)
+	    {
+		parallelIntersects(minX, minY, maxX, maxY, ip);
+	    }
+	    else
+	    {
+		intersects(rootNodeId, minX, minY, maxX, maxY, ip);
+	    }
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Open a cursor over the entries intersecting an envelope, which returns
+     * them in the same order as intersects(). The cursor holds only the path
+     * from the root to the node it has reached, so a page of results far into
+     * a large query costs no more memory than the first.
+     * <p>
+     * The cursor takes the read lock, if any, for each call to nextBatch(),
+     * not while it is open. If the tree is changed while the cursor is open,
+     * nextBatch() throws ConcurrentModificationException; to page through
+     * results while the tree is being changed, open the cursor on a
+     * {@link #snapshot()} view.
+     * </p>
+     * 
+     * @param env
+     *            Envelope to search for
+     * @return cursor over the intersecting entries
+     */
+    public SpatialCursor intersectsCursor(Envelope env)
+    {
+	beginRead();
+	try
+	{
+	    return new IntersectsCursor(env.getMinX(), env.getMinY(), env.getMaxX(),
+					env.getMaxY());
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Finds the entries intersecting each of a batch of envelopes. The batch
+     * is searched in a single pass over the tree: each node is read once, and
+     * tested against all the queries that reach it, instead of once per query.
+     * This is much cheaper than calling intersects() for each query when the
+     * queries are close together, such as the tiles of a map view.
+     * <p>
+     * For each query, its entries are passed to the visitor in the same order
+     * as intersects() would find them, but the results of different queries
+     * are interleaved.
+     * </p>
+     * 
+     * @param queries
+     *            Envelopes to search for
+     * @param v
+     *            Visitor called with the index of the query in the array and
+     *            the id of each intersecting entry
+     */
+    public void intersectsBatch(Envelope[] queries, BatchVisitor v)
+    {
+	int count = queries.length;
+	double[] minX = new double[count];
+	double[] minY = new double[count];
+	double[] maxX = new double[count];
+	double[] maxY = new double[count];
+	for (int q = 0; q < count; q++)
+	{
+	    minX[q] = queries[q].getMinX();
+	    minY[q] = queries[q].getMinY();
+	    maxX[q] = queries[q].getMaxX();
+	    maxY[q] = queries[q].getMaxY();
+	}
+
+	beginRead();
+	try
+	{
+	    intersectsBatch(minX, minY, maxX, maxY, count, v);
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    @Override
+    public void nearest(Point p, IntProcedure v, double distance)
+    {
+	nearest(p.getX(), p.getY(), v, distance);
+    }
+
+    @Override
+    public void nearest(double x, double y, IntProcedure v, double distance)
+    {
+	beginRead();
+	try
+	{
+	    // The ids are added after any found by a nearest() whose
+	    // IntProcedure made this call, and removed again before returning
+	    QueryContext context = queryContext.get();
+	    TIntArrayList nearestIds = context.nearestIds;
+	    int base = nearestIds.size();
+	    try
+	    {
+		if (distance >= 0)
+		{
+		    nearest(x, y, distance * distance, base, context);
+		}
+		for (int i = base; i < nearestIds.size(); i++)
+		{
+		    if (!v.execute(nearestIds.get(i)))
+		    {
+			break;
+		    }
+		}
+	    }
+	    finally
+	    {
+		truncate(nearestIds, base);
+	    }
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    @Override
+    public int size()
+    {
+	beginRead();
+	try
+	{
+	    return size;
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    // --------------------------------------------------------------------
+    // end of SpatialIndex Methods
+    // --------------------------------------------------------------------
+
+    /**
+     * Finds the k entries nearest to the passed point, and calls execute() on
+     * the passed IntProcedure for each one, in order of increasing distance.
+     * Entries at the same distance are returned in no particular order.
+     * <p>
+     * The tree is searched best first: nodes are visited in order of the
+     * distance from the point to their bounding box, so only the nodes that
+     * could hold one of the k nearest entries are read.
+     * </p>
+     * 
+     * @param p
+     *            The point for which this method finds the nearest neighbors.
+     * @param k
+     *            The maximum number of entries to find
+     * @param v
+     *            The IntProcedure whose execute() method is is called for each
+     *            nearest neighbor. Returning false stops the search.
+     * @param maxDistance
+     *            The farthest distance away from the point to search. Entries
+     *            further than this will not be found. Use
+     *            Double.POSITIVE_INFINITY to find the k nearest entries no
+     *            matter how far away.
+     */
+    public void nearestN(Point p, int k, IntProcedure v, double maxDistance)
+    {
+	nearestN(p.getX(), p.getY(), k, v, maxDistance);
+    }
+
+    /**
+     * Finds the k entries nearest to the point with the given coordinates.
+     * 
+     * @see #nearestN(Point, int, IntProcedure, double)
+     */
+    public void nearestN(double x, double y, int k, IntProcedure v, double maxDistance)
+    {
+	beginRead();
+	try
+	{
+	    searchNearestN(x, y, k, v, maxDistance);
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Best-first search for the k entries nearest to a point. The caller holds
+     * the read lock, if any.
+     * 
+     * @see #nearestN(Point, int, IntProcedure, double)
+     */
+    private void searchNearestN(double x, double y, int k, IntProcedure v,
+	    double maxDistance)
+    {
+	if (k <= 0 || maxDistance < 0)
+	{
+	    return;
+	}
+
+	// The queue is ordered by squared distance, to avoid taking square roots.
+	// A queue still holding values belongs to a search whose IntProcedure
+	// made this call, so it is left alone.
+	DistanceQueue nearestQueue = queryContext.get().nearestQueue;
+	if (nearestQueue.size() > 0)
+	{
+	    nearestQueue = new DistanceQueue();
+	}
+	double maxDistanceSq = maxDistance * maxDistance;
+
+	nearestQueue.push(0, rootNodeId, false);
+
+	try
+	{
+	    int found = 0;
+	    while (found < k && nearestQueue.size() > 0)
+	    {
+		int value = nearestQueue.peekValue();
+		boolean entry = nearestQueue.peekIsEntry();
+		nearestQueue.pop();
+
+		if (entry)
+		{
+		    // Every entry or node still queued is at least this far away
+		    found++;
+		    if (!v.execute(value))
+		    {
+			break;
+		    }
+		    continue;
+		}
+
+		if (mappedPages != null)
+		{
+		    nearestNPage(x, y, value, maxDistanceSq, nearestQueue);
+		    continue;
+		}
+		Node n = getNode(value);
+		for (int i = 0; i < n.entryCount; i++)
+		{
+		    double distanceSq =
+			    EnvelopeUtils.distanceSq(x, y, n.minX[i], n.minY[i], n.maxX[i],
+						     n.maxY[i]);
+		    if (distanceSq <= maxDistanceSq)
+		    {
+			nearestQueue.push(distanceSq, n.ids[i], n.isLeaf());
+		    }
+		}
+	    }
+	}
+	finally
+	{
+	    nearestQueue.clear();
 	}
+    }
 
-	return (foundIndex != -1);
+    /**
+     * Return a read-only view of the tree as it is now. Later changes to the
+     * tree are not visible through the view, and queries on the view never
+     * lock, so they are not held up by writers. Taking the snapshot waits for
+     * a change in progress to finish, but costs nothing else: the view shares
+     * all its nodes with the tree, and the tree copies a node the first time
+     * it changes it after the snapshot.
+     * <p>
+     * Only available when the Concurrency property is Snapshot. The view
+     * throws UnsupportedOperationException from add(), delete() and init().
+     * </p>
+     * 
+     * @return read-only view of the tree
+     */
+    public SpatialIndex snapshot()
+    {
+	if (readOnly)
+	{
+	    return this;
+	}
+	if (nodeTable == null)
+	{
+	    throw new IllegalStateException("snapshot() requires the Concurrency property to be Snapshot");
+	}
+
+	beginWrite();
+	try
+	{
+	    loadPending();
+
+	    RTree view = new RTree();
+	    view.maxNodeEntries = maxNodeEntries;
+	    view.minNodeEntries = minNodeEntries;
+	    view.nodes = null;
+	    view.nodeTable = nodeTable.freeze();
+	    view.readOnly = true;
+	    view.rootNodeId = rootNodeId;
+	    view.treeHeight = treeHeight;
+	    view.size = size;
+	    view.highestUsedNodeId = highestUsedNodeId;
+	    view.queryThreads = queryThreads;
+	    view.queryExecutor = queryExecutor;
+	    return view;
+	}
+	finally
+	{
+	    endWrite();
+	}
+    }
+
+    /**
+     * Write the tree to a file, which can be opened with {@link #open(File)}.
+     * Any existing file is replaced.
+     * <p>
+     * The file holds a short header followed by a fixed size page for each
+     * node, at the position given by the node id, so that the tree can be
+     * queried from a mapping of the file without reading it first. The pages
+     * are written in the byte order of this machine.
+     * </p>
+     * 
+     * @param file
+     *            File to write
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public void save(File file) throws IOException
+    {
+	beginRead();
+	try
+	{
+	    write(file, 0, false);
+	}
+	finally
+	{
+	    endRead();
+	}
+    }
+
+    /**
+     * Write the tree to a file in the format of save(). The caller holds the
+     * read or write lock, if any.
+     * 
+     * @param file
+     *            File to write
+     * @param logGeneration
+     *            Generation of the checkpoint being written, or 0
+     * @param force
+     *            true to force the file to disk before returning
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    private void write(File file, long logGeneration, boolean force) throws IOException
+    {
+	TreeFile header =
+		new TreeFile(maxNodeEntries, minNodeEntries, treeHeight, rootNodeId, size,
+			     highestUsedNodeId + 1, logGeneration);
+	header.write(file, this, force);
+    }
+
+    /**
+     * Write a checkpoint of the tree to the CheckpointFile and empty the log,
+     * so that recovery only has to replay the changes made after this.
+     * Changes wait while the checkpoint is written. Checkpoints are also
+     * written automatically every CheckpointRecords changes. The checkpoint
+     * can be read by {@link #open(File)}.
+     * 
+     * @throws IOException
+     *             if the checkpoint cannot be written
+     * @throws IllegalStateException
+     *             if the LogFile property is not set
+     */
+    public void checkpoint() throws IOException
+    {
+	beginWrite();
+	try
+	{
+	    if (changeLog == null)
+	    {
+		throw new IllegalStateException("checkpoint() requires the LogFile property");
+	    }
+	    changeLog.checkpoint();
+	}
+	finally
+	{
+	    endWrite();
+	}
+    }
+
+    /**
+     * Write all logged changes to disk, including those that LogGroupCommit
+     * has not written yet
+     * 
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    public void sync() throws IOException
+    {
+	if (changeLog != null)
+	{
+	    changeLog.sync();
+	}
+    }
+
+    /**
+     * Close the files of the tree: the log is synced and closed, and the
+     * storage file closed, and deleted if it is temporary. The tree must not
+     * be used afterwards, except to call init() again. Does nothing for a tree
+     * kept on the heap without a log.
+     * 
+     * @throws IOException
+     *             if the log cannot be written or a file cannot be closed
+     */
+    public void close() throws IOException
+    {
+	if (lock != null)
+	{
+	    lock.writeLock().lock();
+	}
+	try
+	{
+	    TreeLog closingLog = changeLog;
+	    NodeStore closingStore = nodeStore;
+	    changeLog = null;
+	    if (closingStore != null)
+	    {
+		nodeStore = null;
+		mappedPages = null;
+		dirtyNodes = null;
+		nodes = new Node[0];
+	    }
+	    try
+	    {
+		if (closingLog != null)
+		{
+		    closingLog.close();
+		}
+	    }
+	    finally
+	    {
+		if (closingStore != null)
+		{
+		    closingStore.close();
+		}
+	    }
+	}
+	finally
+	{
+	    if (lock != null)
+	    {
+		lock.writeLock().unlock();
+	    }
+	}
+    }
+
+    /**
+     * Close the files of an earlier init() before they are replaced
+     */
+    private void closeFiles()
+    {
+	try
+	{
+	    close();
+	}
+	catch (IOException e)
+	{
+	    throw new IllegalStateException("Cannot close the RTree files", e);
+	}
+    }
+
+    /**
+     * Open a tree written by {@link #save(File)}.
+     * <p>
+     * The file is mapped into memory rather than read, and queries read each
+     * node from the mapping as they visit it, so even a large tree can be
+     * queried as soon as this returns. intersects(), contains(), nearest() and
+     * nearestN() read the coordinates and ids of a node in place, without
+     * copying it; the other queries copy each node they visit into a short
+     * lived Node, as with the OffHeap Storage. The operating system pages the
+     * file in as it is used, and several processes opening the same file
+     * share one copy of it in the page cache. The file must not be changed
+     * while a tree opened from it is in use.
+     * </p>
+     * <p>
+     * The returned tree is read-only: add(), delete() and init() throw
+     * UnsupportedOperationException. Any number of threads may query it at
+     * once.
+     * </p>
+     * 
+     * @param file
+     *            File written by save()
+     * @return read-only tree backed by the file
+     * @throws IOException
+     *             if the file cannot be read or was not written by save()
+     */
+    public static RTree open(File file) throws IOException
+    {
+	RandomAccessFile in = new RandomAccessFile(file, "r");
+	try
+	{
+	    FileChannel channel = in.getChannel();
+	    TreeFile header = TreeFile.readHeader(channel, file);
+
+	    RTree tree = new RTree();
+	    tree.maxNodeEntries = header.maxNodeEntries;
+	    tree.minNodeEntries = header.minNodeEntries;
+	    tree.treeHeight = header.treeHeight;
+	    tree.rootNodeId = header.rootNodeId;
+	    tree.size = header.size;
+	    NodePages pages = header.map(channel, file);
+
+	    tree.nodes = null;
+	    tree.nodeStore = pages;
+	    tree.mappedPages = pages;
+	    tree.dirtyNodes = new TIntObjectHashMap();
+	    tree.highestUsedNodeId = header.pageCount - 1;
+	    tree.readOnly = true;
+	    return tree;
+	}
+	finally
+	{
+	    in.close();
+	}
+    }
+
+    /**
+     * Replace the contents of this (empty) tree with a tree written by save(),
+     * read into the storage chosen by init()
+     * 
+     * @param file
+     *            File written by save()
+     * @return log generation recorded in the file
+     * @throws IOException
+     *             if the file cannot be read, or was written with a different
+     *             MaxNodeEntries
+     */
+    private long load(File file) throws IOException
+    {
+	RandomAccessFile in = new RandomAccessFile(file, "r");
+	try
+	{
+	    FileChannel channel = in.getChannel();
+	    TreeFile header = TreeFile.readHeader(channel, file);
+	    if (header.maxNodeEntries != maxNodeEntries)
+	    {
+		throw new IOException("RTree file " + file + " was written with MaxNodeEntries "
+			+ header.maxNodeEntries);
+	    }
+
+	    removeNode(rootNodeId);
+	    header.readPages(channel, file, new TreeFile.Visitor()
+	    {
+		public void page(int id, Node n)
+		{
+		    if (n != null)
+		    {
+			if (leafIds != null && n.isLeaf())
+			{
+			    indexLeaf(n);
+			}
+			putNode(n);
+		    }
+		    else
+		    {
+			deletedNodeIds.push(id);
+		    }
+		}
+
+		public void endOfBatch()
+		{
+		    flushNodes();
+		}
+	    });
+
+	    treeHeight = header.treeHeight;
+	    rootNodeId = header.rootNodeId;
+	    size = header.size;
+	    highestUsedNodeId = header.pageCount - 1;
+	    if (size > 0)
+	    {
+		// Only an empty tree can be packed, so insert later entries
+		pendingIds = null;
+	    }
+	    return header.generation;
+	}
+	finally
+	{
+	    in.close();
+	}
+    }
+
+    /**
+     * Point the id index at the given leaf for each of its entries
+     */
+    private void indexLeaf(Node n)
+    {
+	for (int i = 0; i < n.entryCount; i++)
+	{
+	    leafIds.put(n.ids[i], n.nodeId);
+	}
+    }
+
+    /**
+     * Get the next available node ID. Reuse deleted node IDs if possible.
+     * 
+     * @return The next available node ID
+     */
+    private int getNextNodeId()
+    {
+	int nextNodeId = 0;
+	if (deletedNodeIds.size() > 0)
+	{
+	    nextNodeId = deletedNodeIds.pop();
+	}
+	else
+	{
+	    nextNodeId = highestUsedNodeId + 1;
+	    highestUsedNodeId++;
+	}
+	return nextNodeId;
+    }
+
+    /**
+     * Get a node object, given the ID of the node. When Storage is OffHeap or
+     * Disk the node is a copy read from the store, so changes to it are not
+     * kept.
+     * 
+     * @param index
+     *            ID of the node
+     * @return Node with ID corresponding to index
+     */
+    public Node getNode(int index)
+    {
+	if (nodeTable != null)
+	{
+	    return nodeTable.get(index);
+	}
+	if (nodeStore != null)
+	{
+	    Node n = (Node) dirtyNodes.get(index);
+	    return (n != null) ? n : nodeStore.get(index);
+	}
+	return (index >= 0 && index < nodes.length) ? nodes[index] : null;
+    }
+
+    /**
+     * Store a newly created node, so that it can be found by getNode()
+     * 
+     * @param n
+     *            Node to store
+     */
+    private void putNode(Node n)
+    {
+	if (nodeTable != null)
+	{
+	    n.epoch = nodeTable.epoch();
+	    nodeTable.put(n.nodeId, n);
+	}
+	else if (nodeStore != null)
+	{
+	    dirtyNodes.put(n.nodeId, n);
+	}
+	else
+	{
+	    if (n.nodeId >= nodes.length)
+	    {
+		Node[] newNodes = new Node[Math.max(n.nodeId + 1, 2 * nodes.length)];
+		System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
+		nodes = newNodes;
+	    }
+	    nodes[n.nodeId] = n;
+	}
+    }
+
+    /**
+     * Remove a node, so that it can no longer be found by getNode()
+     * 
+     * @param nodeId
+     *            ID of the node to remove
+     */
+    private void removeNode(int nodeId)
+    {
+	if (nodeTable != null)
+	{
+	    nodeTable.remove(nodeId);
+	}
+	else if (nodeStore != null)
+	{
+	    dirtyNodes.remove(nodeId);
+	    nodeStore.remove(nodeId);
+	}
+	else if (nodeId < nodes.length)
+	{
+	    nodes[nodeId] = null;
+	}
+    }
+
+    /**
+     * Get a node that can be changed. In Snapshot mode, a node that may be
+     * visible to a snapshot is replaced by a copy with the same id, and the
+     * copy is returned. With OffHeap or Disk storage the node is remembered so
+     * that flushNodes() writes it back to the store. Otherwise the node itself
+     * is returned.
+     * 
+     * @param n
+     *            Node about to be changed
+     * @return the node to change
+     */
+    private Node writableNode(Node n)
+    {
+	if (nodeStore != null)
+	{
+	    Node dirty = (Node) dirtyNodes.get(n.nodeId);
+	    if (dirty == null)
+	    {
+		dirtyNodes.put(n.nodeId, n);
+		dirty = n;
+	    }
+	    return dirty;
+	}
+	if (nodeTable == null || n.epoch == nodeTable.epoch())
+	{
+	    return n;
+	}
+	Node copy = n.copy(nodeTable.epoch());
+	nodeTable.put(copy.nodeId, copy);
+	return copy;
+    }
+
+    /**
+     * Write the nodes changed or created since the last call back to the
+     * node store, when Storage is OffHeap or Disk. Called at the end of each change, after
+     * which no Node object of the change is referenced any more.
+     */
+    private void flushNodes()
+    {
+	if (nodeStore == null || dirtyNodes.size() == 0)
+	{
+	    return;
+	}
+	Object[] nodes = dirtyNodes.getValues();
+	for (int i = 0; i < nodes.length; i++)
+	{
+	    nodeStore.put((Node) nodes[i]);
+	}
+	dirtyNodes.clear();
+    }
+
+    /**
+     * @return number of node reads served from the buffer pool, when Storage
+     *         is Disk. Together with {@link #getPageMisses()} this shows
+     *         whether BufferPoolPages is large enough for the queries made.
+     *         Always 0 for other storage.
+     */
+    public long getPageHits()
+    {
+	if (nodeStore instanceof PagedNodeStore)
+	{
+	    return ((PagedNodeStore) nodeStore).hits();
+	}
+	return 0;
+    }
+
+    /**
+     * @return number of node reads that had to read the page from the file,
+     *         when Storage is Disk. Always 0 for other storage.
+     */
+    public long getPageMisses()
+    {
+	if (nodeStore instanceof PagedNodeStore)
+	{
+	    return ((PagedNodeStore) nodeStore).misses();
+	}
+	return 0;
+    }
+
+    /**
+     * Get the root node ID
+     * 
+     * @return The root node ID
+     */
+    public int getRootNodeId()
+    {
+	return rootNodeId;
     }
 
-    @Override
-    public void contains(Envelope env, IntProcedure v)
+    /**
+     * Start a query. Takes the read lock when Concurrency is ReadWrite or
+     * Snapshot, and
+     * packs any entries buffered for bulk loading first, which needs the write
+     * lock.
+     */
+    private void beginRead()
     {
-	// Find all envelopes in the tree that are contained by the passed
-	// envelope.
-	// <p>
-	// Written to be non-recursive (should model other searches on this?)
-	parents.clear();
-	parents.push(rootNodeId);
-
-	parentsEntry.clear();
-	parentsEntry.push(-1);
-
-	// Test to see if the envelopes intersect before proceeding
-	// if no intersection return immediately
-	Node rootNode = getNode(rootNodeId);
-	if (!rootNode.minBoundingBox.intersects(env))
+	if (lock == null)
 	{
+	    loadPending();
 	    return;
 	}
 
-	while (parents.size() > 0)
+	lock.readLock().lock();
+	if (pendingIds != null)
 	{
-	    Node n = getNode(parents.peek());
-	    int startIndex = parentsEntry.peek() + 1;
-
-	    if (!n.isLeaf())
+	    // The read lock cannot be upgraded, so release it, pack the
+	    // entries under the write lock, and downgrade back to a read lock
+	    lock.readLock().unlock();
+	    lock.writeLock().lock();
+	    try
 	    {
-		// go through every entry in the index node to check
-		// if it intersects the passed rectangle.
-		// If so, it could contain entries that are contained
-		boolean intersects = false;
-		for (int i = startIndex; i < n.entryCount; i++)
-		{
-		    if (env.intersects(n.entries[i]))
-		    {
-			parents.push(n.ids[i]);
-			parentsEntry.pop();
-			// This becomes the start index when the child has been
-			// searched
-			parentsEntry.push(i);
-			parentsEntry.push(-1);
-			intersects = true;
-			break; // goto the next iteration of while
-		    }
-		}
-		if (intersects)
-		{
-		    continue;
-		}
+		loadPending();
+		lock.readLock().lock();
 	    }
-	    else
+	    finally
 	    {
-		// go through every entry in the leaf to check
-		// if it is contained by the passed envelope
-		for (int i = 0; i < n.entryCount; i++)
-		{
-		    if (env.contains(n.entries[i]))
-		    {
-			v.execute(n.ids[i]);
-		    }
-		}
+		lock.writeLock().unlock();
 	    }
-	    parents.pop();
-	    parentsEntry.pop();
 	}
     }
 
-    @Override
-    public Envelope getBounds()
+    /**
+     * End a query started by beginRead()
+     */
+    private void endRead()
     {
-	Envelope bounds = null;
-
-	Node n = getNode(rootNodeId);
-	if (n != null && n.minBoundingBox != null)
+	if (lock != null)
 	{
-	    bounds = new Envelope(n.minBoundingBox);
+	    lock.readLock().unlock();
 	}
-	return bounds;
     }
 
-    @Override
-    public String getVersion()
+    /**
+     * Start a modification of the tree. Takes the write lock when Concurrency
+     * is ReadWrite or Snapshot.
+     */
+    private void beginWrite()
     {
-	return "RTree-" + version;
+	if (readOnly)
+	{
+	    throw new UnsupportedOperationException("A read-only RTree cannot be modified");
+	}
+	if (lock != null)
+	{
+	    lock.writeLock().lock();
+	}
     }
 
-    @Override
-    public void intersects(Envelope r, IntProcedure ip)
+    /**
+     * End a modification started by beginWrite()
+     */
+    private void endWrite()
     {
-	Node rootNode = getNode(rootNodeId);
-	intersects(r, ip, rootNode);
+	flushNodes();
+	if (lock != null)
+	{
+	    lock.writeLock().unlock();
+	}
     }
 
-    @Override
-    public void nearest(Point p, IntProcedure v, double distance)
+    /**
+     * Pack any entries that were buffered by add() while bulk loading was
+     * enabled. After this, entries are inserted normally.
+     */
+    private void loadPending()
     {
-	Node rootNode = getNode(rootNodeId);
-	nearest(p, rootNode, distance);
+	if (pendingIds == null)
+	{
+	    return;
+	}
+	synchronized (packLock)
+	{
+	    // Another query may have packed the entries while this one waited
+	    TIntArrayList ids = pendingIds;
+	    if (ids == null)
+	    {
+		return;
+	    }
 
-	visitProc.setProcedure(v);
-	nearestIds.forEach(visitProc);
-	nearestIds.clear();
-    }
+	    pack(bulkLoad, pendingMinX.toNativeArray(), pendingMinY.toNativeArray(),
+		 pendingMaxX.toNativeArray(), pendingMaxY.toNativeArray(), ids.toNativeArray(),
+		 ids.size());
 
-    @Override
-    public int size()
-    {
-	return size;
+	    pendingMinX = null;
+	    pendingMinY = null;
+	    pendingMaxX = null;
+	    pendingMaxY = null;
+	    // Cleared last, so that queries do not start on a partly packed tree
+	    pendingIds = null;
+	}
     }
 
-    // --------------------------------------------------------------------
-    // end of SpatialIndex Methods
-    // --------------------------------------------------------------------
-
     /**
-     * Get the next available node ID. Reuse deleted node IDs if possible.
+     * Build the tree bottom-up from the given entries with the packer,
+     * replacing the (empty) root
      * 
-     * @return The next available node ID
+     * @param method
+     *            BulkLoader.STR or BulkLoader.HILBERT
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Coordinates of the entries. The arrays are not modified.
+     * @param ids
+     *            IDs of the entries
+     * @param count
+     *            Number of entries
      */
-    private int getNextNodeId()
+    private void pack(int method, double[] minX, double[] minY, double[] maxX, double[] maxY,
+	    int[] ids, int count)
     {
-	int nextNodeId = 0;
-	if (deletedNodeIds.size() > 0)
+	if (getNode(rootNodeId).entryCount != 0)
 	{
-	    nextNodeId = deletedNodeIds.pop();
+	    throw new IllegalStateException("Only an empty RTree can be packed");
 	}
-	else
+	if (count == 0)
 	{
-	    nextNodeId = highestUsedNodeId + 1;
-	    highestUsedNodeId++;
+	    return;
+	}
+
+	// The root created by init() is replaced by the packed nodes
+	removeNode(rootNodeId);
+	deletedNodeIds.push(rootNodeId);
+
+	Node root = packer.pack(method, minX, minY, maxX, maxY, ids, count, new BulkLoader.Target()
+	{
+	    public int nextNodeId()
+	    {
+		return getNextNodeId();
+	    }
+
+	    public void store(Node n)
+	    {
+		if (leafIds != null && n.isLeaf())
+		{
+		    indexLeaf(n);
+		}
+		putNode(n);
+		flushNodes();
+	    }
+	});
+	rootNodeId = root.nodeId;
+	treeHeight = root.level;
+
+	if (INTERNAL_CONSISTENCY_CHECKING)
+	{
+	    checkConsistency(rootNodeId, treeHeight, null);
 	}
-	return nextNodeId;
     }
 
     /**
-     * Get a node object, given the ID of the node
+     * Split a node. The node's entries and the new entry are divided between
+     * the node and a new sibling by the split strategy of the tree.
      * 
-     * @param index
-     *            ID of the node
-     * @return Node with ID corresponding to index
+     * @param n
+     * @param newMinX
+     * @param newMinY
+     * @param newMaxX
+     * @param newMaxY
+     * @param newId
+     * @param newCount
+     * @return the new node
      */
-    public Node getNode(int index)
+    private Node splitNode(Node n, double newMinX, double newMinY, double newMaxX,
+	    double newMaxY, int newId, int newCount)
     {
-	return (Node) nodeMap.get(index);
+	int count = loadSplitEntries(n, newMinX, newMinY, newMaxX, newMaxY, newId, newCount);
+	splitStrategy.split(splitMinX, splitMinY, splitMaxX, splitMaxY, count, minNodeEntries,
+			    splitGroups);
+
+	Node newNode = new Node(getNextNodeId(), n.level, maxNodeEntries);
+	putNode(newNode);
+
+	n.entryCount = 0;
+	n.resetMinBB();
+	for (int i = 0; i < count; i++)
+	{
+	    Node target = (splitGroups[i] == 0) ? n : newNode;
+	    target.addEntry(splitMinX[i], splitMinY[i], splitMaxX[i], splitMaxY[i], splitIds[i],
+			    splitCounts[i]);
+	}
+	if (leafIds != null && newNode.isLeaf())
+	{
+	    indexLeaf(newNode);
+	}
+
+	// check that the minBoundingBox for each node is correct
+	if (INTERNAL_CONSISTENCY_CHECKING)
+	{
+	    if (n.entryCount < minNodeEntries || newNode.entryCount < minNodeEntries)
+	    {
+		log.error("Error: splitNode group below MinNodeEntries ({} and {})",
+			  n.entryCount, newNode.entryCount);
+	    }
+	    if (!n.getMinBoundingBox().equals(calculateMinBB(n)))
+	    {
+		log.error("Error: splitNode old node minimum bounding box wrong");
+	    }
+	    if (!newNode.getMinBoundingBox().equals(calculateMinBB(newNode)))
+	    {
+		log.error("Error: splitNode new node minimum bounding box wrong");
+	    }
+	}
+	return newNode;
     }
 
     /**
-     * Get the root node ID
+     * Searches the tree for the nearest entry. Other queries call execute on
+     * an IntProcedure when a matching entry is found; however nearest() must
+     * store the entry Ids as it searches the tree, in case a nearer entry is
+     * found. <br>
+     * Uses the nearestIds of the query context to store the nearest entry Ids,
+     * after the first nearestBase ids, which belong to an enclosing search.
+     * Distances are compared squared, to avoid taking square roots.
+     * <p>
+     * Non-recursive: the nodes still to be searched are kept on a stack with
+     * their distances, children being pushed in reverse so that they are
+     * searched in the order they are stored. A node is checked again against
+     * the nearest distance when it is popped, as entries found since it was
+     * pushed may have lowered it.
+     * </p>
      * 
-     * @return The root node ID
+     * @param x
+     * @param y
+     *            Point to search from
+     * @param nearestDistanceSq
+     *            Square of the maximum distance of the entries to find
+     * @param nearestBase
+     *            Number of nearestIds to leave untouched
+     * @param context
+     *            Query context of the calling thread
      */
-    public int getRootNodeId()
+    private void nearest(double x, double y, double nearestDistanceSq, int nearestBase,
+	    QueryContext context)
     {
-	return rootNodeId;
+	TIntArrayList nearestIds = context.nearestIds;
+	TIntStack nodeIds = context.nearestNodes;
+	TDoubleArrayList nodeDistancesSq = context.nearestNodeDistancesSq;
+	nodeIds.clear();
+	nodeDistancesSq.clear();
+	nodeIds.push(rootNodeId);
+	nodeDistancesSq.add(0);
+
+	while (nodeIds.size() > 0)
+	{
+	    int nodeId = nodeIds.pop();
+	    double nodeDistanceSq = nodeDistancesSq.remove(nodeDistancesSq.size() - 1);
+	    if (nodeDistanceSq > nearestDistanceSq)
+	    {
+		continue;
+	    }
+	    if (mappedPages != null)
+	    {
+		nearestDistanceSq =
+			nearestPage(x, y, nodeId, nearestDistanceSq, nearestBase, context);
+		continue;
+	    }
+	    Node n = getNode(nodeId);
+	    if (n.isLeaf())
+	    {
+		for (int i = 0; i < n.entryCount; i++)
+		{
+		    // For leaves, the distance is an actual nearest distance
+		    double tempDistanceSq =
+			    EnvelopeUtils.distanceSq(x, y, n.minX[i], n.minY[i], n.maxX[i],
+						     n.maxY[i]);
+		    if (tempDistanceSq < nearestDistanceSq)
+		    {
+			nearestDistanceSq = tempDistanceSq;
+			truncate(nearestIds, nearestBase);
+		    }
+		    if (tempDistanceSq <= nearestDistanceSq)
+		    {
+			nearestIds.add(n.ids[i]);
+		    }
+		}
+		continue;
+	    }
+	    nearestDistanceSq = nearestChildren(x, y, n, nearestDistanceSq, nearestBase, context);
+	}
     }
 
     /**
-     * Split a node. Algorithm is taken pretty much verbatim from Guttman's
-     * original paper.
+     * Lowers the nearest distance by the MINMAXDIST of the entries of a
+     * non-leaf node, then pushes the children that may hold an entry within
+     * it onto the nearest() stack.
      * 
+     * @param x
+     * @param y
+     *            Point to search from
      * @param n
-     * @param newEnv
-     * @param newId
-     * @return
+     *            Non-leaf node
+     * @param nearestDistanceSq
+     *            Square of the distance of the nearest entry found so far
+     * @param nearestBase
+     *            Number of nearestIds to leave untouched
+     * @param context
+     *            Query context of the calling thread
+     * @return square of the lowered nearest distance
      */
-    private Node splitNode(Node n, Envelope newEnv, int newId)
+    private double nearestChildren(double x, double y, Node n, double nearestDistanceSq,
+	    int nearestBase, QueryContext context)
     {
-	// Step 1: Pick first entry for each group
-	// Apply algorithm pickSeeds to choose two entries
-	// to be the first elements of the groups.
-	// Assign each to a group.
-	System.arraycopy(initialEntryStatus, 0, entryStatus, 0, minNodeEntries);
+	TIntArrayList nearestIds = context.nearestIds;
 
-	Node newNode = new Node(getNextNodeId(), n.level, maxNodeEntries);
-	nodeMap.put(newNode.nodeId, newNode);
+	// Every child node holds an entry no further away than its MINMAXDIST,
+	// so the nearest entry is at least that close. Lowering the bound
+	// first prunes the children that cannot hold it.
+	for (int i = 0; i < n.entryCount; i++)
+	{
+	    double minMaxDistanceSq =
+		    EnvelopeUtils.minMaxDistanceSq(x, y, n.minX[i], n.minY[i], n.maxX[i],
+						   n.maxY[i]);
+	    if (minMaxDistanceSq < nearestDistanceSq)
+	    {
+		// Entries found so far are all further away
+		nearestDistanceSq = minMaxDistanceSq;
+		truncate(nearestIds, nearestBase);
+	    }
+	}
 
-	// This also sets the entryCount to 1
-	pickSeeds(n, newEnv, newId, newNode);
+	for (int i = n.entryCount - 1; i >= 0; i--)
+	{
+	    // for index nodes, only go into them if they potentially could
+	    // have an envelope closer than actualNearest
+	    double tempDistanceSq =
+		    EnvelopeUtils.distanceSq(x, y, n.minX[i], n.minY[i], n.maxX[i], n.maxY[i]);
+	    if (tempDistanceSq <= nearestDistanceSq)
+	    {
+		context.nearestNodes.push(n.ids[i]);
+		context.nearestNodeDistancesSq.add(tempDistanceSq);
+	    }
+	}
+	return nearestDistanceSq;
+    }
 
-	// Step 2: Check if done
-	// If all entries have been assigned, stop. If one group has so few
-	// entries that all the rest must be assigned to it in order
-	// for it to have the minimum number m, assign them and stop.
-	while (n.entryCount + newNode.entryCount < maxNodeEntries + 1)
+    /**
+     * Searches the subtree of a node for all intersecting entries. Immediately
+     * calls execute() on the passed IntProcedure when a matching entry is
+     * found, and stops as soon as it returns false.
+     * <p>
+     * Non-recursive: the ids of the nodes still to be searched are kept on a
+     * stack, children being pushed in reverse so that they are searched in
+     * the order they are stored, as a recursive search would. The search only
+     * pops the ids it pushed, so the IntProcedure may query the tree again
+     * without disturbing it.
+     * </p>
+     * 
+     * @param nodeId
+     *            Node to search from, the root to search the whole tree
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @param v
+     * @return false if the IntProcedure stopped the search
+     */
+    private boolean intersects(int nodeId, double minX, double minY, double maxX,
+	    double maxY, IntProcedure v)
+    {
+	TIntStack nodeIds = queryContext.get().nodeIds;
+	int base = nodeIds.size();
+	nodeIds.push(nodeId);
+
+	try
 	{
-	    if (maxNodeEntries - newNode.entryCount + 1 == minNodeEntries)
+	    while (nodeIds.size() > base)
 	    {
-		// assign all remaining entries to the original node
-		for (int i = 0; i < maxNodeEntries; i++)
+		int id = nodeIds.pop();
+		if (mappedPages != null)
 		{
-		    if (entryStatus[i] == ENTRY_STATUS_UNASSIGNED)
+		    if (!intersectsPage(id, minX, minY, maxX, maxY, v, nodeIds))
 		    {
-			entryStatus[i] = ENTRY_STATUS_ASSIGNED;
-			n.minBoundingBox.expandToInclude(n.entries[i]);
-			n.entryCount++;
+			return false;
 		    }
+		    continue;
 		}
-		break;
-	    }
-	    if (maxNodeEntries - newNode.entryCount + 1 == minNodeEntries)
-	    {
-		// assign all remaining entries to the new node
-		for (int i = 0; i < maxNodeEntries; i++)
+		Node n = getNode(id);
+		if (n.isLeaf())
 		{
-		    if (entryStatus[i] == ENTRY_STATUS_UNASSIGNED)
+		    for (int i = 0; i < n.entryCount; i++)
 		    {
-			entryStatus[i] = ENTRY_STATUS_ASSIGNED;
-			newNode.addEntryNoCopy(n.entries[i], n.ids[i]);
-			n.entries[i] = null;
-			n.entryCount++;
+			if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i], n.minY[i],
+						     n.maxX[i], n.maxY[i]))
+			{
+			    if (!v.execute(n.ids[i]))
+			    {
+				return false;
+			    }
+			}
+		    }
+		}
+		else
+		{
+		    for (int i = n.entryCount - 1; i >= 0; i--)
+		    {
+			if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i], n.minY[i],
+						     n.maxX[i], n.maxY[i]))
+			{
+			    nodeIds.push(n.ids[i]);
+			}
 		    }
 		}
-		break;
 	    }
-
-	    // Step 3: Select entry to assign
-	    // Invoke algorithm pickNext to choose the next entry to assign.
-	    // Add it to the the group whose covering envelope will have to be
-	    // enlarged least to accommodate it.Resolve ties by adding the entry
-	    // to the group with smaller area, then to the one with fewer
-	    // entries,
-	    // then to either. Repeat from Step 2
-	    pickNext(n, newNode);
+	    return true;
 	}
+	finally
+	{
+	    popTo(nodeIds, base);
+	}
+    }
 
-	n.reorganize(this);
-
-	// check that the minBoundingBox for each node is correct
-	if (INTERNAL_CONSISTENCY_CHECKING)
+    /**
+     * Searches one node of a tree returned by open() for intersects(), reading
+     * its page in place: calls execute() for each intersecting entry of a
+     * leaf, or pushes each intersecting child of a non-leaf node.
+     * 
+     * @param nodeId
+     *            Node to search
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @param v
+     * @param nodeIds
+     *            Stack of the nodes still to be searched
+     * @return false if the IntProcedure stopped the search
+     */
+    private boolean intersectsPage(int nodeId, double minX, double minY, double maxX,
+	    double maxY, IntProcedure v, TIntStack nodeIds)
+    {
+	NodePages pages = mappedPages;
+	ByteBuffer b = pages.slab(nodeId);
+	int page = pages.page(nodeId);
+	int count = pages.entryCount(b, page);
+	if (pages.isLeaf(b, page))
 	{
-	    if (!n.minBoundingBox.equals(calculateMinBB(n)))
+	    for (int i = 0; i < count; i++)
 	    {
-		log.error("Error: splitNode old node minimum bounding box wrong");
+		if (pages.intersects(b, page, i, minX, minY, maxX, maxY)
+			&& !v.execute(pages.id(b, page, i)))
+		{
+		    return false;
+		}
 	    }
-	    if (!newNode.minBoundingBox.equals(calculateMinBB(newNode)))
+	}
+	else
+	{
+	    for (int i = count - 1; i >= 0; i--)
 	    {
-		log.error("Error: splitNode new node minimum bounding box wrong");
+		if (pages.intersects(b, page, i, minX, minY, maxX, maxY))
+		{
+		    nodeIds.push(pages.id(b, page, i));
+		}
 	    }
 	}
-	return newNode;
+	return true;
     }
 
     /**
-     * Pick the seeds used to split a node. Select two entries to be the first
-     * elements of the groups
+     * Searches a tree returned by open() for the entries contained by an
+     * envelope, reading each page in place. Finds the entries in the same
+     * order as searchContains().
      * 
-     * @param n
-     * @param newEnv
-     * @param newId
-     * @param newNode
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Envelope that must contain the entries
+     * @param v
+     *            Procedure called for each entry found
      */
-    private void pickSeeds(Node n, Envelope newEnv, int newId, Node newNode)
+    private void containsPages(double minX, double minY, double maxX, double maxY,
+	    IntProcedure v)
     {
-	// Find extreme rectangles along all dimensions.
-	// Along each dimension, find the entry whose rectangle
-	// has the highest low side, and the one with the lowest high side.
-	// Record the separation
-	double maxNormalizedSeparation = 0;
-	int highestLowIndex = 0;
-	int lowestHighIndex = 0;
-
-	// for the purposes of picking seeds, take the minimim bound box of the
-	// node to include the new envelope as well
-	n.minBoundingBox.expandToInclude(newEnv);
+	NodePages pages = mappedPages;
+	TIntStack nodeIds = queryContext.get().nodeIds;
+	int base = nodeIds.size();
+	nodeIds.push(rootNodeId);
 
-	log.debug("pickSeeds(): NodeId = {}, newEnv = {}", n.nodeId, newEnv);
-
-	double tempHighestLowX = newEnv.getMinX();
-	// -1 indicates the new rectangle is the seed
-	int tempHighestLowIndexX = -1;
-
-	double tempLowestHighX = newEnv.getMaxX();
-	// -1 indicates the new rectangle is the seed
-	int tempLowestHighIndexX = -1;
-
-	double tempHighestLowY = newEnv.getMinY();
-	// -1 indicates the new rectangle is the seed
-	int tempHighestLowIndexY = -1;
+	try
+	{
+	    while (nodeIds.size() > base)
+	    {
+		int nodeId = nodeIds.pop();
+		ByteBuffer b = pages.slab(nodeId);
+		int page = pages.page(nodeId);
+		int count = pages.entryCount(b, page);
+		if (pages.isLeaf(b, page))
+		{
+		    for (int i = 0; i < count; i++)
+		    {
+			if (pages.containedBy(b, page, i, minX, minY, maxX, maxY)
+				&& !v.execute(pages.id(b, page, i)))
+			{
+			    return;
+			}
+		    }
+		}
+		else
+		{
+		    // A child that intersects the envelope may hold entries
+		    // contained by it
+		    for (int i = count - 1; i >= 0; i--)
+		    {
+			if (pages.intersects(b, page, i, minX, minY, maxX, maxY))
+			{
+			    nodeIds.push(pages.id(b, page, i));
+			}
+		    }
+		}
+	    }
+	}
+	finally
+	{
+	    popTo(nodeIds, base);
+	}
+    }
 
-	double tempLowestHighY = newEnv.getMaxY();
-	// -1 indicates the new rectangle is the seed
-	int tempLowestHighIndexY = -1;
+    /**
+     * Searches one node of a tree returned by open() for nearest(), reading
+     * its page in place: as the leaf case of nearest() for a leaf, or as
+     * nearestChildren() for a non-leaf node.
+     * 
+     * @param x
+     * @param y
+     *            Point to search from
+     * @param nodeId
+     *            Node to search
+     * @param nearestDistanceSq
+     *            Square of the distance of the nearest entry found so far
+     * @param nearestBase
+     *            Number of nearestIds to leave untouched
+     * @param context
+     *            Query context of the calling thread
+     * @return square of the lowered nearest distance
+     */
+    private double nearestPage(double x, double y, int nodeId, double nearestDistanceSq,
+	    int nearestBase, QueryContext context)
+    {
+	NodePages pages = mappedPages;
+	TIntArrayList nearestIds = context.nearestIds;
+	ByteBuffer b = pages.slab(nodeId);
+	int page = pages.page(nodeId);
+	int count = pages.entryCount(b, page);
 
-	for (int i = 0; i < n.entryCount; i++)
+	if (pages.isLeaf(b, page))
 	{
-	    double tempLowX = n.entries[i].getMinX();
-	    double tempLowY = n.entries[i].getMinY();
-	    if (tempLowX >= tempHighestLowX)
-	    {
-		tempHighestLowX = tempLowX;
-		tempHighestLowIndexX = i;
-	    }
-	    else
+	    for (int i = 0; i < count; i++)
 	    {
-		// Ensure that the same index cannot be both
-		// lowestHighX and highestLowX
-		double tempHighX = n.entries[i].getMaxX();
-		if (tempHighX <= tempLowestHighX)
+		double distanceSq = pages.distanceSq(b, page, i, x, y);
+		if (distanceSq < nearestDistanceSq)
 		{
-		    tempLowestHighX = tempHighX;
-		    tempLowestHighIndexX = i;
+		    nearestDistanceSq = distanceSq;
+		    truncate(nearestIds, nearestBase);
 		}
-	    }
-	    if (tempLowY >= tempHighestLowY)
-	    {
-		tempHighestLowY = tempLowY;
-		tempHighestLowIndexY = i;
-	    }
-	    else
-	    {
-		// Ensure that the same index cannot be both
-		// lowestHighY and highestLowY
-		double tempHighY = n.entries[i].getMaxY();
-		if (tempHighY <= tempLowestHighY)
+		if (distanceSq <= nearestDistanceSq)
 		{
-		    tempLowestHighY = tempHighY;
-		    tempLowestHighIndexY = i;
+		    nearestIds.add(pages.id(b, page, i));
 		}
 	    }
+	    return nearestDistanceSq;
+	}
 
-	    // Step 2: Adjust for shape of the rectangle cluster
-	    // Normalize the separations by dividing by the widths
-	    // of the entire set along the corresponding dimension
-	    // NOTE: This ensures that it doesn't matter what
-	    // dimension is being
-	    double normalizedSeparationX =
-		    (tempHighestLowX - tempLowestHighX)
-			    / (n.minBoundingBox.getMaxX() - n.minBoundingBox.getMinX());
-	    double normalizedSeparationY =
-		    (tempHighestLowY - tempLowestHighY)
-			    / (n.minBoundingBox.getMaxY() - n.minBoundingBox.getMinY());
-
-	    if (normalizedSeparationX > 1 || normalizedSeparationX < -1)
+	for (int i = 0; i < count; i++)
+	{
+	    double minMaxDistanceSq = pages.minMaxDistanceSq(b, page, i, x, y);
+	    if (minMaxDistanceSq < nearestDistanceSq)
 	    {
-		log.error("Invalid normalized separation");
+		nearestDistanceSq = minMaxDistanceSq;
+		truncate(nearestIds, nearestBase);
 	    }
-	    if (normalizedSeparationY > 1 || normalizedSeparationY < -1)
+	}
+	for (int i = count - 1; i >= 0; i--)
+	{
+	    double distanceSq = pages.distanceSq(b, page, i, x, y);
+	    if (distanceSq <= nearestDistanceSq)
 	    {
-		log.error("Invalid normalized separation");
+		context.nearestNodes.push(pages.id(b, page, i));
+		context.nearestNodeDistancesSq.add(distanceSq);
 	    }
+	}
+	return nearestDistanceSq;
+    }
 
-	    log.debug(
-		      "Entry {}, X dimension: HighestLow = {} (index {}), LowestHigh = {} (index {}), NormalizedSeparation = {}",
-		      new Object[] { i, tempHighestLowX, tempHighestLowIndexX, tempLowestHighX,
-			      tempLowestHighIndexX, normalizedSeparationX });
-	    log.debug(
-		      "Entry {}, Y dimension: HighestLow = {} (index {}), LowestHigh = {} (index {}), NormalizedSeparation = {}",
-		      new Object[] { i, tempHighestLowY, tempHighestLowIndexY, tempLowestHighY,
-			      tempLowestHighIndexY, normalizedSeparationY });
-
-	    // Step 3: Select the most extreme pair
-	    // Choose the pair with the greatest normalized
-	    // separation along any dimension
-	    if (normalizedSeparationX > maxNormalizedSeparation)
-	    {
-		maxNormalizedSeparation = normalizedSeparationX;
-		highestLowIndex = tempHighestLowIndexX;
-		lowestHighIndex = tempLowestHighIndexX;
-	    }
-	    if (normalizedSeparationY > maxNormalizedSeparation)
+    /**
+     * Queues the entries of one node of a tree returned by open() for
+     * nearestN(), reading its page in place
+     * 
+     * @param x
+     * @param y
+     *            Point to search from
+     * @param nodeId
+     *            Node to search
+     * @param maxDistanceSq
+     *            Square of the maximum distance of the entries to find
+     * @param nearestQueue
+     *            Queue of the search
+     */
+    private void nearestNPage(double x, double y, int nodeId, double maxDistanceSq,
+	    DistanceQueue nearestQueue)
+    {
+	NodePages pages = mappedPages;
+	ByteBuffer b = pages.slab(nodeId);
+	int page = pages.page(nodeId);
+	int count = pages.entryCount(b, page);
+	boolean leaf = pages.isLeaf(b, page);
+	for (int i = 0; i < count; i++)
+	{
+	    double distanceSq = pages.distanceSq(b, page, i, x, y);
+	    if (distanceSq <= maxDistanceSq)
 	    {
-		maxNormalizedSeparation = normalizedSeparationY;
-		highestLowIndex = tempHighestLowIndexY;
-		lowestHighIndex = tempLowestHighIndexY;
+		nearestQueue.push(distanceSq, pages.id(b, page, i), leaf);
 	    }
 	}
+    }
 
-	// highestLowIndex is the seed for the new node
-	if (highestLowIndex == -1)
-	{
-	    newNode.addEntry(newEnv, newId);
-	}
-	else
+    /**
+     * Remove the values added to a list since it held the given number
+     * 
+     * @param list
+     *            List shared by the searches of a thread
+     * @param size
+     *            Number of values to keep
+     */
+    private static void truncate(TIntArrayList list, int size)
+    {
+	if (list.size() > size)
 	{
-	    newNode.addEntryNoCopy(n.entries[highestLowIndex], n.ids[highestLowIndex]);
-	    n.entries[highestLowIndex] = null;
-
-	    // move the new envelope into the space vacted by the seed for the
-	    // new node
-	    n.entries[highestLowIndex] = newEnv;
-	    n.ids[highestLowIndex] = newId;
+	    list.remove(size, list.size() - size);
 	}
+    }
 
-	// lowestHighIndex is the seed for the original node
-	if (lowestHighIndex == -1)
+    /**
+     * Pop the values pushed onto a stack since it held the given number, so
+     * that a search leaves the stack as it found it
+     * 
+     * @param stack
+     *            Stack shared by the searches of a thread
+     * @param size
+     *            Size of the stack when the search started
+     */
+    private static void popTo(TIntStack stack, int size)
+    {
+	while (stack.size() > size)
 	{
-	    lowestHighIndex = highestLowIndex;
+	    stack.pop();
 	}
-
-	entryStatus[lowestHighIndex] = ENTRY_STATUS_ASSIGNED;
-	n.entryCount = 1;
-
-	n.minBoundingBox.init(n.entries[lowestHighIndex].getMinX(),
-			      n.entries[lowestHighIndex].getMinY(),
-			      n.entries[lowestHighIndex].getMaxX(),
-			      n.entries[lowestHighIndex].getMaxY());
     }
 
     /**
-     * Pick the next entry to be assigned to a group during a node split.
-     * 
-     * Determine the cost of putting each entry in each group. For each entry
-     * not yet in a group, calculate the area increase required in the covering
-     * rectangles of each group
-     * 
-     * @param n
-     * @param newNode
-     * @return
+     * Searches the tree for all intersecting entries using the query threads,
+     * when QueryThreads is more than 1.
+     * <p>
+     * The intersecting nodes are expanded level by level from the root until
+     * there are enough of them to share between the threads. Each task then
+     * searches a run of consecutive nodes, collecting the ids it finds, and
+     * the lists of ids are passed to the IntProcedure on this thread in task
+     * order, which is the order in which intersects() finds them. If the nodes
+     * are expected to hold few leaves they are searched on this thread.
+     * </p>
+     * <p>
+     * The tasks only read the tree, under the read lock held by this thread,
+     * so this does not return until all of them have ended.
+     * </p>
      */
-    private int pickNext(Node n, Node newNode)
+    private void parallelIntersects(double minX, double minY, double maxX, double maxY,
+	    IntProcedure v)
     {
-	double maxDifference = Double.NEGATIVE_INFINITY;
-	int next = 0;
-	int nextGroup = 0;
-
-	log.debug("pickNext()");
-
-	for (int i = 0; i < maxNodeEntries; i++)
+	int taskCount = PARALLEL_TASKS_PER_THREAD * queryThreads;
+	TIntArrayList frontier = new TIntArrayList();
+	frontier.add(rootNodeId);
+	int level = treeHeight;
+	while (level > 1 && frontier.size() < taskCount)
 	{
-	    if (entryStatus[i] == ENTRY_STATUS_UNASSIGNED)
+	    TIntArrayList children = new TIntArrayList();
+	    for (int f = 0; f < frontier.size(); f++)
 	    {
-		if (n.entries[i] == null)
+		Node n = getNode(frontier.get(f));
+		for (int i = 0; i < n.entryCount; i++)
 		{
-		    log.error("Error: Node {}, entry {} is null", n.nodeId, i);
+		    if (EnvelopeUtils.intersects(minX, minY, maxX, maxY, n.minX[i], n.minY[i],
+						 n.maxX[i], n.maxY[i]))
+		    {
+			children.add(n.ids[i]);
+		    }
 		}
+	    }
+	    frontier = children;
+	    level--;
+	}
 
-		double nIncrease = n.enlargement(n.entries[i]);
-		double newNodeIncrease = newNode.enlargement(n.entries[i]);
-		double difference = Math.abs(nIncrease - newNodeIncrease);
+	// Leaves below the frontier if every node were full
+	long leaves = frontier.size();
+	for (int l = level; l > 1 && leaves < PARALLEL_MIN_LEAVES; l--)
+	{
+	    leaves *= maxNodeEntries;
+	}
+	if (leaves < PARALLEL_MIN_LEAVES || frontier.size() < 2)
+	{
+	    for (int f = 0; f < frontier.size(); f++)
+	    {
+		if (!intersects(frontier.get(f), minX, minY, maxX, maxY, v))
+		{
+		    return;
+		}
+	    }
+	    return;
+	}
 
-		if (difference > maxDifference)
+	int[] nodeIds = frontier.toNativeArray();
+	taskCount = Math.min(taskCount, nodeIds.length);
+	AtomicBoolean stopped = new AtomicBoolean(false);
+	List<Future<TIntArrayList>> results = new ArrayList<Future<TIntArrayList>>(taskCount);
+	try
+	{
+	    for (int t = 0; t < taskCount; t++)
+	    {
+		int from = t * nodeIds.length / taskCount;
+		int to = (t + 1) * nodeIds.length / taskCount;
+		results.add(queryExecutor.submit(new IntersectsTask(nodeIds, from, to, minX, minY,
+								    maxX, maxY, stopped)));
+	    }
+	    for (int t = 0; t < taskCount; t++)
+	    {
+		TIntArrayList ids = results.get(t).get();
+		for (int i = 0; i < ids.size(); i++)
 		{
-		    next = i;
-		    if (nIncrease < newNodeIncrease)
-		    {
-			nextGroup = 0;
-		    }
-		    else if (newNodeIncrease < nIncrease)
-		    {
-			nextGroup = 1;
-		    }
-		    else if (n.minBoundingBox.getArea() < newNode.minBoundingBox.getArea())
-		    {
-			nextGroup = 0;
-		    }
-		    else if (newNode.minBoundingBox.getArea() < n.minBoundingBox.getArea())
-		    {
-			nextGroup = 1;
-		    }
-		    else if (newNode.entryCount < maxNodeEntries / 2)
-		    {
-			nextGroup = 0;
-		    }
-		    else
+		    if (!v.execute(ids.get(i)))
 		    {
-			nextGroup = 1;
+			return;
 		    }
-		    maxDifference = difference;
 		}
-		log.debug(
-			  "Entry {} group0 increase = {}, group1 increase = {}, diff = {}, MaxDiff = {} (entry {})",
-			  new Object[] { i, nIncrease, newNodeIncrease, difference, maxDifference,
-				  next });
 	    }
 	}
-
-	entryStatus[next] = ENTRY_STATUS_ASSIGNED;
-
-	if (nextGroup == 0)
+	catch (InterruptedException e)
 	{
-	    // Don't add the entry since it already exists in n.
-	    // We are just putting it back
-	    n.minBoundingBox.expandToInclude(n.entries[next]);
-	    n.entryCount++;
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while waiting for a parallel query", e);
 	}
-	else
+	catch (ExecutionException e)
+	{
+	    throw new IllegalStateException("Parallel query failed", e.getCause());
+	}
+	finally
 	{
-	    // move to new node
-	    newNode.addEntryNoCopy(n.entries[next], n.ids[next]);
-	    n.entries[next] = null;
+	    stopped.set(true);
+	    awaitTasks(results);
 	}
-	return next;
     }
 
     /**
-     * Recursively searches the tree for the nearest entry. Other queries call
-     * execute on an IntProcedure when a matching entry is found; however
-     * nearest() must store the entry Ids as it searches the tree, in case a
-     * nearer entry is found. <br>
-     * Uses the member variable nearestIds to store the nearest entry Ids.
-     * 
-     * TODO rewrite to be non-recursive?
-     * 
-     * @param p
-     * @param n
-     * @param nearestDistance
-     * @return
+     * Wait for all the tasks of a parallel query or packing step to end,
+     * whether or not they succeed, keeping the interrupt status of this thread
      */
-    private double nearest(Point p, Node n, double nearestDistance)
+    static void awaitTasks(List<? extends Future<?>> results)
     {
-	for (int i = 0; i < n.entryCount; i++)
+	boolean interrupted = false;
+	for (int t = 0; t < results.size(); t++)
 	{
-	    double tempDistance = EnvelopeUtils.distance(n.entries[i], p);
-	    if (n.isLeaf())
+	    while (true)
 	    {
-		// For leaves, the distance is an actual nearest distance
-		if (tempDistance < nearestDistance)
+		try
 		{
-		    nearestDistance = tempDistance;
-		    nearestIds.clear();
+		    results.get(t).get();
+		    break;
 		}
-		if (tempDistance <= nearestDistance)
+		catch (InterruptedException e)
 		{
-		    nearestIds.add(n.ids[i]);
+		    interrupted = true;
 		}
-	    }
-	    else
-	    {
-		// for index nodes, only go into them if they potentially could
-		// have an envelope closer than actualNearest
-		if (tempDistance <= nearestDistance)
+		catch (ExecutionException e)
 		{
-		    // search the child node
-		    nearestDistance = nearest(p, getNode(n.ids[i]), nearestDistance);
+		    break;
 		}
 	    }
 	}
-	return nearestDistance;
+	if (interrupted)
+	{
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Task of a parallel intersects() query, searching the subtrees of a run
+     * of nodes and collecting the ids found. Stops early once the query is
+     * stopped.
+     */
+    private class IntersectsTask implements Callable<TIntArrayList>, IntProcedure
+    {
+	private final int[] nodeIds;
+	private final int from;
+	private final int to;
+	private final double minX;
+	private final double minY;
+	private final double maxX;
+	private final double maxY;
+	private final AtomicBoolean stopped;
+	private final TIntArrayList ids = new TIntArrayList();
+
+	IntersectsTask(int[] nodeIds, int from, int to, double minX, double minY, double maxX,
+		double maxY, AtomicBoolean stopped)
+	{
+	    this.nodeIds = nodeIds;
+	    this.from = from;
+	    this.to = to;
+	    this.minX = minX;
+	    this.minY = minY;
+	    this.maxX = maxX;
+	    this.maxY = maxY;
+	    this.stopped = stopped;
+	}
+
+	public TIntArrayList call()
+	{
+	    for (int i = from; i < to && !stopped.get(); i++)
+	    {
+		intersects(nodeIds[i], minX, minY, maxX, maxY, this);
+	    }
+	    return ids;
+	}
+
+	public boolean execute(int id)
+	{
+	    ids.add(id);
+	    return !stopped.get();
+	}
     }
 
     /**
-     * Recursively searches the tree for all intersecting entries. Immediately
-     * calls execute() on the passed IntProcedure when a matching entry is
-     * found.
-     * 
-     * TODO rewrite this to be non-recursive? Make sure it doesn't slow it down.
-     * 
-     * @param env
-     * @param v
-     * @param n
+     * Searches the tree for the entries intersecting each of the queries,
+     * calling the visitor for each, until it returns false.
+     * <p>
+     * Non-recursive, as intersects(). Each node on the stack carries the
+     * list of queries that intersect it, so a node is only pushed if some
+     * query reaches it, and its entries are only tested against those
+     * queries.
+     * </p>
      */
-    private void intersects(Envelope env, IntProcedure v, Node n)
+    private void intersectsBatch(double[] minX, double[] minY, double[] maxX,
+	    double[] maxY, int count, BatchVisitor v)
     {
-	for (int i = 0; i < n.entryCount; i++)
+	if (count == 0)
+	{
+	    return;
+	}
+
+	// A stack still holding nodes belongs to a search whose visitor made
+	// this call, so it and its query lists are left alone
+	QueryContext context = queryContext.get();
+	TIntStack nodes = context.batchNodes;
+	int[] queries = context.batchQueries;
+	boolean nested = nodes.size() > 0;
+	if (nested)
+	{
+	    nodes = new TIntStack();
+	    queries = new int[count];
+	}
+	else if (queries.length < count)
 	{
-	    if (env.intersects(n.entries[i]))
+	    queries = new int[count];
+	}
+	for (int q = 0; q < count; q++)
+	{
+	    queries[q] = q;
+	}
+	// The queries of the node being searched, and the end of the lists of
+	// the nodes on the stack
+	int[] current = new int[count];
+	int top = count;
+	nodes.push(0);
+	nodes.push(count);
+	nodes.push(rootNodeId);
+
+	try
+	{
+	    while (nodes.size() > 0)
 	    {
+		Node n = getNode(nodes.pop());
+		int queryCount = nodes.pop();
+		top = nodes.pop();
+		System.arraycopy(queries, top, current, 0, queryCount);
+
 		if (n.isLeaf())
 		{
-		    v.execute(n.ids[i]);
+		    for (int i = 0; i < n.entryCount; i++)
+		    {
+			for (int j = 0; j < queryCount; j++)
+			{
+			    int q = current[j];
+			    if (EnvelopeUtils.intersects(minX[q], minY[q], maxX[q], maxY[q],
+							 n.minX[i], n.minY[i], n.maxX[i],
+							 n.maxY[i]))
+			    {
+				if (!v.visit(q, n.ids[i]))
+				{
+				    return;
+				}
+			    }
+			}
+		    }
 		}
 		else
 		{
-		    Node childNode = getNode(n.ids[i]);
-		    intersects(env, v, childNode);
+		    for (int i = n.entryCount - 1; i >= 0; i--)
+		    {
+			if (queries.length < top + queryCount)
+			{
+			    int[] newQueries =
+				    new int[Math.max(top + queryCount, 2 * queries.length)];
+			    System.arraycopy(queries, 0, newQueries, 0, top);
+			    queries = newQueries;
+			}
+			int start = top;
+			for (int j = 0; j < queryCount; j++)
+			{
+			    int q = current[j];
+			    if (EnvelopeUtils.intersects(minX[q], minY[q], maxX[q], maxY[q],
+							 n.minX[i], n.minY[i], n.maxX[i],
+							 n.maxY[i]))
+			    {
+				queries[top++] = q;
+			    }
+			}
+			if (top > start)
+			{
+			    nodes.push(start);
+			    nodes.push(top - start);
+			    nodes.push(n.ids[i]);
+			}
+		    }
 		}
 	    }
 	}
+	finally
+	{
+	    nodes.clear();
+	    if (!nested)
+	    {
+		context.batchQueries = queries;
+	    }
+	}
     }
 
     /**
@@ -922,8 +3508,6 @@ public class RTree implements SpatialIndex
      * Note that parent and parentEntryStacks are expected to contain the
      * nodeIds of all parents up to the root.
      */
-    private Envelope oldEnvelope = new Envelope();
-
     private void condenseTree(Node l)
     {
 	// Step 1: Initialize
@@ -940,7 +3524,7 @@ public class RTree implements SpatialIndex
 	// and En be N's entry in P
 	while (n.level != treeHeight)
 	{
-	    parent = getNode(parents.pop());
+	    parent = writableNode(getNode(parents.pop()));
 	    parentEntry = parentsEntry.pop();
 
 	    // Step 3: Eliminate under-full node
@@ -956,22 +3540,33 @@ public class RTree implements SpatialIndex
 		// Step 4: Adjust covering rectangle
 		// If N has not been eliminated, adjust EnI to tightly contain
 		// all entries in N
-		if (!n.minBoundingBox.equals(parent.entries[parentEntry]))
+		if (!parent.entryEquals(parentEntry, n))
 		{
-		    // Set the old Envelope to the current parent envelope
-		    oldEnvelope.init(parent.entries[parentEntry]);
+		    // Remember the old parent envelope
+		    double oldMinX = parent.minX[parentEntry];
+		    double oldMinY = parent.minY[parentEntry];
+		    double oldMaxX = parent.maxX[parentEntry];
+		    double oldMaxY = parent.maxY[parentEntry];
 		    // Update the parent entry to be the minimum bounding box of
 		    // N
-		    parent.entries[parentEntry].init(n.minBoundingBox);
+		    parent.setEntry(parentEntry, n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY);
 		    // Recalculate the minimum bounding box of the parent
-		    parent.recalculateMinBB(oldEnvelope);
+		    parent.recalculateMinBB(oldMinX, oldMinY, oldMaxX, oldMaxY);
 		}
+		parent.counts[parentEntry] = n.subtreeCount();
 	    }
 	    // Step 5: Move up one level in tree
 	    // Set N = P and repeat from Step 2
 	    n = parent;
 	}
 
+	// The root may hold fewer than minNodeEntries entries, in which case
+	// deleteEntry() has not maintained its minimum bounding box
+	if (n.entryCount < minNodeEntries)
+	{
+	    n.resetMinBB();
+	}
+
 	// Step 6: Reinsert orphaned entries
 	// Reinsert all entries of nodes in set Q.
 	// Entries from eliminated leaf nodes are
@@ -985,10 +3580,10 @@ public class RTree implements SpatialIndex
 	    Node e = getNode(eliminatedNodeIds.pop());
 	    for (int j = 0; j < e.entryCount; j++)
 	    {
-		add(e.entries[j], e.ids[j], e.level);
-		e.entries[j] = null;
+		add(e.minX[j], e.minY[j], e.maxX[j], e.maxY[j], e.ids[j],
+		    e.isLeaf() ? 1 : e.counts[j], e.level);
 	    }
-	    e.entryCount = 0;
+	    removeNode(e.nodeId);
 	    deletedNodeIds.push(e.nodeId);
 	}
     }
@@ -998,17 +3593,30 @@ public class RTree implements SpatialIndex
      * <p>
      * Used by add().
      * 
-     * @param env
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
      * @param level
      * @return Node to add the envelope to
      */
-    private Node chooseNode(Envelope env, int level)
+    private Node chooseNode(double minX, double minY, double maxX, double maxY, int level)
     {
 	// Step 1: Initialization
-	// Set N to be the root node;
-	Node n = getNode(rootNodeId);
-	parents.clear();
-	parentsEntry.clear();
+	// Set N to be the root node, or while addAll() runs, the lowest node on
+	// the path of the previous entry that already covers this one
+	boolean usePath = cachePath && level == 1;
+	Node n = null;
+	if (usePath)
+	{
+	    n = cachedStart(minX, minY, maxX, maxY);
+	}
+	if (n == null)
+	{
+	    n = getNode(rootNodeId);
+	    parents.clear();
+	    parentsEntry.clear();
+	}
 
 	while (true)
 	{
@@ -1020,6 +3628,11 @@ public class RTree implements SpatialIndex
 	    // If N is a leaf, return N
 	    if (n.level == level)
 	    {
+		if (usePath)
+		{
+		    cachedPathLength = parents.size();
+		    cachedLeafId = n.nodeId;
+		}
 		return n;
 	    }
 
@@ -1027,22 +3640,46 @@ public class RTree implements SpatialIndex
 	    // If N is not at the desired level, let F be the entry in N
 	    // whose envelope FI needs least enlargement to include EI.
 	    // Resolve ties by choosing the entry with the envelope with
-	    // the smallest area
-	    double leastEnlargement = EnvelopeUtils.enlargement(n.entries[0], env);
+	    // the smallest area.
+	    // The R* variant instead chooses the entry needing least overlap
+	    // enlargement when the children of N are at the desired level.
+	    if (treeVariant == TREE_VARIANT_RSTAR && n.level == level + 1)
+	    {
+		int index = chooseLeastOverlapEnlargement(n, minX, minY, maxX, maxY);
+		if (usePath)
+		{
+		    cachePathEntry(n.nodeId, index);
+		}
+		parents.push(n.nodeId);
+		parentsEntry.push(index);
+		n = getNode(n.ids[index]);
+		continue;
+	    }
+
+	    double leastEnlargement =
+		    EnvelopeUtils.enlargement(n.minX[0], n.minY[0], n.maxX[0], n.maxY[0], minX,
+					      minY, maxX, maxY);
 	    // Index of envelope in subtree
 	    int index = 0;
 	    for (int i = 1; i < n.entryCount; i++)
 	    {
-		Envelope tempEnv = n.entries[i];
-		double tempEnlargment = EnvelopeUtils.enlargement(tempEnv, env);
+		double tempEnlargment =
+			EnvelopeUtils.enlargement(n.minX[i], n.minY[i], n.maxX[i], n.maxY[i],
+						  minX, minY, maxX, maxY);
 		if ((tempEnlargment < leastEnlargement)
-			|| ((tempEnlargment == leastEnlargement && tempEnv.getArea() < n.entries[index].getArea())))
+			|| ((tempEnlargment == leastEnlargement && EnvelopeUtils.area(n.minX[i],
+				n.minY[i], n.maxX[i], n.maxY[i]) < EnvelopeUtils.area(n.minX[index],
+				n.minY[index], n.maxX[index], n.maxY[index]))))
 		{
 		    index = i;
 		    leastEnlargement = tempEnlargment;
 		}
 	    }
 
+	    if (usePath)
+	    {
+		cachePathEntry(n.nodeId, index);
+	    }
 	    parents.push(n.nodeId);
 	    parentsEntry.push(index);
 
@@ -1053,6 +3690,256 @@ public class RTree implements SpatialIndex
 	}
     }
 
+    /**
+     * Record the entry that the descent of chooseNode() follows from a node,
+     * at the depth of the node, for cachedStart()
+     */
+    private void cachePathEntry(int nodeId, int entry)
+    {
+	int depth = parents.size();
+	if (depth >= cachedPathIds.length)
+	{
+	    int[] newPathIds = new int[treeHeight];
+	    int[] newPathEntries = new int[treeHeight];
+	    System.arraycopy(cachedPathIds, 0, newPathIds, 0, cachedPathIds.length);
+	    System.arraycopy(cachedPathEntries, 0, newPathEntries, 0, cachedPathEntries.length);
+	    cachedPathIds = newPathIds;
+	    cachedPathEntries = newPathEntries;
+	}
+	cachedPathIds[depth] = nodeId;
+	cachedPathEntries[depth] = entry;
+    }
+
+    /**
+     * Find the lowest node on the path to the leaf chosen for the previous
+     * entry whose envelope covers the new entry, and set the parents stacks to
+     * its path. The descent can start from that node, as no envelope above it
+     * needs to grow. Consecutive entries of a Hilbert ordered batch are close
+     * together, so they usually share most of their path. The path is checked
+     * as it is followed, as splits since it was cached may have changed it.
+     * 
+     * @return the node to start from, or null to start from the root
+     */
+    private Node cachedStart(double minX, double minY, double maxX, double maxY)
+    {
+	if (cachedLeafId < 0 || cachedPathLength != treeHeight - 1
+		|| (cachedPathLength > 0 && cachedPathIds[0] != rootNodeId)
+		|| (cachedPathLength == 0 && cachedLeafId != rootNodeId))
+	{
+	    return null;
+	}
+	Node n = getNode(rootNodeId);
+	if (!EnvelopeUtils.contains(n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY, minX, minY,
+				    maxX, maxY))
+	{
+	    return null;
+	}
+
+	// Follow the path while the next node covers the entry
+	int depth = 0;
+	while (depth < cachedPathLength)
+	{
+	    int entry = cachedPathEntries[depth];
+	    int childId = (depth + 1 < cachedPathLength) ? cachedPathIds[depth + 1] : cachedLeafId;
+	    if (entry >= n.entryCount
+		    || n.ids[entry] != childId
+		    || !EnvelopeUtils.contains(n.minX[entry], n.minY[entry], n.maxX[entry],
+					       n.maxY[entry], minX, minY, maxX, maxY))
+	    {
+		break;
+	    }
+	    n = getNode(childId);
+	    depth++;
+	}
+
+	parents.reset();
+	parentsEntry.reset();
+	for (int i = 0; i < depth; i++)
+	{
+	    parents.push(cachedPathIds[i]);
+	    parentsEntry.push(cachedPathEntries[i]);
+	}
+	return n;
+    }
+
+    /**
+     * Choose the entry of n whose envelope needs the least overlap enlargement
+     * to include the given envelope, i.e. whose overlap with the other entries
+     * of n grows least. Resolve ties by least area enlargement, then by
+     * smallest area. Used by the R* variant.
+     * 
+     * @return index of the chosen entry
+     */
+    private int chooseLeastOverlapEnlargement(Node n, double minX, double minY, double maxX,
+	    double maxY)
+    {
+	int index = 0;
+	double leastOverlapEnlargement = Double.POSITIVE_INFINITY;
+	double leastEnlargement = Double.POSITIVE_INFINITY;
+	double leastArea = Double.POSITIVE_INFINITY;
+
+	for (int i = 0; i < n.entryCount; i++)
+	{
+	    double unionMinX = Math.min(n.minX[i], minX);
+	    double unionMinY = Math.min(n.minY[i], minY);
+	    double unionMaxX = Math.max(n.maxX[i], maxX);
+	    double unionMaxY = Math.max(n.maxY[i], maxY);
+
+	    double overlapEnlargement = 0;
+	    for (int j = 0; j < n.entryCount; j++)
+	    {
+		if (j != i)
+		{
+		    overlapEnlargement +=
+			    EnvelopeUtils.intersectionArea(unionMinX, unionMinY, unionMaxX,
+							   unionMaxY, n.minX[j], n.minY[j],
+							   n.maxX[j], n.maxY[j])
+				    - EnvelopeUtils.intersectionArea(n.minX[i], n.minY[i],
+								     n.maxX[i], n.maxY[i],
+								     n.minX[j], n.minY[j],
+								     n.maxX[j], n.maxY[j]);
+		}
+	    }
+
+	    double area = EnvelopeUtils.area(n.minX[i], n.minY[i], n.maxX[i], n.maxY[i]);
+	    double enlargement =
+		    EnvelopeUtils.area(unionMinX, unionMinY, unionMaxX, unionMaxY) - area;
+
+	    if (overlapEnlargement < leastOverlapEnlargement
+		    || (overlapEnlargement == leastOverlapEnlargement && (enlargement < leastEnlargement
+			    || (enlargement == leastEnlargement && area < leastArea))))
+	    {
+		index = i;
+		leastOverlapEnlargement = overlapEnlargement;
+		leastEnlargement = enlargement;
+		leastArea = area;
+	    }
+	}
+	return index;
+    }
+
+    /**
+     * R* overflow treatment. The first time a non-root node at a given level
+     * overflows during an insertion, the entries furthest from the centre of
+     * the node are removed and queued for reinsertion instead of splitting the
+     * node. This lets the tree reorganize itself and usually avoids the split
+     * altogether.
+     * 
+     * @param n
+     *            Full node
+     * @param newMinX
+     * @param newMinY
+     * @param newMaxX
+     * @param newMaxY
+     * @param newId
+     * @param newCount
+     *            Entry that did not fit into n
+     * @return true if entries were queued for reinsertion, false if n must be
+     *         split
+     */
+    private boolean queueReinsert(Node n, double newMinX, double newMinY, double newMaxX,
+	    double newMaxY, int newId, int newCount)
+    {
+	long levelBit = 1L << n.level;
+	if (treeVariant != TREE_VARIANT_RSTAR || n.level == treeHeight
+		|| (overflowedLevels & levelBit) != 0)
+	{
+	    return false;
+	}
+	overflowedLevels |= levelBit;
+
+	int count = loadSplitEntries(n, newMinX, newMinY, newMaxX, newMaxY, newId, newCount);
+
+	// Sort the entries by the distance between their centre and the centre
+	// of the node
+	double centreX = (n.mbrMinX + n.mbrMaxX) / 2;
+	double centreY = (n.mbrMinY + n.mbrMaxY) / 2;
+	for (int i = 0; i < count; i++)
+	{
+	    double dx = (splitMinX[i] + splitMaxX[i]) / 2 - centreX;
+	    double dy = (splitMinY[i] + splitMaxY[i]) / 2 - centreY;
+	    splitKeys[i] = dx * dx + dy * dy;
+	    splitOrder[i] = i;
+	}
+	IndexSort.sort(splitOrder, 0, count, splitKeys, splitBuffer);
+
+	// Keep the nearest entries, and queue the furthest for reinsertion,
+	// nearest first
+	int reinsertCount = Math.max(1, (int) (maxNodeEntries * REINSERT_FRACTION));
+	int keepCount = count - reinsertCount;
+	n.entryCount = 0;
+	n.resetMinBB();
+	for (int k = 0; k < count; k++)
+	{
+	    int e = splitOrder[k];
+	    if (k < keepCount)
+	    {
+		n.addEntry(splitMinX[e], splitMinY[e], splitMaxX[e], splitMaxY[e], splitIds[e],
+			   splitCounts[e]);
+	    }
+	    else
+	    {
+		reinsertMinX.add(splitMinX[e]);
+		reinsertMinY.add(splitMinY[e]);
+		reinsertMaxX.add(splitMaxX[e]);
+		reinsertMaxY.add(splitMaxY[e]);
+		reinsertIds.add(splitIds[e]);
+		reinsertCounts.add(splitCounts[e]);
+		reinsertLevels.add(n.level);
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Reinsert the entries queued by queueReinsert(). Reinserting may queue
+     * further entries, which are reinserted in turn.
+     */
+    private void reinsertQueued()
+    {
+	for (int i = 0; i < reinsertIds.size(); i++)
+	{
+	    add(reinsertMinX.get(i), reinsertMinY.get(i), reinsertMaxX.get(i),
+		reinsertMaxY.get(i), reinsertIds.get(i), reinsertCounts.get(i),
+		reinsertLevels.get(i));
+	}
+	reinsertMinX.clear();
+	reinsertMinY.clear();
+	reinsertMaxX.clear();
+	reinsertMaxY.clear();
+	reinsertIds.clear();
+	reinsertCounts.clear();
+	reinsertLevels.clear();
+    }
+
+    /**
+     * Copy the entries of a full node, followed by the new entry, into the
+     * split arrays
+     * 
+     * @return number of entries copied (maxNodeEntries + 1)
+     */
+    private int loadSplitEntries(Node n, double newMinX, double newMinY, double newMaxX,
+	    double newMaxY, int newId, int newCount)
+    {
+	int count = n.entryCount;
+	System.arraycopy(n.minX, 0, splitMinX, 0, count);
+	System.arraycopy(n.minY, 0, splitMinY, 0, count);
+	System.arraycopy(n.maxX, 0, splitMaxX, 0, count);
+	System.arraycopy(n.maxY, 0, splitMaxY, 0, count);
+	System.arraycopy(n.ids, 0, splitIds, 0, count);
+	if (n.counts != null)
+	{
+	    System.arraycopy(n.counts, 0, splitCounts, 0, count);
+	}
+	splitMinX[count] = newMinX;
+	splitMinY[count] = newMinY;
+	splitMaxX[count] = newMaxX;
+	splitMaxY[count] = newMaxY;
+	splitIds[count] = newId;
+	splitCounts[count] = newCount;
+	return count + 1;
+    }
+
     /**
      * Ascend from a leaf node L to the root, adjusting covering envelopes and
      * propagating node splits as necessary.
@@ -1084,14 +3971,17 @@ public class RTree implements SpatialIndex
 			  new Object[] { entry, parent.nodeId, n.nodeId, parent.ids[entry] });
 	    }
 
-	    if (!parent.entries[entry].equals(n.minBoundingBox))
+	    if (!parent.entryEquals(entry, n))
 	    {
-		parent.entries[entry].init(n.minBoundingBox);
-		parent.minBoundingBox.init(parent.entries[0]);
-		for (int i = 1; i < parent.entryCount; i++)
-		{
-		    parent.minBoundingBox.expandToInclude(parent.entries[i]);
-		}
+		parent = writableNode(parent);
+		parent.setEntry(entry, n.mbrMinX, n.mbrMinY, n.mbrMaxX, n.mbrMaxY);
+		parent.resetMinBB();
+	    }
+	    int count = n.subtreeCount();
+	    if (parent.counts[entry] != count)
+	    {
+		parent = writableNode(parent);
+		parent.counts[entry] = count;
 	    }
 
 	    // Step 4: Propagate node split upward.
@@ -1103,13 +3993,19 @@ public class RTree implements SpatialIndex
 	    Node newNode = null;
 	    if (nn != null)
 	    {
+		parent = writableNode(parent);
+		int nnCount = nn.subtreeCount();
 		if (parent.entryCount < maxNodeEntries)
 		{
-		    parent.addEntry(nn.minBoundingBox, nn.nodeId);
+		    parent.addEntry(nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY, nn.nodeId,
+				    nnCount);
 		}
-		else
+		else if (!queueReinsert(parent, nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY,
+					nn.nodeId, nnCount))
 		{
-		    newNode = splitNode(parent, new Envelope(nn.minBoundingBox), nn.nodeId);
+		    newNode =
+			    splitNode(parent, nn.mbrMinX, nn.mbrMinY, nn.mbrMaxX, nn.mbrMaxY,
+				      nn.nodeId, nnCount);
 		}
 	    }
 
@@ -1150,14 +4046,14 @@ public class RTree implements SpatialIndex
 	}
 
 	Envelope calculatedMinBB = calculateMinBB(n);
-	if (!n.minBoundingBox.equals(calculatedMinBB))
+	if (!n.getMinBoundingBox().equals(calculatedMinBB))
 	{
 	    log.error(
 		      "Error: Node {}, calculated min bounding box does not equal stored min bounding box",
 		      nodeId);
 	}
 
-	if (expectedMinBB != null && !n.minBoundingBox.equals(expectedMinBB))
+	if (expectedMinBB != null && !n.getMinBoundingBox().equals(expectedMinBB))
 	{
 	    log.error(
 		      "Error: Node {}, expected min bounding box (from parent) does not equal stored min bounding box",
@@ -1166,7 +4062,7 @@ public class RTree implements SpatialIndex
 
 	for (int i = 0; i < n.entryCount; i++)
 	{
-	    if (n.entries[i] == null)
+	    if (n.isEntryNull(i))
 	    {
 		log.error("Error: Node {}, Entry {} is null", new Object[] { nodeId, i });
 	    }
@@ -1174,7 +4070,14 @@ public class RTree implements SpatialIndex
 	    if (n.level > 1)
 	    {
 		// If not a leaf node
-		checkConsistency(n.ids[i], n.level - 1, n.entries[i]);
+		checkConsistency(n.ids[i], n.level - 1, n.getEntry(i));
+
+		int count = getNode(n.ids[i]).subtreeCount();
+		if (n.counts[i] != count)
+		{
+		    log.error("Error: Node {}, Entry {}, expected count {}, actual count {}",
+			      new Object[] { nodeId, i, count, n.counts[i] });
+		}
 	    }
 	}
     }
@@ -1187,11 +4090,11 @@ public class RTree implements SpatialIndex
      */
     private Envelope calculateMinBB(Node n)
     {
-	Envelope minBB = new Envelope(n.entries[0]);
+	Envelope minBB = n.getEntry(0);
 
 	for (int i = 1; i < n.entryCount; i++)
 	{
-	    minBB.expandToInclude(n.entries[i]);
+	    minBB.expandToInclude(n.getEntry(i));
 	}
 	return minBB;
     }
@@ -0,0 +1,38 @@
+package geoearth.rtree.structure;
+
+/**
+ * Algorithm used by the {@link RTree} to divide the entries of an overflowing
+ * node between the node and a new sibling.
+ * <p>
+ * The entries are passed as parallel coordinate arrays, holding the entries of
+ * the full node followed by the entry that did not fit. An implementation only
+ * decides which group each entry belongs to; the tree moves the entries.
+ * Implementations may keep scratch space between calls, so an instance must not
+ * be shared between trees.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+public interface SplitStrategy
+{
+    /**
+     * Divide the entries into two groups, each holding at least minEntries
+     * entries
+     *
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     *            Envelopes of the entries to divide
+     * @param count
+     *            Number of entries
+     * @param minEntries
+     *            Minimum number of entries in each group
+     * @param group
+     *            On return, group[i] is 0 if entry i stays in the split node
+     *            and 1 if it moves to the new node
+     */
+    public void split(double[] minX, double[] minY, double[] maxX, double[] maxY, int count,
+	    int minEntries, byte[] group);
+}
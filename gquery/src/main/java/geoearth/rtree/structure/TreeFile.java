@@ -0,0 +1,282 @@
+package geoearth.rtree.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * File holding a whole {@link RTree}, written by {@link RTree#save(File)} and
+ * by checkpoints, and read by {@link RTree#open(File)} and on recovery.
+ * <p>
+ * The file starts with a header, in big endian order, followed by a fixed
+ * size page for each node id in the layout of {@link NodePages}, so that the
+ * tree can be queried from a mapping of the file without reading it first.
+ * The pages are in the byte order of the machine that wrote the file:
+ *
+ * <pre>
+ * header: int magic, int version, int byte order (0 big endian, 1 little),
+ *         int maxNodeEntries, minNodeEntries, treeHeight, rootNodeId, size,
+ *         int pageCount, pageBytes, long log generation, padded to 64 bytes
+ * page:   as in NodePages, all zero if the node id is free
+ * </pre>
+ * </p>
+ * <p>
+ * An instance holds the header of a file, either read from it or describing
+ * a tree about to be written.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class TreeFile
+{
+    private static final int MAGIC = 0x47525452; // "GRTR"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 64;
+    // Number of pages read or written at a time
+    private static final int BATCH_PAGES = 256;
+
+    /**
+     * Receives the pages read from the file by readPages()
+     */
+    interface Visitor
+    {
+	/**
+	 * @param id
+	 *            Node id of the page
+	 * @param n
+	 *            Node read from the page, or null if the node id is free
+	 */
+	void page(int id, Node n);
+
+	/**
+	 * Called after each batch of pages
+	 */
+	void endOfBatch();
+    }
+
+    final ByteOrder order;
+    final int maxNodeEntries;
+    final int minNodeEntries;
+    final int treeHeight;
+    final int rootNodeId;
+    final int size;
+    final int pageCount;
+    final int pageBytes;
+    // Generation of the log that follows a checkpoint, or 0
+    final long generation;
+
+    /**
+     * Describe a tree to write, in the byte order of this machine
+     *
+     * @param pageCount
+     *            Highest node id used by the tree, plus one
+     * @param generation
+     *            Generation of the checkpoint being written, or 0
+     */
+    TreeFile(int maxNodeEntries, int minNodeEntries, int treeHeight, int rootNodeId, int size,
+	    int pageCount, long generation)
+    {
+	this(ByteOrder.nativeOrder(), maxNodeEntries, minNodeEntries, treeHeight, rootNodeId,
+	     size, pageCount, new NodePages(maxNodeEntries).pageBytes(), generation);
+    }
+
+    private TreeFile(ByteOrder order, int maxNodeEntries, int minNodeEntries, int treeHeight,
+	    int rootNodeId, int size, int pageCount, int pageBytes, long generation)
+    {
+	this.order = order;
+	this.maxNodeEntries = maxNodeEntries;
+	this.minNodeEntries = minNodeEntries;
+	this.treeHeight = treeHeight;
+	this.rootNodeId = rootNodeId;
+	this.size = size;
+	this.pageCount = pageCount;
+	this.pageBytes = pageBytes;
+	this.generation = generation;
+    }
+
+    /**
+     * Read and check the header of a file
+     *
+     * @param channel
+     *            Channel of the file, positioned at its start
+     * @param file
+     *            File, for error messages
+     * @return the header
+     * @throws IOException
+     *             if the file cannot be read or is not an RTree file
+     */
+    static TreeFile readHeader(FileChannel channel, File file) throws IOException
+    {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+	while (header.hasRemaining())
+	{
+	    if (channel.read(header) < 0)
+	    {
+		throw new IOException("Not an RTree file: " + file);
+	    }
+	}
+	header.flip();
+	if (header.getInt() != MAGIC)
+	{
+	    throw new IOException("Not an RTree file: " + file);
+	}
+	int fileVersion = header.getInt();
+	if (fileVersion != VERSION)
+	{
+	    throw new IOException("Unsupported RTree file version " + fileVersion + ": " + file);
+	}
+
+	ByteOrder order = (header.getInt() == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+	int maxNodeEntries = header.getInt();
+	int minNodeEntries = header.getInt();
+	int treeHeight = header.getInt();
+	int rootNodeId = header.getInt();
+	int size = header.getInt();
+	int pageCount = header.getInt();
+	int pageBytes = header.getInt();
+	long generation = header.getLong();
+	return new TreeFile(order, maxNodeEntries, minNodeEntries, treeHeight, rootNodeId, size,
+			    pageCount, pageBytes, generation);
+    }
+
+    /**
+     * Write the header and the nodes of a tree to a file, replacing any
+     * existing file. The caller holds the read or write lock of the tree, if
+     * any.
+     *
+     * @param file
+     *            File to write
+     * @param tree
+     *            Tree that this header describes
+     * @param force
+     *            true to force the file to disk before returning
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    void write(File file, RTree tree, boolean force) throws IOException
+    {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+	header.putInt(MAGIC);
+	header.putInt(VERSION);
+	header.putInt(order == ByteOrder.BIG_ENDIAN ? 0 : 1);
+	header.putInt(maxNodeEntries);
+	header.putInt(minNodeEntries);
+	header.putInt(treeHeight);
+	header.putInt(rootNodeId);
+	header.putInt(size);
+	header.putInt(pageCount);
+	header.putInt(pageBytes);
+	header.putLong(generation);
+	header.clear();
+
+	RandomAccessFile out = new RandomAccessFile(file, "rw");
+	try
+	{
+	    out.setLength(0);
+	    FileChannel channel = out.getChannel();
+	    channel.write(header);
+
+	    NodePages layout = new NodePages(maxNodeEntries);
+	    ByteBuffer pages = ByteBuffer.allocate(BATCH_PAGES * pageBytes).order(order);
+	    for (int first = 0; first < pageCount; first += BATCH_PAGES)
+	    {
+		int count = Math.min(BATCH_PAGES, pageCount - first);
+		Arrays.fill(pages.array(), (byte) 0);
+		for (int i = 0; i < count; i++)
+		{
+		    Node n = tree.getNode(first + i);
+		    if (n != null)
+		    {
+			layout.write(pages, i * pageBytes, n);
+		    }
+		}
+		pages.clear();
+		pages.limit(count * pageBytes);
+		while (pages.hasRemaining())
+		{
+		    channel.write(pages);
+		}
+	    }
+	    if (force)
+	    {
+		channel.force(true);
+	    }
+	}
+	finally
+	{
+	    out.close();
+	}
+    }
+
+    /**
+     * Map the pages of the file into memory
+     *
+     * @param channel
+     *            Channel of the file, opened for reading
+     * @param file
+     *            File, for error messages
+     * @return read-only pages backed by the file
+     * @throws IOException
+     *             if the file is truncated or damaged
+     */
+    NodePages map(FileChannel channel, File file) throws IOException
+    {
+	if (channel.size() < HEADER_BYTES + (long) pageCount * pageBytes)
+	{
+	    throw new IOException("RTree file is truncated: " + file);
+	}
+	NodePages pages = NodePages.map(channel, HEADER_BYTES, maxNodeEntries, pageCount, order);
+	if (pages.pageBytes() != pageBytes)
+	{
+	    throw new IOException("RTree file is damaged: " + file);
+	}
+	return pages;
+    }
+
+    /**
+     * Read the pages of the file in order of node id, a batch at a time
+     *
+     * @param channel
+     *            Channel of the file, opened for reading
+     * @param file
+     *            File, for error messages
+     * @param visitor
+     *            Receives the node of each page
+     * @throws IOException
+     *             if the file cannot be read, or is truncated or damaged
+     */
+    void readPages(FileChannel channel, File file, Visitor visitor) throws IOException
+    {
+	NodePages layout = new NodePages(maxNodeEntries);
+	if (layout.pageBytes() != pageBytes)
+	{
+	    throw new IOException("RTree file is damaged: " + file);
+	}
+	ByteBuffer pages = ByteBuffer.allocate(BATCH_PAGES * pageBytes).order(order);
+	long position = HEADER_BYTES;
+	for (int first = 0; first < pageCount; first += BATCH_PAGES)
+	{
+	    int count = Math.min(BATCH_PAGES, pageCount - first);
+	    pages.clear();
+	    pages.limit(count * pageBytes);
+	    while (pages.hasRemaining())
+	    {
+		if (channel.read(pages, position + pages.position()) < 0)
+		{
+		    throw new IOException("RTree file is truncated: " + file);
+		}
+	    }
+	    for (int i = 0; i < count; i++)
+	    {
+		visitor.page(first + i, layout.read(pages, i * pageBytes, first + i));
+	    }
+	    visitor.endOfBatch();
+	    position += (long) count * pageBytes;
+	}
+    }
+}
@@ -0,0 +1,219 @@
+package geoearth.rtree.structure;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Recovery log of an {@link RTree}, used when the LogFile property is set: a
+ * {@link WriteAheadLog} of the changes made to the tree, and the checkpoints
+ * that bound it.
+ * <p>
+ * When the log is opened, the tree is loaded from the last checkpoint and the
+ * changes logged after it are replayed. Every CheckpointRecords changes
+ * logged, and whenever checkpoint() is called, the whole tree is written to
+ * the checkpoint file, in the format of {@link TreeFile}, and the log is
+ * emptied.
+ * </p>
+ * <p>
+ * A checkpoint is written to a temporary file, which then replaces the
+ * checkpoint file, and only then is the log emptied. The checkpoint records
+ * the generation of the log that follows it, so if the process dies before
+ * the log is emptied, recovery sees that the old log belongs to an earlier
+ * checkpoint and ignores it.
+ * </p>
+ * <p>
+ * append(), appendBatch() and checkpoint() are called under the write lock of
+ * the tree, if any; commit() and sync() may be called at any time.
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class TreeLog
+{
+    /**
+     * The tree being logged. Replayed changes must not be logged again.
+     */
+    interface Tree extends WriteAheadLog.Replay
+    {
+	/**
+	 * Replace the contents of the empty tree with a checkpoint
+	 *
+	 * @return log generation recorded in the checkpoint
+	 */
+	long load(File file) throws IOException;
+
+	/**
+	 * Write a checkpoint of the tree and force it to disk
+	 *
+	 * @param generation
+	 *            Generation of the log that follows the checkpoint
+	 */
+	void write(File file, long generation) throws IOException;
+    }
+
+    private final Tree tree;
+    private final WriteAheadLog changeLog;
+    private final File checkpointFile;
+    // Number of changes logged after which a checkpoint is written, or 0 to
+    // only write them when checkpoint() is called
+    private final int checkpointRecords;
+    private int recordsSinceCheckpoint;
+
+    /**
+     * Load the last checkpoint into the tree, if there is one, and replay the
+     * log written after it
+     *
+     * @param logFile
+     *            Log file, created if it does not exist
+     * @param checkpointFile
+     *            File to which checkpoints are written
+     * @param groupCommit
+     *            Number of unsynced records at which commit() syncs
+     * @param checkpointRecords
+     *            Number of changes logged after which a checkpoint is
+     *            written, or 0
+     * @param tree
+     *            The tree, which must be empty
+     * @throws IOException
+     *             if the files cannot be read or written
+     */
+    TreeLog(File logFile, File checkpointFile, int groupCommit, int checkpointRecords, Tree tree)
+	    throws IOException
+    {
+	this.tree = tree;
+	this.checkpointFile = checkpointFile;
+	this.checkpointRecords = checkpointRecords;
+
+	long generation = 0;
+	if (checkpointFile.exists())
+	{
+	    generation = tree.load(checkpointFile);
+	}
+	changeLog = new WriteAheadLog(logFile, generation, groupCommit, tree);
+
+	// The replayed records are still in the log, so they count towards
+	// the next checkpoint. Otherwise a process that keeps failing before
+	// CheckpointRecords new changes would never checkpoint, and the log
+	// and the time to replay it would grow without bound.
+	recordsSinceCheckpoint = changeLog.replayed();
+	checkpointIfDue();
+    }
+
+    /**
+     * Log a change, and write a checkpoint if CheckpointRecords changes have
+     * been logged since the last one
+     *
+     * @param type
+     *            WriteAheadLog.ADD or WriteAheadLog.DELETE
+     * @return LSN to pass to commit()
+     */
+    long append(byte type, double minX, double minY, double maxX, double maxY, int id)
+    {
+	long lsn = changeLog.append(type, minX, minY, maxX, maxY, id);
+	recordsSinceCheckpoint++;
+	checkpointIfDue();
+	return lsn;
+    }
+
+    /**
+     * Log the entries added by addAll(). A checkpoint is only written once
+     * they are all logged, so that the log never holds part of a batch that
+     * the checkpoint already holds.
+     *
+     * @return LSN of the last entry, to pass to commit(), or 0 if count is 0
+     */
+    long appendBatch(double[] minX, double[] minY, double[] maxX, double[] maxY, int[] ids,
+	    int count)
+    {
+	long lsn = 0;
+	for (int i = 0; i < count; i++)
+	{
+	    lsn = changeLog.append(WriteAheadLog.ADD, minX[i], minY[i], maxX[i], maxY[i], ids[i]);
+	}
+	recordsSinceCheckpoint += count;
+	checkpointIfDue();
+	return lsn;
+    }
+
+    /**
+     * Make a logged change durable, together with any other changes logged
+     * since the last disk write if LogGroupCommit allows
+     *
+     * @param lsn
+     *            Value returned by append() or appendBatch()
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void commit(long lsn) throws IOException
+    {
+	changeLog.commit(lsn);
+    }
+
+    /**
+     * Write all logged changes to disk, including those that LogGroupCommit
+     * has not written yet
+     *
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void sync() throws IOException
+    {
+	changeLog.sync(Long.MAX_VALUE);
+    }
+
+    /**
+     * Sync and close the log
+     *
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void close() throws IOException
+    {
+	changeLog.close();
+    }
+
+    /**
+     * Write a checkpoint and empty the log
+     *
+     * @throws IOException
+     *             if the checkpoint or the log cannot be written
+     */
+    void checkpoint() throws IOException
+    {
+	long generation = changeLog.generation() + 1;
+	File temporary = new File(checkpointFile.getPath() + ".tmp");
+	tree.write(temporary, generation);
+	if (!temporary.renameTo(checkpointFile))
+	{
+	    // Platforms that cannot rename over an existing file
+	    checkpointFile.delete();
+	    if (!temporary.renameTo(checkpointFile))
+	    {
+		throw new IOException("Cannot rename " + temporary + " to " + checkpointFile);
+	    }
+	}
+	changeLog.reset(generation);
+	recordsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Write a checkpoint if CheckpointRecords changes have been logged since
+     * the last one
+     */
+    private void checkpointIfDue()
+    {
+	if (checkpointRecords > 0 && recordsSinceCheckpoint >= checkpointRecords)
+	{
+	    try
+	    {
+		checkpoint();
+	    }
+	    catch (IOException e)
+	    {
+		throw new IllegalStateException("Cannot write RTree checkpoint " + checkpointFile,
+						e);
+	    }
+	}
+    }
+}
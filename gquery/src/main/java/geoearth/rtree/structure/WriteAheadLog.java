@@ -0,0 +1,326 @@
+package geoearth.rtree.structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes made to an {@link RTree}, used when the
+ * LogFile property is set.
+ * <p>
+ * The file starts with a header naming the checkpoint generation the log
+ * follows, and then holds one record per add or delete:
+ *
+ * <pre>
+ * header: int magic, int version, long generation
+ * record: byte type, int id, double minX, minY, maxX, maxY, int CRC32
+ * </pre>
+ *
+ * Each record is numbered by its log sequence number (LSN). append() only
+ * copies the record to a buffer; sync() writes the buffer and forces it to
+ * disk. Calls to sync() from several threads are grouped: whichever thread
+ * syncs first makes the records of all the others durable too, so they return
+ * without waiting for another force. A record that was only partly written
+ * when the process died fails its checksum, and it and anything after it are
+ * discarded on recovery.
+ * </p>
+ * <p>
+ * append() may run at the same time as sync(), but not at the same time as
+ * another append() or reset().
+ * </p>
+ *
+ * @author cjmcmill
+ *
+ */
+final class WriteAheadLog
+{
+    static final byte ADD = 1;
+    static final byte DELETE = 2;
+
+    private static final int MAGIC = 0x47524c47; // "GRLG"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 41;
+    private static final int INITIAL_BUFFER_RECORDS = 1024;
+
+    /**
+     * Receives the records read back from the log
+     */
+    interface Replay
+    {
+	void add(double minX, double minY, double maxX, double maxY, int id);
+
+	void delete(double minX, double minY, double maxX, double maxY, int id);
+    }
+
+    private final FileChannel channel;
+    private final int groupCommit;
+    private long generation;
+    // Number of records passed to the replay when the log was opened
+    private int replayed = 0;
+
+    // Records appended but not yet written to the file. sync() swaps the
+    // buffers, so that appends can continue while it writes.
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * RECORD_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * RECORD_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    // LSN of the last record appended, and of the last record known to be on
+    // disk
+    private long appended = 0;
+    private volatile long synced = 0;
+    // Held while writing to the file, so that one thread syncs at a time
+    private final Object syncLock = new Object();
+
+    /**
+     * Open the log. If the file holds a log that follows the given checkpoint
+     * generation, its records are passed to the replay and new records are
+     * appended after them; otherwise the file is emptied.
+     *
+     * @param file
+     *            Log file, created if it does not exist
+     * @param generation
+     *            Generation of the checkpoint the tree was loaded from, or 0
+     * @param groupCommit
+     *            Number of unsynced records at which commit() syncs
+     * @param replay
+     *            Receives the records of the log
+     * @throws IOException
+     *             if the file cannot be read or written
+     */
+    WriteAheadLog(File file, long generation, int groupCommit, Replay replay) throws IOException
+    {
+	this.groupCommit = groupCommit;
+	channel = new RandomAccessFile(file, "rw").getChannel();
+
+	ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+	channel.read(header, 0);
+	header.flip();
+	if (header.remaining() == HEADER_BYTES && header.getInt() == MAGIC
+		&& header.getInt() == VERSION && header.getLong() == generation)
+	{
+	    this.generation = generation;
+	    long end = replay(replay);
+	    channel.truncate(end);
+	    channel.position(end);
+	}
+	else
+	{
+	    reset(generation);
+	}
+    }
+
+    /**
+     * @return checkpoint generation that this log follows
+     */
+    long generation()
+    {
+	return generation;
+    }
+
+    /**
+     * @return number of records read back from the file and passed to the
+     *         replay when the log was opened
+     */
+    int replayed()
+    {
+	return replayed;
+    }
+
+    /**
+     * Add a record to the log. It is not durable until sync() is called with
+     * its LSN, or a later one.
+     *
+     * @param type
+     *            ADD or DELETE
+     * @return LSN of the record
+     */
+    synchronized long append(byte type, double minX, double minY, double maxX, double maxY,
+	    int id)
+    {
+	if (buffer.remaining() < RECORD_BYTES)
+	{
+	    ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+	    buffer.flip();
+	    larger.put(buffer);
+	    buffer = larger;
+	}
+	int start = buffer.position();
+	buffer.put(type);
+	buffer.putInt(id);
+	buffer.putDouble(minX);
+	buffer.putDouble(minY);
+	buffer.putDouble(maxX);
+	buffer.putDouble(maxY);
+	crc.reset();
+	crc.update(buffer.array(), start, RECORD_BYTES - 4);
+	buffer.putInt((int) crc.getValue());
+	return ++appended;
+    }
+
+    /**
+     * Make the record durable if there are groupCommit records that are not,
+     * otherwise leave it for a later call to sync it with others
+     *
+     * @param lsn
+     *            LSN returned by append()
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void commit(long lsn) throws IOException
+    {
+	if (lsn - synced >= groupCommit)
+	{
+	    sync(lsn);
+	}
+    }
+
+    /**
+     * Make all records up to the given LSN durable. If another thread is
+     * syncing, wait for it, as it may already have written the record.
+     *
+     * @param lsn
+     *            LSN returned by append()
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void sync(long lsn) throws IOException
+    {
+	synchronized (syncLock)
+	{
+	    if (lsn <= synced)
+	    {
+		return;
+	    }
+
+	    ByteBuffer records;
+	    long upTo;
+	    synchronized (this)
+	    {
+		records = buffer;
+		buffer = spare;
+		spare = records;
+		upTo = appended;
+	    }
+
+	    records.flip();
+	    while (records.hasRemaining())
+	    {
+		channel.write(records);
+	    }
+	    records.clear();
+	    channel.force(false);
+	    synced = upTo;
+	}
+    }
+
+    /**
+     * Write the records not yet synced and close the file. The log cannot be
+     * used afterwards.
+     *
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void close() throws IOException
+    {
+	sync(Long.MAX_VALUE);
+	channel.close();
+    }
+
+    /**
+     * Empty the log and start it again after a new checkpoint. Records not yet
+     * synced are dropped, as the checkpoint holds their changes.
+     *
+     * @param newGeneration
+     *            Generation of the checkpoint
+     * @throws IOException
+     *             if the log cannot be written
+     */
+    void reset(long newGeneration) throws IOException
+    {
+	synchronized (syncLock)
+	{
+	    synchronized (this)
+	    {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(newGeneration);
+		header.flip();
+		channel.truncate(0);
+		channel.position(0);
+		while (header.hasRemaining())
+		{
+		    channel.write(header);
+		}
+		channel.force(true);
+
+		generation = newGeneration;
+		buffer.clear();
+		synced = appended;
+	    }
+	}
+    }
+
+    /**
+     * Pass the valid records of the file to the replay
+     *
+     * @return position after the last valid record
+     */
+    private long replay(Replay replay) throws IOException
+    {
+	ByteBuffer records = ByteBuffer.allocate(INITIAL_BUFFER_RECORDS * RECORD_BYTES);
+	long position = HEADER_BYTES;
+	while (true)
+	{
+	    records.clear();
+	    while (records.hasRemaining())
+	    {
+		if (channel.read(records, position + records.position()) < 0)
+		{
+		    break;
+		}
+	    }
+	    records.flip();
+	    if (records.remaining() < RECORD_BYTES)
+	    {
+		return position;
+	    }
+
+	    while (records.remaining() >= RECORD_BYTES)
+	    {
+		int start = records.position();
+		crc.reset();
+		crc.update(records.array(), start, RECORD_BYTES - 4);
+		byte type = records.get();
+		int id = records.getInt();
+		double minX = records.getDouble();
+		double minY = records.getDouble();
+		double maxX = records.getDouble();
+		double maxY = records.getDouble();
+		if (records.getInt() != (int) crc.getValue())
+		{
+		    return position;
+		}
+
+		if (type == ADD)
+		{
+		    replay.add(minX, minY, maxX, maxY, id);
+		}
+		else if (type == DELETE)
+		{
+		    replay.delete(minX, minY, maxX, maxY, id);
+		}
+		else
+		{
+		    return position;
+		}
+		replayed++;
+		position += RECORD_BYTES;
+	    }
+	}
+    }
+}
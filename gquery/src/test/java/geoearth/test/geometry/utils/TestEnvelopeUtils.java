@@ -0,0 +1,163 @@
+package geoearth.geometry.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * The distance kernels of EnvelopeUtils, checked against the distances JTS
+ * measures between the geometries of the envelopes
+ */
+public class TestEnvelopeUtils
+{
+    private static final GeometryFactory geomFactory = new GeometryFactory();
+
+    // Envelope the fixed cases are measured from, 10 wide and 20 high
+    private static final Envelope ENV = new Envelope(0, 10, 0, 20);
+
+    // Points inside ENV, on its edges and corners, beside each edge, beyond
+    // each corner, and at its centre
+    private static final double[][] POINTS = { { 5, 5 }, { 2, 17 }, { 0, 5 }, { 10, 7 },
+	    { 3, 20 }, { 4, 0 }, { 0, 0 }, { 10, 0 }, { 0, 20 }, { 10, 20 }, { -3, 5 },
+	    { 14, 5 }, { 5, -2 }, { 5, 25 }, { -3, -4 }, { 13, 24 }, { -1, 22 }, { 12, -3 },
+	    { 5, 10 } };
+
+    // Envelopes overlapping ENV, inside it, containing it, touching an edge,
+    // touching a corner, beside each edge, beyond each corner, and
+    // degenerate envelopes: a point inside, a point outside and a line
+    private static final Envelope[] ENVELOPES = { new Envelope(5, 15, 10, 30),
+	    new Envelope(2, 8, 2, 8), new Envelope(-5, 15, -5, 25), new Envelope(10, 12, 5, 15),
+	    new Envelope(-4, 0, 0, 20), new Envelope(10, 12, 20, 22), new Envelope(-4, -1, 5, 8),
+	    new Envelope(13, 16, 5, 8), new Envelope(2, 4, -6, -1), new Envelope(2, 4, 22, 30),
+	    new Envelope(-5, -2, -6, -3), new Envelope(12, 14, 23, 24),
+	    new Envelope(-3, -1, 21, 25), new Envelope(11, 12, -4, -2), new Envelope(3, 3, 4, 4),
+	    new Envelope(13, 13, 24, 24), new Envelope(-5, -2, 10, 10) };
+
+    /**
+     * distanceSq() from a point to an envelope is the square of the distance
+     * from the point to the envelope's polygon
+     */
+    @Test
+    public void testPointDistanceSq()
+    {
+	for (int i = 0; i < POINTS.length; i++)
+	{
+	    assertPointDistanceSq(POINTS[i][0], POINTS[i][1], ENV);
+	}
+
+	Random r = new Random(1);
+	for (int i = 0; i < 1000; i++)
+	{
+	    assertPointDistanceSq(r.nextDouble() * 100 - 50, r.nextDouble() * 100 - 50,
+				  randomEnvelope(r));
+	}
+    }
+
+    /**
+     * distanceSq() between two envelopes is the square of the distance
+     * between their polygons
+     */
+    @Test
+    public void testEnvelopeDistanceSq()
+    {
+	for (int i = 0; i < ENVELOPES.length; i++)
+	{
+	    assertEnvelopeDistanceSq(ENV, ENVELOPES[i]);
+	    assertEnvelopeDistanceSq(ENVELOPES[i], ENV);
+	}
+
+	Random r = new Random(2);
+	for (int i = 0; i < 1000; i++)
+	{
+	    assertEnvelopeDistanceSq(randomEnvelope(r), randomEnvelope(r));
+	}
+    }
+
+    /**
+     * minMaxDistanceSq() is the square of the distance from the point to the
+     * farther end of the nearest edge of the envelope's polygon, the nearest
+     * edge being the one whose farther end is nearest
+     */
+    @Test
+    public void testMinMaxDistanceSq()
+    {
+	for (int i = 0; i < POINTS.length; i++)
+	{
+	    assertMinMaxDistanceSq(POINTS[i][0], POINTS[i][1], ENV);
+	}
+
+	Random r = new Random(3);
+	for (int i = 0; i < 1000; i++)
+	{
+	    assertMinMaxDistanceSq(r.nextDouble() * 100 - 50, r.nextDouble() * 100 - 50,
+				   randomEnvelope(r));
+	}
+    }
+
+    private static void assertPointDistanceSq(double x, double y, Envelope env)
+    {
+	double expected = geomFactory.toGeometry(env).distance(point(x, y));
+	assertSq("Distance from (" + x + ", " + y + ") to " + env, expected,
+		 EnvelopeUtils.distanceSq(x, y, env.getMinX(), env.getMinY(), env.getMaxX(),
+					  env.getMaxY()));
+    }
+
+    private static void assertEnvelopeDistanceSq(Envelope a, Envelope b)
+    {
+	double expected = geomFactory.toGeometry(a).distance(geomFactory.toGeometry(b));
+	assertSq("Distance from " + a + " to " + b, expected,
+		 EnvelopeUtils.distanceSq(a.getMinX(), a.getMinY(), a.getMaxX(), a.getMaxY(),
+					  b.getMinX(), b.getMinY(), b.getMaxX(), b.getMaxY()));
+    }
+
+    private static void assertMinMaxDistanceSq(double x, double y, Envelope env)
+    {
+	// The exterior ring of the polygon runs round the four edges
+	Geometry polygon = geomFactory.toGeometry(env);
+	Coordinate[] ring = polygon.getCoordinates();
+	Point p = point(x, y);
+	double expected = Double.POSITIVE_INFINITY;
+	for (int i = 0; i < 4; i++)
+	{
+	    double farEnd = Math.max(p.distance(point(ring[i].x, ring[i].y)),
+				     p.distance(point(ring[i + 1].x, ring[i + 1].y)));
+	    expected = Math.min(expected, farEnd);
+	}
+	assertSq("MinMaxDistance from (" + x + ", " + y + ") to " + env, expected,
+		 EnvelopeUtils.minMaxDistanceSq(x, y, env.getMinX(), env.getMinY(),
+						env.getMaxX(), env.getMaxY()));
+    }
+
+    /**
+     * Check a squared distance against the distance measured by JTS, allowing
+     * for rounding
+     */
+    private static void assertSq(String message, double expected, double actualSq)
+    {
+	assertEquals(message, expected * expected, actualSq, 1e-9 * Math.max(1, actualSq));
+    }
+
+    private static Point point(double x, double y)
+    {
+	return geomFactory.createPoint(new Coordinate(x, y));
+    }
+
+    /**
+     * @return envelope up to 20 wide and high, with its corner in the square
+     *         from (-20, -20) to (20, 20)
+     */
+    private static Envelope randomEnvelope(Random r)
+    {
+	double x = r.nextDouble() * 40 - 20;
+	double y = r.nextDouble() * 40 - 20;
+	return new Envelope(x, x + r.nextDouble() * 20, y, y + r.nextDouble() * 20);
+    }
+}
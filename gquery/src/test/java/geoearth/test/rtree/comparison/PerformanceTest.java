@@ -23,6 +23,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Properties;
 
+import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +42,7 @@ public class PerformanceTest extends SpatialIndexTest
     private static final Logger log = LoggerFactory.getLogger(PerformanceTest.class.getName());
     private static final DateFormat dateFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss");
 
+    @Test
     public void testPerformance()
     {
 	log.debug("testPerformance");
@@ -48,79 +50,145 @@ public class PerformanceTest extends SpatialIndexTest
 	Date currentDate = new Date();
 	intersectPerformanceLog.info(dateFormat.format(currentDate));
 	intersectPerformanceLog.info(MessageFormat.format(
-							  "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,TreeSize,{0},{1},{2}",
+							  "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,BulkLoad,TreeSize,{0},{1},{2}",
 							  "QueryCount", "AverageIntersectCount",
 							  "AverageQueryTime"));
 
 	nearestPerformanceLog.info(dateFormat.format(currentDate));
 	nearestPerformanceLog.info(MessageFormat.format(
-							"IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,TreeSize,{0},{1},{2}",
+							"IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,BulkLoad,TreeSize,{0},{1},{2}",
 							"QueryCount", "AverageNearestCount",
 							"AverageQueryTime"));
 
 	containsPerformanceLog.info(dateFormat.format(currentDate));
 	containsPerformanceLog.info(MessageFormat.format(
-							 "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,TreeSize,{0},{1},{2}",
+							 "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,BulkLoad,TreeSize,{0},{1},{2}",
 							 "QueryCount", "AverageContainsCount",
 							 "AverageQueryTime"));
 
 	addPerformanceLog.info(dateFormat.format(currentDate));
 	addPerformanceLog.info(MessageFormat.format(
-						    "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,TreeSize,{0},{1}",
+						    "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,BulkLoad,TreeSize,{0},{1}",
 						    "QueryCount", "AverageAddTime"));
 
 	deletePerformanceLog.info(dateFormat.format(currentDate));
 	deletePerformanceLog.info(MessageFormat.format(
-						       "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,TreeSize,{0},{1}",
+						       "IndexType,TestId,MinNodeEntries,MaxNodeEntries,TreeVariant,BulkLoad,TreeSize,{0},{1}",
 						       "QueryCount", "AverageDeleteTime"));
 
 	Properties p = new Properties();
 
 	// SimpleIndex and NullIndex do not use Min/MaxNodeEntries, so do them
 	// first.
-	runScript("test.SimpleIndex", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("test.SimpleIndex", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("test.SimpleIndex", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.index.SimpleIndex", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.index.SimpleIndex", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.index.SimpleIndex", p, "allfunctions-10000", PERFORMANCE_TEST);
 	// Only go up to 10 000 for simple index, as it takes too long
 
 	p.setProperty("TreeVariant", "null");
-	runScript("test.NullIndex", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("test.NullIndex", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("test.NullIndex", p, "allfunctions-10000", PERFORMANCE_TEST);
-	runScript("test.NullIndex", p, "allfunctions-100000", PERFORMANCE_TEST);
+	runScript("rtree.index.NullIndex", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.index.NullIndex", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.index.NullIndex", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.index.NullIndex", p, "allfunctions-100000", PERFORMANCE_TEST);
 
 	// [X]TODO: reasonable values?
 	p.setProperty("MinNodeEntries", "5");
 	p.setProperty("MaxNodeEntries", "20");
 
 	p.setProperty("TreeVariant", "Linear");
-	runScript("test.RTreeWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("test.RTreeWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("test.RTreeWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
-	runScript("test.RTreeWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.RTreeWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.RTreeWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.RTreeWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.RTreeWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
 
 	p.setProperty("TreeVariant", "Linear");
-	runScript("rtree.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("rtree.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("rtree.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
-	runScript("rtree.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+
+	p.setProperty("BulkLoad", "STR");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+
+	p.setProperty("BulkLoad", "Hilbert");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+	p.remove("BulkLoad");
+
+	p.setProperty("TreeVariant", "Quadratic");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+
+	p.setProperty("TreeVariant", "AngTan");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+
+	p.setProperty("TreeVariant", "Rstar");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+
+	p.setProperty("TreeVariant", "Linear");
+	p.setProperty("Storage", "OffHeap");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+
+	p.setProperty("Storage", "Disk");
+	p.setProperty("BufferPoolPages", "256");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+	p.remove("BufferPoolPages");
+	p.remove("Storage");
+
+	p.setProperty("QueryThreads", "4");
+	runScript("rtree.structure.RTree", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "allfunctions-100000", PERFORMANCE_TEST);
+	p.remove("QueryThreads");
+
+	// Small queries over many points, where the time goes on looking up the
+	// nodes of each descent rather than on the entries found
+	runScript("rtree.structure.RTree", p, "smallqueries-100000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "smallqueries-1000000", PERFORMANCE_TEST);
+
+	// PointRTree only accepts points, so it is compared with RTree on the
+	// points scripts
+	runScript("rtree.structure.RTree", p, "points-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.RTree", p, "points-10000", PERFORMANCE_TEST);
+	runScript("rtree.structure.PointRTree", p, "points-1000", PERFORMANCE_TEST);
+	runScript("rtree.structure.PointRTree", p, "points-10000", PERFORMANCE_TEST);
 
 	p.setProperty("TreeVariant", "Linear");
-	runScript("test.SILWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
 
 	p.setProperty("TreeVariant", "Quadratic");
-	runScript("test.SILWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
 
 	p.setProperty("TreeVariant", "Rstar");
-	runScript("test.SILWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
-	runScript("test.SILWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-100", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-1000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-10000", PERFORMANCE_TEST);
+	runScript("test.rtree.wrapper.SILWrapper", p, "allfunctions-100000", PERFORMANCE_TEST);
     }
 }
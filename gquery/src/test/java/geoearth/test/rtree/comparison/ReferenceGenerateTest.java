@@ -155,4 +155,32 @@ public class ReferenceGenerateTest extends SpatialIndexTest
 	log.info("Creating reference testIntersect results for 100,000 entries.");
 	runScript("test.rtree.index.wrapper.SILWrapper", p, "contains-100000", REFERENCE_GENERATE);
     }
+
+    @Test
+    public void testReferenceGeneratePoints()
+    {
+	log.debug("testReferenceGeneratePoints()");
+
+	Properties p = new Properties();
+
+	log.info("Creating reference test results (points) for 1000 entries.");
+	runScript("rtree.index.SimpleIndex", p, "points-1000", REFERENCE_GENERATE);
+
+	log.info("Creating reference test results (points) for 10,000 entries.");
+	runScript("rtree.index.SimpleIndex", p, "points-10000", REFERENCE_GENERATE);
+
+	log.info("Creating reference test results (points) for 100,000 entries.");
+	runScript("rtree.index.SimpleIndex", p, "points-100000", REFERENCE_GENERATE);
+    }
+
+    @Test
+    public void testReferenceGenerateEnvelopes()
+    {
+	log.debug("testReferenceGenerateEnvelopes()");
+
+	Properties p = new Properties();
+
+	log.info("Creating reference test results (envelopes) for 1000 entries.");
+	runScript("rtree.index.SimpleIndex", p, "envelopes-1000", REFERENCE_GENERATE);
+    }
 }
@@ -21,8 +21,8 @@ package geoearth.test.rtree.comparison;
 import static org.junit.Assert.assertTrue;
 
 import geoearth.rtree.SpatialIndex;
-import geoearth.test.rtree.decorator.ListDecorator;
-import geoearth.test.rtree.decorator.SortedListDecorator;
+import geoearth.rtree.decorator.ListDecorator;
+import geoearth.rtree.decorator.SortedListDecorator;
 import geoearth.test.rtree.index.SpatialIndexFactory;
 import gnu.trove.TIntArrayList;
 import gnu.trove.TIntProcedure;
@@ -118,6 +118,13 @@ public class SpatialIndexTest
      * Add random geometries to the spatial index.
      */
     protected static final String OP_ADD_RANDOM = "ADDRANDOM";
+    /**
+     * ADD RANDOM POINT Operation Token
+     * <p>
+     * Add random points to the spatial index, for indexes that only accept
+     * entries without an extent.
+     */
+    protected static final String OP_ADD_RANDOM_POINT = "ADDRANDOMPOINT";
     /**
      * CONTAINS RANDOM Operation Token
      * <p>
@@ -137,6 +144,12 @@ public class SpatialIndexTest
      * Delete random geometries from the spatial index.
      */
     protected static final String OP_DELETE_RANDOM = "DELETERANDOM";
+    /**
+     * DELETE RANDOM POINT Operation Token
+     * <p>
+     * Delete random points from the spatial index.
+     */
+    protected static final String OP_DELETE_RANDOM_POINT = "DELETERANDOMPOINT";
     /**
      * INTERSECT Operation Token
      * <p>
@@ -247,6 +260,14 @@ public class SpatialIndexTest
 	return geomFactory.createPoint(new Coordinate(x, y));
     }
 
+    private Envelope getRandomPointEnvelope(Random r, double scale)
+    {
+	double x = r.nextGaussian() * scale;
+	double y = r.nextGaussian() * scale;
+
+	return new Envelope(x, x, y, y);
+    }
+
     private Polygon getRandomRectangle(Random r, double scale)
     {
 	GeometricShapeFactory gsf = new GeometricShapeFactory(geomFactory);
@@ -401,7 +422,7 @@ public class SpatialIndexTest
 
 	String testInputRoot = MessageFormat.format("tests{0}test-{1}", File.separator, testId);
 	String testResultsRoot =
-		MessageFormat.format("tests-results{0}test-{1}", File.separator, testId);
+		MessageFormat.format("test-results{0}test-{1}", File.separator, testId);
 
 	// Open test input file for read-only access
 	// Filename is of form: test-testId-in
@@ -419,23 +440,25 @@ public class SpatialIndexTest
 	    return -1;
 	}
 
-	// Open reference results file for read-only access.
-	// Filename is of form: test-testId-reference
+	// Open reference results file for read-only access, when comparing with
+	// it. Filename is of form: test-testId-reference
 	LineNumberReader referenceFile = null;
 	String referenceFileName = MessageFormat.format("{0}-{1}", testResultsRoot, "reference");
-	try
+	if (testType == REFERENCE_COMPARISON_TEST)
 	{
-	    referenceFile =
-		    new LineNumberReader(
-					 new InputStreamReader(
-							       new FileInputStream(
-										   referenceFileName)));
-	}
-	catch (FileNotFoundException e)
-	{
-	    log.error("Unable to open reference test results file {}", referenceFileName);
-	    assertTrue("Unable to open reference test results file " + referenceFileName, false);
-	    return -1;
+	    try
+	    {
+		referenceFile =
+			new LineNumberReader(new InputStreamReader(
+								   new FileInputStream(referenceFileName)));
+	    }
+	    catch (FileNotFoundException e)
+	    {
+		log.error("Unable to open reference test results file {}", referenceFileName);
+		assertTrue("Unable to open reference test results file " + referenceFileName,
+			   false);
+		return -1;
+	    }
 	}
 
 	// Open actual results file for writing.
@@ -502,8 +525,9 @@ public class SpatialIndexTest
 					referenceFile);
 			}
 		    }
-		    else if (op.equals("ADDRANDOM"))
+		    else if (op.equals(OP_ADD_RANDOM) || op.equals(OP_ADD_RANDOM_POINT))
 		    {
+			boolean points = op.equals(OP_ADD_RANDOM_POINT);
 			int count = Integer.parseInt(st.nextToken());
 			int startId = Integer.parseInt(st.nextToken());
 			double scale = Double.parseDouble(st.nextToken());
@@ -516,13 +540,15 @@ public class SpatialIndexTest
 			long startTime = System.currentTimeMillis();
 			for (int id = startId; id < startId + count; id++)
 			{
-			    Envelope env = getRandomEnvelope(r, scale);
+			    Envelope env =
+				    points ? getRandomPointEnvelope(r, scale) : getRandomEnvelope(r,
+												  scale);
 			    spatialIndex.add(env, id);
 			    if (testType == REFERENCE_COMPARISON_TEST
 				    || testType == REFERENCE_GENERATE)
 			    {
 				writeOutput(
-					    MessageFormat.format(" {0} {1} : OK", id, r.toString()),
+					    MessageFormat.format(" {0} {1} : OK", id, env.toString()),
 					    outputFile, referenceFile);
 			    }
 			}
@@ -531,16 +557,18 @@ public class SpatialIndexTest
 				time, time / (double) count });
 			if (testType == PERFORMANCE_TEST)
 			{
-			    addPerformanceLog.info("{}, {}, {}, {}, {}, {}, {}, {}", new Object[] {
+			    addPerformanceLog.info("{}, {}, {}, {}, {}, {}, {}, {}, {}", new Object[] {
 				    indexType, testId,
 				    indexProperties.getProperty("MinNodeEntries"),
 				    indexProperties.getProperty("MaxNodeEntries"),
 				    indexProperties.getProperty("TreeVariant"),
+				    indexProperties.getProperty("BulkLoad", "None"),
 				    spatialIndex.size(), count, (double) time / (double) count });
 			}
 		    }
-		    else if (op.equals("DELETERANDOM"))
+		    else if (op.equals(OP_DELETE_RANDOM) || op.equals(OP_DELETE_RANDOM_POINT))
 		    {
+			boolean points = op.equals(OP_DELETE_RANDOM_POINT);
 			int count = Integer.parseInt(st.nextToken());
 			int startId = Integer.parseInt(st.nextToken());
 			double scale = Double.parseDouble(st.nextToken());
@@ -554,7 +582,9 @@ public class SpatialIndexTest
 			int successfulDeleteCount = 0;
 			for (int id = startId; id < startId + count; id++)
 			{
-			    Envelope env = getRandomEnvelope(r, scale);
+			    Envelope env =
+				    points ? getRandomPointEnvelope(r, scale) : getRandomEnvelope(r,
+												  scale);
 			    boolean deleted = spatialIndex.delete(env, id);
 
 			    if (deleted)
@@ -566,7 +596,7 @@ public class SpatialIndexTest
 				    || testType == REFERENCE_GENERATE)
 			    {
 				writeOutput(MessageFormat.format(" {0} {1} : {2}", id,
-								 r.toString(), deleted),
+								 env.toString(), deleted),
 					    outputFile, referenceFile);
 			    }
 			}
@@ -600,7 +630,7 @@ public class SpatialIndexTest
 				final StringBuffer tempBuffer =
 					new StringBuffer(
 							 MessageFormat.format(
-									      " {} {} {} : OK",
+									      " {0} {1} {2} : OK",
 									      id,
 									      decimalFormat.format(p.getX()),
 									      decimalFormat.format(p.getY())));
@@ -618,13 +648,14 @@ public class SpatialIndexTest
 			if (testType == PERFORMANCE_TEST)
 			{
 			    nearestPerformanceLog.info(
-						       "{}, {}, {}, {}, {}, {}, {}, {}, {}",
+						       "{}, {}, {}, {}, {}, {}, {}, {}, {}, {}",
 						       new Object[] {
 							       indexType,
 							       testId,
 							       indexProperties.getProperty("MinNodeEntries"),
 							       indexProperties.getProperty("MaxNodeEntries"),
 							       indexProperties.getProperty("TreeVariant"),
+							       indexProperties.getProperty("BulkLoad", "None"),
 							       spatialIndex.size(),
 							       queryCount,
 							       (double) totalEntriesReturned
@@ -653,7 +684,7 @@ public class SpatialIndexTest
 				    || testType == REFERENCE_GENERATE)
 			    {
 				final StringBuffer tempBuffer =
-					new StringBuffer(MessageFormat.format(" {} {} : OK", id,
+					new StringBuffer(MessageFormat.format(" {0} {1} : OK", id,
 									      env.toString()));
 				TIntIteratorBuffer idListVisitor =
 					new TIntIteratorBuffer(tempBuffer);
@@ -670,13 +701,14 @@ public class SpatialIndexTest
 			if (testType == PERFORMANCE_TEST)
 			{
 			    intersectPerformanceLog.info(
-							 "{}, {}, {}, {}, {}, {}, {}, {}, {}",
+							 "{}, {}, {}, {}, {}, {}, {}, {}, {}, {}",
 							 new Object[] {
 								 indexType,
 								 testId,
 								 indexProperties.getProperty("MinNodeEntries"),
 								 indexProperties.getProperty("MaxNodeEntries"),
 								 indexProperties.getProperty("TreeVariant"),
+								 indexProperties.getProperty("BulkLoad", "None"),
 								 spatialIndex.size(),
 								 queryCount,
 								 (double) totalEntriesReturned
@@ -706,7 +738,7 @@ public class SpatialIndexTest
 				    || testType == REFERENCE_GENERATE)
 			    {
 				final StringBuffer tempBuffer =
-					new StringBuffer(MessageFormat.format(" {} {} : OK", id,
+					new StringBuffer(MessageFormat.format(" {0} {1} : OK", id,
 									      env.toString()));
 				TIntIteratorBuffer idListVisitor =
 					new TIntIteratorBuffer(tempBuffer);
@@ -723,13 +755,14 @@ public class SpatialIndexTest
 			if (testType == PERFORMANCE_TEST)
 			{
 			    containsPerformanceLog.info(
-							"{}, {}, {}, {}, {}, {}, {}, {}, {}",
+							"{}, {}, {}, {}, {}, {}, {}, {}, {}, {}",
 							new Object[] {
 								indexType,
 								testId,
 								indexProperties.getProperty("MinNodeEntries"),
 								indexProperties.getProperty("MaxNodeEntries"),
 								indexProperties.getProperty("TreeVariant"),
+								indexProperties.getProperty("BulkLoad", "None"),
 								spatialIndex.size(),
 								queryCount,
 								(double) totalEntriesReturned
@@ -43,17 +43,33 @@ public class NullIndex implements SpatialIndex
     {
     }
 
+    @Override
+    public void add(double minX, double minY, double maxX, double maxY, int id)
+    {
+    }
+
     @Override
     public void contains(Envelope env, IntProcedure v)
     {
     }
 
+    @Override
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+    }
+
     @Override
     public boolean delete(Envelope env, int id)
     {
 	return false;
     }
 
+    @Override
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id)
+    {
+	return false;
+    }
+
     @Override
     public Envelope getBounds()
     {
@@ -76,11 +92,21 @@ public class NullIndex implements SpatialIndex
     {
     }
 
+    @Override
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure ip)
+    {
+    }
+
     @Override
     public void nearest(Point p, IntProcedure v, double distance)
     {
     }
 
+    @Override
+    public void nearest(double x, double y, IntProcedure v, double distance)
+    {
+    }
+
     @Override
     public int size()
     {
@@ -17,7 +17,6 @@
 //  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
 package geoearth.rtree.index;
 
-import geoearth.geometry.utils.EnvelopeUtils;
 import geoearth.rtree.IntProcedure;
 import geoearth.rtree.SpatialIndex;
 import gnu.trove.TIntArrayList;
@@ -27,7 +26,9 @@ import gnu.trove.TIntProcedure;
 
 import java.util.Properties;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 
 /**
@@ -52,6 +53,9 @@ import com.vividsolutions.jts.geom.Point;
 public class SimpleIndex implements SpatialIndex
 {
     private static final String version = "1.0b2p1";
+    // Measures distances through JTS geometries rather than the kernels of
+    // EnvelopeUtils, so that the reference results check those kernels
+    private static final GeometryFactory geometryFactory = new GeometryFactory();
     TIntObjectHashMap mapping = new TIntObjectHashMap();
 
     @Override
@@ -60,6 +64,12 @@ public class SimpleIndex implements SpatialIndex
 	mapping.put(id, new Envelope(env));
     }
 
+    @Override
+    public void add(double minX, double minY, double maxX, double maxY, int id)
+    {
+	mapping.put(id, new Envelope(minX, maxX, minY, maxY));
+    }
+
     @Override
     public void contains(Envelope env, IntProcedure v)
     {
@@ -76,6 +86,12 @@ public class SimpleIndex implements SpatialIndex
 	}
     }
 
+    @Override
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	contains(new Envelope(minX, maxX, minY, maxY), v);
+    }
+
     @Override
     public boolean delete(Envelope env, int id)
     {
@@ -88,6 +104,12 @@ public class SimpleIndex implements SpatialIndex
 	return false;
     }
 
+    @Override
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id)
+    {
+	return delete(new Envelope(minX, maxX, minY, maxY), id);
+    }
+
     @Override
     public Envelope getBounds()
     {
@@ -135,20 +157,27 @@ public class SimpleIndex implements SpatialIndex
 	}
     }
 
+    @Override
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	intersects(new Envelope(minX, maxX, minY, maxY), v);
+    }
+
     /**
      * Nearest
      */
-    private TIntArrayList nearest(Point p, double farthestDistance)
+    private TIntArrayList nearest(double x, double y, double farthestDistance)
     {
 	TIntArrayList rtn = new TIntArrayList();
 	double nearestDistance = farthestDistance;
+	Point p = geometryFactory.createPoint(new Coordinate(x, y));
 	TIntObjectIterator i = mapping.iterator();
 	while (i.hasNext())
 	{
 	    i.advance();
 	    int currId = i.key();
 	    Envelope currentEnv = (Envelope) i.value();
-	    double distance = EnvelopeUtils.distance(currentEnv, p);
+	    double distance = geometryFactory.toGeometry(currentEnv).distance(p);
 	    if (distance < nearestDistance)
 	    {
 		nearestDistance = distance;
@@ -163,9 +192,15 @@ public class SimpleIndex implements SpatialIndex
     }
 
     @Override
-    public void nearest(Point p, final IntProcedure v, double distance)
+    public void nearest(Point p, IntProcedure v, double distance)
+    {
+	nearest(p.getX(), p.getY(), v, distance);
+    }
+
+    @Override
+    public void nearest(double x, double y, final IntProcedure v, double distance)
     {
-	TIntArrayList nearestList = nearest(p, distance);
+	TIntArrayList nearestList = nearest(x, y, distance);
 	nearestList.forEach(new TIntProcedure()
 	{
 
@@ -26,7 +26,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Factory class used to create instances of spatial indexes
+ * Factory class used to create instances of spatial indexes. The type is the
+ * name of the class relative to the geoearth.test.rtree.index package, or
+ * failing that to the geoearth package, so that the indexes of the library
+ * itself can be given as, for example, rtree.structure.PointRTree.
  * 
  * @author aled@sourceforge.net
  * @version 1.0b2p1
@@ -47,7 +50,16 @@ public class SpatialIndexFactory
 	String className = "geoearth.test.rtree.index." + type;
 	try
 	{
-	    si = (SpatialIndex) Class.forName(className).newInstance();
+	    Class<?> indexClass;
+	    try
+	    {
+		indexClass = Class.forName(className);
+	    }
+	    catch (ClassNotFoundException cnfe)
+	    {
+		indexClass = Class.forName("geoearth." + type);
+	    }
+	    si = (SpatialIndex) indexClass.newInstance();
 	    si.init(props);
 	}
 	catch (ClassNotFoundException cnfe)
@@ -70,6 +70,15 @@ public class RTreeWrapper implements SpatialIndex
 	tree.add(env2, id);
     }
 
+    /**
+     * @see geoearth.rtree.SpatialIndex#add(double, double, double, double, int)
+     */
+    @Override
+    public void add(double minX, double minY, double maxX, double maxY, int id)
+    {
+	tree.add(minX, minY, maxX, maxY, id);
+    }
+
     /**
      * @see geoearth.rtree.SpatialIndex#contains(com.vividsolutions.jts.geom.Envelope
      *      , geoearth.rtree.IntProcedure)
@@ -80,6 +89,16 @@ public class RTreeWrapper implements SpatialIndex
 	// Do nothing
     }
 
+    /**
+     * @see geoearth.rtree.SpatialIndex#contains(double, double, double, double,
+     *      geoearth.rtree.IntProcedure)
+     */
+    @Override
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	// Do nothing
+    }
+
     /**
      * @see geoearth.rtree.SpatialIndex#delete(com.vividsolutions.jts.geom.Envelope,
      *      int)
@@ -91,6 +110,16 @@ public class RTreeWrapper implements SpatialIndex
 	return tree.delete(env2, id);
     }
 
+    /**
+     * @see geoearth.rtree.SpatialIndex#delete(double, double, double, double,
+     *      int)
+     */
+    @Override
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id)
+    {
+	return tree.delete(minX, minY, maxX, maxY, id);
+    }
+
     /**
      * @see geoearth.rtree.SpatialIndex#getBounds()
      */
@@ -131,6 +160,16 @@ public class RTreeWrapper implements SpatialIndex
 	tree.intersects(env2, new IntProcedure2(ip));
     }
 
+    /**
+     * @see geoearth.rtree.SpatialIndex#intersects(double, double, double,
+     *      double, geoearth.rtree.IntProcedure)
+     */
+    @Override
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure ip)
+    {
+	tree.intersects(minX, minY, maxX, maxY, new IntProcedure2(ip));
+    }
+
     /**
      * @see geoearth.rtree.SpatialIndex#nearest(com.vividsolutions.jts.geom.Point,
      *      geoearth.rtree.IntProcedure, double)
@@ -142,6 +181,16 @@ public class RTreeWrapper implements SpatialIndex
 		     distance);
     }
 
+    /**
+     * @see geoearth.rtree.SpatialIndex#nearest(double, double,
+     *      geoearth.rtree.IntProcedure, double)
+     */
+    @Override
+    public void nearest(double x, double y, IntProcedure v, double distance)
+    {
+	tree.nearest(x, y, new IntProcedure2(v), distance);
+    }
+
     /**
      * @see geoearth.rtree.SpatialIndex#size()
      */
@@ -83,9 +83,16 @@ public class SILWrapper implements SpatialIndex
     @Override
     public void add(Envelope env, int id)
     {
-	Region region =
-		new Region(new double[] { env.getMinX(), env.getMinY() }, new double[] {
-			env.getMaxX(), env.getMaxY() });
+	add(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
+    }
+
+    /**
+     * @see geoearth.rtree.SpatialIndex#add(double, double, double, double, int)
+     */
+    @Override
+    public void add(double minX, double minY, double maxX, double maxY, int id)
+    {
+	Region region = new Region(new double[] { minX, minY }, new double[] { maxX, maxY });
 	tree.insertData(null, region, id);
 	size++;
     }
@@ -97,9 +104,17 @@ public class SILWrapper implements SpatialIndex
     @Override
     public void contains(Envelope env, IntProcedure v)
     {
-	Region region =
-		new Region(new double[] { env.getMinX(), env.getMinY() }, new double[] {
-			env.getMaxX(), env.getMaxY() });
+	contains(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), v);
+    }
+
+    /**
+     * @see geoearth.rtree.SpatialIndex#contains(double, double, double, double,
+     *      geoearth.rtree.IntProcedure)
+     */
+    @Override
+    public void contains(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	Region region = new Region(new double[] { minX, minY }, new double[] { maxX, maxY });
 	tree.containmentQuery(region, new IntProcedureVisitor(v));
     }
 
@@ -110,9 +125,17 @@ public class SILWrapper implements SpatialIndex
     @Override
     public boolean delete(Envelope env, int id)
     {
-	Region region =
-		new Region(new double[] { env.getMinX(), env.getMinY() }, new double[] {
-			env.getMaxX(), env.getMaxY() });
+	return delete(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), id);
+    }
+
+    /**
+     * @see geoearth.rtree.SpatialIndex#delete(double, double, double, double,
+     *      int)
+     */
+    @Override
+    public boolean delete(double minX, double minY, double maxX, double maxY, int id)
+    {
+	Region region = new Region(new double[] { minX, minY }, new double[] { maxX, maxY });
 	if (tree.deleteData(region, id))
 	{
 	    size--;
@@ -191,9 +214,17 @@ public class SILWrapper implements SpatialIndex
     @Override
     public void intersects(Envelope env, IntProcedure v)
     {
-	Region region =
-		new Region(new double[] { env.getMinX(), env.getMinY() }, new double[] {
-			env.getMaxX(), env.getMaxY() });
+	intersects(env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY(), v);
+    }
+
+    /**
+     * @see geoearth.rtree.SpatialIndex#intersects(double, double, double,
+     *      double, geoearth.rtree.IntProcedure)
+     */
+    @Override
+    public void intersects(double minX, double minY, double maxX, double maxY, IntProcedure v)
+    {
+	Region region = new Region(new double[] { minX, minY }, new double[] { maxX, maxY });
 	tree.intersectionQuery(region, new IntProcedureVisitor(v));
     }
 
@@ -204,8 +235,17 @@ public class SILWrapper implements SpatialIndex
     @Override
     public void nearest(Point p, IntProcedure v, double distance)
     {
-	tree.nearestNeighborQuery(1,
-				  new sil.spatialindex.Point(new double[] { p.getX(), p.getY() }),
+	nearest(p.getX(), p.getY(), v, distance);
+    }
+
+    /**
+     * @see geoearth.rtree.SpatialIndex#nearest(double, double,
+     *      geoearth.rtree.IntProcedure, double)
+     */
+    @Override
+    public void nearest(double x, double y, IntProcedure v, double distance)
+    {
+	tree.nearestNeighborQuery(1, new sil.spatialindex.Point(new double[] { x, y }),
 				  new IntProcedureVisitor(v));
     }
 
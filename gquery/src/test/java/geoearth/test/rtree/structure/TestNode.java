@@ -1,5 +1,6 @@
 package geoearth.rtree.structure;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import geoearth.geometry.utils.EnvelopeUtils;
@@ -55,4 +56,26 @@ public class TestNode
 							       b.getEnvelopeInternal()));
 	assertTrue("two geometries have at least one point in common", a.intersects(b));
     }
+
+    /**
+     * A leaf counts its entries, and a non-leaf node the counts held by its
+     * entries
+     */
+    @Test
+    public void testSubtreeCount()
+    {
+	Node leaf = new Node(1, 1, 4);
+	leaf.addEntry(0, 0, 1, 1, 10, 7);
+	leaf.addEntry(1, 1, 2, 2, 11, 7);
+	assertEquals("Leaf count", 2, leaf.subtreeCount());
+
+	Node parent = new Node(2, 2, 4);
+	parent.addEntry(0, 0, 2, 2, 1, leaf.subtreeCount());
+	parent.addEntry(5, 5, 6, 6, 3, 4);
+	assertEquals("Parent count", 6, parent.subtreeCount());
+
+	parent.deleteEntry(0, 1);
+	assertEquals("Count after delete", 4, parent.subtreeCount());
+	assertEquals("Copied count", 4, parent.copy(0).subtreeCount());
+    }
 }
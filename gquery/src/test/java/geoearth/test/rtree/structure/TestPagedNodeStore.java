@@ -0,0 +1,211 @@
+package geoearth.rtree.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The buffer pool of PagedNodeStore: which page each eviction policy removes,
+ * and the hits and misses it counts
+ */
+public class TestPagedNodeStore
+{
+    private static final int MAX_NODE_ENTRIES = 4;
+    private static final int ENTRIES = 500;
+
+    /**
+     * LRU evicts the page that has gone longest without being used
+     */
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() throws IOException
+    {
+	PagedNodeStore store = fillAndEvict(PagedNodeStore.EVICTION_LRU);
+	try
+	{
+	    // Pages 0, 1 and 2 were used in the order 1, 2, 0, so storing page
+	    // 3 evicted page 1
+	    assertGet(store, 0, true);
+	    assertGet(store, 2, true);
+	    assertGet(store, 3, true);
+	    assertGet(store, 1, false);
+	    assertEquals("Hits", 4, store.hits());
+	    assertEquals("Misses", 1, store.misses());
+	}
+	finally
+	{
+	    store.close();
+	}
+    }
+
+    /**
+     * CLOCK evicts the first page the hand reaches that has not been used
+     * since the hand last passed it
+     */
+    @Test
+    public void testClockEvictsFirstUnreferenced() throws IOException
+    {
+	PagedNodeStore store = fillAndEvict(PagedNodeStore.EVICTION_CLOCK);
+	try
+	{
+	    // Every page had been used since the hand last passed, so the hand
+	    // went round once clearing them and evicted page 0, the first,
+	    // although it was the last used
+	    assertGet(store, 1, true);
+	    assertGet(store, 2, true);
+	    assertGet(store, 3, true);
+	    assertGet(store, 0, false);
+	    assertEquals("Hits", 4, store.hits());
+	    assertEquals("Misses", 1, store.misses());
+	}
+	finally
+	{
+	    store.close();
+	}
+    }
+
+    /**
+     * A node changed in the pool is written when its page is evicted, and
+     * read back as changed
+     */
+    @Test
+    public void testEvictedPageWritten() throws IOException
+    {
+	PagedNodeStore store = newStore(2, PagedNodeStore.EVICTION_LRU);
+	try
+	{
+	    store.put(node(0));
+	    Node changed = node(0);
+	    changed.addEntry(50, 50, 51, 51, 1000);
+	    store.put(changed);
+	    store.put(node(1));
+	    store.put(node(2));
+	    store.remove(1);
+	    store.put(node(3));
+
+	    Node n = store.get(0);
+	    assertEquals("Entries of node 0", 2, n.entryCount);
+	    assertEquals("Entry added to node 0", 1000, n.ids[1]);
+	    assertEquals("Removed node 1", null, store.get(1));
+	    assertEquals("Misses", 2, store.misses());
+	}
+	finally
+	{
+	    store.close();
+	}
+    }
+
+    /**
+     * getPageHits() and getPageMisses() of a tree with Storage Disk count the
+     * node reads of its queries: none miss when the pool holds every node,
+     * and some do when it holds only a few
+     */
+    @Test
+    public void testTreePageCounts() throws IOException
+    {
+	RTree large = diskTree("4096");
+	RTree small = diskTree("4");
+	try
+	{
+	    long largeHits = large.getPageHits();
+	    long smallReads = small.getPageHits() + small.getPageMisses();
+	    Envelope all = new Envelope(0, 100, 0, 100);
+	    assertEquals("Entries found", ENTRIES, large.countIntersects(all));
+	    assertEquals("Entries found", ENTRIES, small.countIntersects(all));
+
+	    assertEquals("Misses with every node in the pool", 0, large.getPageMisses());
+	    assertTrue("Hits with every node in the pool", large.getPageHits() > largeHits);
+	    assertTrue("Misses with 4 pages in the pool", small.getPageMisses() > 0);
+	    assertEquals("Reads of the same query", large.getPageHits() - largeHits,
+			 small.getPageHits() + small.getPageMisses() - smallReads);
+	}
+	finally
+	{
+	    large.close();
+	    small.close();
+	}
+    }
+
+    /**
+     * @return store with a pool of three pages holding pages 0, 1 and 2,
+     *         used last in the order 1, 2, 0, to which page 3 has then been
+     *         stored, evicting one of them
+     */
+    private static PagedNodeStore fillAndEvict(int eviction) throws IOException
+    {
+	PagedNodeStore store = newStore(3, eviction);
+	store.put(node(0));
+	store.put(node(1));
+	store.put(node(2));
+	assertGet(store, 0, true);
+	store.put(node(3));
+	return store;
+    }
+
+    /**
+     * @return store in a temporary file, deleted when the store is closed
+     */
+    private static PagedNodeStore newStore(int poolPages, int eviction) throws IOException
+    {
+	File file = File.createTempFile("rtree", ".pages");
+	return new PagedNodeStore(file, MAX_NODE_ENTRIES, poolPages, eviction, true);
+    }
+
+    /**
+     * @return leaf node with one entry, whose id is 100 more than the node's
+     */
+    private static Node node(int id)
+    {
+	Node n = new Node(id, 1, MAX_NODE_ENTRIES);
+	n.addEntry(id, id, id + 1, id + 1, 100 + id);
+	return n;
+    }
+
+    /**
+     * Get a node stored by node(), checking that it is read back whole and
+     * that the read is counted as a hit or a miss
+     */
+    private static void assertGet(PagedNodeStore store, int id, boolean hit)
+    {
+	long hits = store.hits();
+	long misses = store.misses();
+	Node n = store.get(id);
+	assertEquals("Id of node " + id, 100 + id, n.ids[0]);
+	assertEquals("Entries of node " + id, 1, n.entryCount);
+	assertEquals((hit ? "Hit" : "Miss") + " reading node " + id, hits + (hit ? 1 : 0),
+		     store.hits());
+	assertEquals((hit ? "Hit" : "Miss") + " reading node " + id, misses + (hit ? 0 : 1),
+		     store.misses());
+    }
+
+    /**
+     * @return tree with Storage Disk and the given number of pages in its
+     *         pool, holding the same random entries as every other tree made
+     *         here
+     */
+    private static RTree diskTree(String poolPages)
+    {
+	Properties p = new Properties();
+	p.setProperty("MinNodeEntries", "3");
+	p.setProperty("MaxNodeEntries", "8");
+	p.setProperty("Storage", "Disk");
+	p.setProperty("BufferPoolPages", poolPages);
+	RTree tree = new RTree();
+	tree.init(p);
+	Random r = new Random(1);
+	for (int i = 0; i < ENTRIES; i++)
+	{
+	    double x = r.nextDouble() * 99;
+	    double y = r.nextDouble() * 99;
+	    tree.add(new Envelope(x, x + 1, y, y + 1), i);
+	}
+	return tree;
+    }
+}
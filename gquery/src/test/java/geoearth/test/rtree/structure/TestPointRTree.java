@@ -0,0 +1,210 @@
+package geoearth.rtree.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import geoearth.rtree.IntProcedure;
+import geoearth.rtree.SpatialIndex;
+import geoearth.rtree.index.SimpleIndex;
+import gnu.trove.TIntArrayList;
+
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Behaviour of the PointRTree, checked against the SimpleIndex
+ */
+public class TestPointRTree
+{
+    /**
+     * intersects(), contains() and nearest() find the same points as the
+     * SimpleIndex, after points are added and deleted
+     */
+    @Test
+    public void testMatchesSimpleIndex()
+    {
+	Properties p = new Properties();
+	p.setProperty("MinNodeEntries", "3");
+	p.setProperty("MaxNodeEntries", "8");
+	PointRTree tree = new PointRTree();
+	tree.init(p);
+	SimpleIndex reference = new SimpleIndex();
+	reference.init(null);
+
+	Random r = new Random(1);
+	double[] x = new double[2000];
+	double[] y = new double[x.length];
+	for (int i = 0; i < x.length; i++)
+	{
+	    x[i] = r.nextDouble() * 100;
+	    y[i] = r.nextDouble() * 100;
+	    tree.add(x[i], y[i], i);
+	    reference.add(new Envelope(x[i], x[i], y[i], y[i]), i);
+	}
+	for (int i = 0; i < x.length; i += 3)
+	{
+	    Envelope point = new Envelope(x[i], x[i], y[i], y[i]);
+	    assertTrue("Delete " + i, tree.delete(point, i));
+	    reference.delete(point, i);
+	}
+
+	assertEquals("Size", reference.size(), tree.size());
+	for (int i = 0; i < 100; i++)
+	{
+	    double qx = r.nextDouble() * 100;
+	    double qy = r.nextDouble() * 100;
+	    Envelope query = new Envelope(qx, qx + 15, qy, qy + 15);
+	    assertEquals("Intersects " + query, intersects(reference, query), intersects(tree,
+											   query));
+	    assertEquals("Contains " + query, contains(reference, query), contains(tree, query));
+	    assertEquals("Nearest to " + qx + ", " + qy, nearest(reference, qx, qy), nearest(tree,
+											     qx, qy));
+	}
+    }
+
+    /**
+     * A query made by the procedure of another query, as in a self-join, does
+     * not disturb the outer query
+     */
+    @Test
+    public void testNestedQueries()
+    {
+	Properties p = new Properties();
+	p.setProperty("MinNodeEntries", "3");
+	p.setProperty("MaxNodeEntries", "8");
+	final PointRTree tree = new PointRTree();
+	tree.init(p);
+
+	Random r = new Random(2);
+	final double[] x = new double[2000];
+	final double[] y = new double[x.length];
+	for (int i = 0; i < x.length; i++)
+	{
+	    x[i] = r.nextDouble() * 100;
+	    y[i] = r.nextDouble() * 100;
+	    tree.add(x[i], y[i], i);
+	}
+
+	// Points within 2 of each point of the query, which include the point
+	Envelope query = new Envelope(20, 60, 20, 60);
+	Collect join = new Collect()
+	{
+	    @Override
+	    public boolean execute(int id)
+	    {
+		Collect inner = new Collect();
+		tree.intersects(x[id] - 2, y[id] - 2, x[id] + 2, y[id] + 2, inner);
+		assertTrue("Join of " + id + " finds itself", inner.ids.contains(id));
+		Collect nearest = new Collect();
+		tree.nearestN(x[id], y[id], 3, nearest, Double.POSITIVE_INFINITY);
+		assertEquals("NearestN of " + id, 3, nearest.ids.size());
+		return super.execute(id);
+	    }
+	};
+	tree.intersects(query, join);
+	join.ids.sort();
+	assertEquals("Nested in intersects()", intersects(tree, query), join.ids);
+    }
+
+    /**
+     * intersects(), nearest() and nearestN() make no more calls once the
+     * procedure returns false
+     */
+    @Test
+    public void testQueriesStopWhenProcedureReturnsFalse()
+    {
+	// Points that all match each query, nearest() finding them all at the
+	// same distance
+	PointRTree tree = new PointRTree();
+	tree.init(new Properties());
+	for (int i = 0; i < 50; i++)
+	{
+	    tree.add(1, 1, i);
+	}
+
+	StopAfter stop = new StopAfter(3);
+	tree.intersects(new Envelope(0, 3, 0, 3), stop);
+	assertEquals("intersects() calls", 3, stop.calls);
+
+	stop = new StopAfter(3);
+	tree.nearest(0, 0, stop, Double.POSITIVE_INFINITY);
+	assertEquals("nearest() calls", 3, stop.calls);
+
+	stop = new StopAfter(3);
+	tree.nearestN(0, 0, 10, stop, Double.POSITIVE_INFINITY);
+	assertEquals("nearestN() calls", 3, stop.calls);
+    }
+
+    /**
+     * Only points can be added
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddEnvelopeWithExtent()
+    {
+	PointRTree tree = new PointRTree();
+	tree.init(new Properties());
+	tree.add(new Envelope(1, 2, 1, 1), 0);
+    }
+
+    private static TIntArrayList intersects(SpatialIndex index, Envelope query)
+    {
+	Collect ids = new Collect();
+	index.intersects(query, ids);
+	ids.ids.sort();
+	return ids.ids;
+    }
+
+    private static TIntArrayList contains(SpatialIndex index, Envelope query)
+    {
+	Collect ids = new Collect();
+	index.contains(query, ids);
+	ids.ids.sort();
+	return ids.ids;
+    }
+
+    private static TIntArrayList nearest(SpatialIndex index, double x, double y)
+    {
+	Collect ids = new Collect();
+	index.nearest(x, y, ids, Double.POSITIVE_INFINITY);
+	ids.ids.sort();
+	return ids.ids;
+    }
+
+    /**
+     * Procedure returning false after the given number of calls
+     */
+    private static class StopAfter implements IntProcedure
+    {
+	private final int limit;
+	private int calls = 0;
+
+	StopAfter(int limit)
+	{
+	    this.limit = limit;
+	}
+
+	public boolean execute(int id)
+	{
+	    calls++;
+	    return calls < limit;
+	}
+    }
+
+    /**
+     * Procedure collecting the ids it is called with
+     */
+    private static class Collect implements IntProcedure
+    {
+	private final TIntArrayList ids = new TIntArrayList();
+
+	public boolean execute(int id)
+	{
+	    ids.add(id);
+	    return true;
+	}
+    }
+}
@@ -0,0 +1,940 @@
+package geoearth.rtree.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import geoearth.rtree.BatchVisitor;
+import geoearth.rtree.IntProcedure;
+import geoearth.rtree.SpatialCursor;
+import geoearth.rtree.SpatialIndex;
+import gnu.trove.TDoubleArrayList;
+import gnu.trove.TIntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ConcurrentModificationException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Behaviour of the RTree queries and changes, checked against a brute force
+ * search of the entries added
+ */
+public class TestRTree
+{
+    private static final int ENTRIES = 2000;
+
+    /**
+     * nearestN() finds the k nearest entries, nearest first, and none further
+     * than maxDistance
+     */
+    @Test
+    public void testNearestN()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(1), ENTRIES);
+	RTree tree = newTree(envs, new Properties());
+
+	Random r = new Random(2);
+	for (int i = 0; i < 100; i++)
+	{
+	    final double x = r.nextDouble() * 100;
+	    final double y = r.nextDouble() * 100;
+	    final int k = 1 + r.nextInt(20);
+	    final double maxDistance = i % 2 == 0 ? Double.POSITIVE_INFINITY : r.nextDouble() * 5;
+
+	    TDoubleArrayList expected = new TDoubleArrayList();
+	    for (int j = 0; j < envs.length; j++)
+	    {
+		double distance = distance(x, y, envs[j]);
+		if (distance <= maxDistance)
+		{
+		    expected.add(distance);
+		}
+	    }
+	    expected.sort();
+
+	    final TDoubleArrayList found = new TDoubleArrayList();
+	    final Envelope[] entries = envs;
+	    tree.nearestN(x, y, k, new IntProcedure()
+	    {
+		public boolean execute(int id)
+		{
+		    found.add(distance(x, y, entries[id]));
+		    return true;
+		}
+	    }, maxDistance);
+
+	    assertEquals("Number found", Math.min(k, expected.size()), found.size());
+	    for (int j = 0; j < found.size(); j++)
+	    {
+		// Entries at the same distance may come in any order, so only the
+		// distances are compared
+		assertEquals("Distance of result " + j, expected.get(j), found.get(j), 0);
+		assertTrue("Within maxDistance", found.get(j) <= maxDistance);
+	    }
+	}
+    }
+
+    /**
+     * A snapshot keeps returning the entries the tree held when it was taken,
+     * after entries are added to and deleted from the tree
+     */
+    @Test
+    public void testSnapshotUnchangedByLaterChanges()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(3), ENTRIES);
+	Properties p = new Properties();
+	p.setProperty("Concurrency", "Snapshot");
+	RTree tree = newTree(envs, p);
+
+	SpatialIndex snapshot = tree.snapshot();
+	Envelope[] queries = randomEnvelopes(new Random(4), 50);
+	TIntArrayList[] before = new TIntArrayList[queries.length];
+	for (int i = 0; i < queries.length; i++)
+	{
+	    before[i] = intersects(snapshot, queries[i]);
+	}
+
+	for (int i = 0; i < ENTRIES; i += 2)
+	{
+	    assertTrue("Delete " + i, tree.delete(envs[i], i));
+	}
+	Envelope[] added = randomEnvelopes(new Random(5), ENTRIES);
+	for (int i = 0; i < added.length; i++)
+	{
+	    tree.add(added[i], ENTRIES + i);
+	}
+
+	assertEquals("Snapshot size", ENTRIES, snapshot.size());
+	assertEquals("Tree size", ENTRIES + ENTRIES / 2, tree.size());
+	for (int i = 0; i < queries.length; i++)
+	{
+	    assertEquals("Snapshot intersects " + queries[i], before[i], intersects(snapshot,
+										    queries[i]));
+	}
+    }
+
+    /**
+     * A snapshot queried and then dropped is collected while the tree it was
+     * taken from lives on and changes
+     */
+    @Test
+    public void testQueriedSnapshotIsCollected() throws InterruptedException
+    {
+	Envelope[] envs = randomEnvelopes(new Random(21), ENTRIES);
+	Properties p = new Properties();
+	p.setProperty("Concurrency", "Snapshot");
+	RTree tree = newTree(envs, p);
+
+	WeakReference<SpatialIndex> snapshot = new WeakReference<SpatialIndex>(tree.snapshot());
+	query(snapshot.get());
+	for (int i = 0; i < ENTRIES; i += 2)
+	{
+	    assertTrue("Delete " + i, tree.delete(envs[i], i));
+	}
+	assertCollected("Snapshot", snapshot);
+	assertEquals("Tree size", ENTRIES / 2, tree.size());
+    }
+
+    /**
+     * intersects(), contains() and nearest() make no more calls once the
+     * procedure returns false
+     */
+    @Test
+    public void testQueriesStopWhenProcedureReturnsFalse()
+    {
+	// Entries that all match each query, nearest() finding them all at the
+	// same distance
+	Envelope[] envs = new Envelope[50];
+	for (int i = 0; i < envs.length; i++)
+	{
+	    envs[i] = new Envelope(1, 2, 1, 2);
+	}
+	RTree tree = newTree(envs, new Properties());
+
+	StopAfter stop = new StopAfter(3);
+	tree.intersects(new Envelope(0, 3, 0, 3), stop);
+	assertEquals("intersects() calls", 3, stop.calls);
+
+	stop = new StopAfter(3);
+	tree.contains(new Envelope(0, 3, 0, 3), stop);
+	assertEquals("contains() calls", 3, stop.calls);
+
+	stop = new StopAfter(3);
+	tree.nearest(0, 0, stop, Double.POSITIVE_INFINITY);
+	assertEquals("nearest() calls", 3, stop.calls);
+    }
+
+    /**
+     * A query made by the procedure of another query, as in a self-join, does
+     * not disturb the outer query, which finds the same entries as when it
+     * runs alone
+     */
+    @Test
+    public void testNestedQueries()
+    {
+	final Envelope[] envs = randomEnvelopes(new Random(13), ENTRIES);
+	final RTree tree = newTree(envs, new Properties());
+	Envelope query = new Envelope(20, 60, 20, 60);
+
+	SelfJoin join = new SelfJoin(tree, envs);
+	tree.intersects(query, join);
+	assertEquals("Nested in intersects()", found(tree, query), join.ids);
+
+	join = new SelfJoin(tree, envs);
+	tree.contains(query, join);
+	Collect alone = new Collect();
+	tree.contains(query, alone);
+	assertEquals("Nested in contains()", alone.ids, join.ids);
+
+	join = new SelfJoin(tree, envs);
+	tree.nearest(50, 50, join, Double.POSITIVE_INFINITY);
+	alone = new Collect();
+	tree.nearest(50, 50, alone, Double.POSITIVE_INFINITY);
+	assertEquals("Nested in nearest()", alone.ids, join.ids);
+
+	join = new SelfJoin(tree, envs);
+	tree.nearestN(50, 50, 100, join, Double.POSITIVE_INFINITY);
+	alone = new Collect();
+	tree.nearestN(50, 50, 100, alone, Double.POSITIVE_INFINITY);
+	assertEquals("Nested in nearestN()", alone.ids, join.ids);
+
+	final TIntArrayList batchIds = new TIntArrayList();
+	tree.intersectsBatch(new Envelope[] { query }, new BatchVisitor()
+	{
+	    public boolean visit(int queryIndex, int id)
+	    {
+		batchIds.add(id);
+		final TIntArrayList inner = new TIntArrayList();
+		tree.intersectsBatch(new Envelope[] { envs[id] }, new BatchVisitor()
+		{
+		    public boolean visit(int innerIndex, int innerId)
+		    {
+			inner.add(innerId);
+			return true;
+		    }
+		});
+		assertEquals("Batch join of " + id, found(tree, envs[id]), inner);
+		return true;
+	    }
+	});
+	assertEquals("Nested in intersectsBatch()", found(tree, query), batchIds);
+    }
+
+    /**
+     * A tree opened from the file written by save() holds the same entries,
+     * and its queries, which read the mapped pages in place, find them in the
+     * same order as the queries of the tree that was saved
+     */
+    @Test
+    public void testSaveOpenRoundTrip() throws IOException
+    {
+	Envelope[] envs = randomEnvelopes(new Random(6), ENTRIES);
+	RTree tree = newTree(envs, new Properties());
+	for (int i = 0; i < ENTRIES; i += 3)
+	{
+	    tree.delete(envs[i], i);
+	}
+
+	File file = File.createTempFile("rtree", ".tree");
+	file.deleteOnExit();
+	tree.save(file);
+	RTree opened = RTree.open(file);
+
+	assertEquals("Size", tree.size(), opened.size());
+	Envelope[] queries = randomEnvelopes(new Random(7), 50);
+	for (int i = 0; i < queries.length; i++)
+	{
+	    Envelope query = queries[i];
+	    query.expandBy(10);
+	    assertEquals("Intersects " + query, found(tree, query), found(opened, query));
+
+	    Collect expected = new Collect();
+	    tree.contains(query, expected);
+	    Collect actual = new Collect();
+	    opened.contains(query, actual);
+	    assertEquals("Contains " + query, expected.ids, actual.ids);
+
+	    double x = query.getMinX();
+	    double y = query.getMinY();
+	    expected = new Collect();
+	    tree.nearest(x, y, expected, 5);
+	    actual = new Collect();
+	    opened.nearest(x, y, actual, 5);
+	    assertEquals("Nearest to " + x + ", " + y, expected.ids, actual.ids);
+
+	    expected = new Collect();
+	    tree.nearestN(x, y, 20, expected, Double.POSITIVE_INFINITY);
+	    actual = new Collect();
+	    opened.nearestN(x, y, 20, actual, Double.POSITIVE_INFINITY);
+	    assertEquals("NearestN of " + x + ", " + y, expected.ids, actual.ids);
+	}
+
+	Envelope query = new Envelope(20, 60, 20, 60);
+	SelfJoin join = new SelfJoin(opened, envs);
+	opened.intersects(query, join);
+	assertEquals("Nested in intersects()", found(tree, query), join.ids);
+
+	StopAfter stop = new StopAfter(3);
+	opened.contains(query, stop);
+	assertEquals("contains() calls", 3, stop.calls);
+	opened.close();
+    }
+
+    /**
+     * A tree opened from a file is read-only
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAddToOpenedTree() throws IOException
+    {
+	RTree tree = newTree(randomEnvelopes(new Random(8), 100), new Properties());
+	File file = File.createTempFile("rtree", ".tree");
+	file.deleteOnExit();
+	tree.save(file);
+
+	RTree.open(file).add(new Envelope(1, 2, 1, 2), 100);
+    }
+
+    /**
+     * addAll() to an empty tree, which packs the entries, and then to a tree
+     * that is not empty, which inserts them, gives the same entries as add()
+     */
+    @Test
+    public void testAddAllMatchesAdd()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(9), ENTRIES);
+	RTree one = newTree(envs, new Properties());
+
+	int half = ENTRIES / 2;
+	Envelope[] first = new Envelope[half];
+	int[] firstIds = new int[half];
+	double[] second = new double[4 * (ENTRIES - half)];
+	int[] secondIds = new int[ENTRIES - half];
+	for (int i = 0; i < ENTRIES; i++)
+	{
+	    if (i < half)
+	    {
+		first[i] = envs[i];
+		firstIds[i] = i;
+	    }
+	    else
+	    {
+		int j = i - half;
+		second[4 * j] = envs[i].getMinX();
+		second[4 * j + 1] = envs[i].getMinY();
+		second[4 * j + 2] = envs[i].getMaxX();
+		second[4 * j + 3] = envs[i].getMaxY();
+		secondIds[j] = i;
+	    }
+	}
+	RTree all = newTree(new Envelope[0], new Properties());
+	all.addAll(first, firstIds);
+	all.addAll(second, secondIds, secondIds.length);
+
+	assertEquals("Size", one.size(), all.size());
+	Envelope[] queries = randomEnvelopes(new Random(10), 50);
+	for (int i = 0; i < queries.length; i++)
+	{
+	    assertEquals("Intersects " + queries[i], intersects(one, queries[i]), intersects(all,
+											   queries[i]));
+	}
+	assertEquals("All entries", intersects(one, new Envelope(0, 102, 0, 102)),
+		     intersects(all, new Envelope(0, 102, 0, 102)));
+    }
+
+    /**
+     * intersectsBatch() finds for each query the entries intersects() finds,
+     * in the same order
+     */
+    @Test
+    public void testIntersectsBatchMatchesIntersects()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(11), ENTRIES);
+	RTree tree = newTree(envs, new Properties());
+
+	// Tiles of a map view
+	Envelope[] queries = new Envelope[100];
+	for (int i = 0; i < queries.length; i++)
+	{
+	    double x = (i % 10) * 10;
+	    double y = (i / 10) * 10;
+	    queries[i] = new Envelope(x, x + 10, y, y + 10);
+	}
+
+	final TIntArrayList[] found = new TIntArrayList[queries.length];
+	for (int i = 0; i < queries.length; i++)
+	{
+	    found[i] = new TIntArrayList();
+	}
+	tree.intersectsBatch(queries, new BatchVisitor()
+	{
+	    public boolean visit(int queryIndex, int id)
+	    {
+		found[queryIndex].add(id);
+		return true;
+	    }
+	});
+
+	for (int i = 0; i < queries.length; i++)
+	{
+	    final TIntArrayList expected = new TIntArrayList();
+	    tree.intersects(queries[i], new IntProcedure()
+	    {
+		public boolean execute(int id)
+		{
+		    expected.add(id);
+		    return true;
+		}
+	    });
+	    assertEquals("Query " + i, expected, found[i]);
+	}
+    }
+
+    /**
+     * With QueryThreads more than 1, intersects() finds the same entries in
+     * the same order as with one thread
+     */
+    @Test
+    public void testQueryThreadsMatchOneThread()
+    {
+	// Enough entries for large queries to reach the leaves needed to be
+	// searched in parallel
+	Envelope[] envs = randomEnvelopes(new Random(12), 20000);
+	RTree one = newTree(envs, new Properties());
+	Properties p = new Properties();
+	p.setProperty("QueryThreads", "4");
+	RTree threads = newTree(envs, p);
+
+	Random r = new Random(13);
+	for (int i = 0; i < 20; i++)
+	{
+	    double x = r.nextDouble() * 20;
+	    double y = r.nextDouble() * 20;
+	    double size = 40 + r.nextDouble() * 60;
+	    Envelope query = new Envelope(x, x + size, y, y + size);
+	    assertEquals("Intersects " + query, found(one, query), found(threads, query));
+	}
+    }
+
+    /**
+     * With Concurrency ReadWrite, intersects(), contains() and nearest() run
+     * from several threads at once find the same entries as from one thread
+     */
+    @Test
+    public void testConcurrentReadersMatchOneThread() throws Exception
+    {
+	Envelope[] envs = randomEnvelopes(new Random(22), ENTRIES);
+	Properties p = new Properties();
+	p.setProperty("Concurrency", "ReadWrite");
+	final RTree tree = newTree(envs, p);
+	final Envelope[] queries = randomQueries(new Random(23), 200);
+	TIntArrayList[] expected = queryAll(tree, queries);
+
+	ExecutorService readers = Executors.newFixedThreadPool(4);
+	try
+	{
+	    Future<?>[] results = new Future<?>[8];
+	    for (int i = 0; i < results.length; i++)
+	    {
+		results[i] = readers.submit(new Callable<TIntArrayList[]>()
+		{
+		    public TIntArrayList[] call()
+		    {
+			return queryAll(tree, queries);
+		    }
+		});
+	    }
+	    for (int i = 0; i < results.length; i++)
+	    {
+		assertResults("Reader " + i, expected, (TIntArrayList[]) results[i].get());
+	    }
+	}
+	finally
+	{
+	    readers.shutdown();
+	}
+    }
+
+    /**
+     * With Concurrency ReadWrite, queries run over and over while another
+     * thread adds and deletes entries among those queried find the same
+     * entries as with no writer, once the writer's are left out, and all the
+     * changes are made
+     */
+    @Test
+    public void testReadersAlongsideWriter() throws Exception
+    {
+	Envelope[] envs = randomEnvelopes(new Random(24), ENTRIES);
+	Properties p = new Properties();
+	p.setProperty("Concurrency", "ReadWrite");
+	final RTree tree = newTree(envs, p);
+	final Envelope[] queries = randomQueries(new Random(25), 50);
+	final TIntArrayList[] expected = queryAll(tree, queries);
+	final Envelope[] added = randomEnvelopes(new Random(26), 4 * ENTRIES);
+	final AtomicBoolean writing = new AtomicBoolean(true);
+
+	ExecutorService threads = Executors.newFixedThreadPool(4);
+	try
+	{
+	    Future<?> writer = threads.submit(new Callable<Object>()
+	    {
+		public Object call()
+		{
+		    try
+		    {
+			for (int i = 0; i < added.length; i++)
+			{
+			    tree.add(added[i], ENTRIES + i);
+			    if (i % 2 == 1)
+			    {
+				assertTrue("Delete " + (ENTRIES + i - 1),
+					   tree.delete(added[i - 1], ENTRIES + i - 1));
+			    }
+			}
+		    }
+		    finally
+		    {
+			writing.set(false);
+		    }
+		    return null;
+		}
+	    });
+
+	    Future<?>[] readers = new Future<?>[3];
+	    for (int i = 0; i < readers.length; i++)
+	    {
+		final String name = "Reader " + i;
+		readers[i] = threads.submit(new Callable<Object>()
+		{
+		    public Object call()
+		    {
+			do
+			{
+			    TIntArrayList[] results = queryAll(tree, queries);
+			    for (int j = 0; j < results.length; j++)
+			    {
+				removeAdded(results[j]);
+				// An entry of the writer nearer than those
+				// expected leaves none of them
+				if (j % 3 == 2 && results[j].isEmpty())
+				{
+				    results[j] = expected[j];
+				}
+			    }
+			    assertResults(name, expected, results);
+			}
+			while (writing.get());
+			return null;
+		    }
+		});
+	    }
+	    writer.get();
+	    for (int i = 0; i < readers.length; i++)
+	    {
+		readers[i].get();
+	    }
+	}
+	finally
+	{
+	    threads.shutdown();
+	}
+	assertEquals("Tree size", ENTRIES + added.length / 2, tree.size());
+	assertEquals("Tree entries", ENTRIES + added.length / 2,
+		     intersects(tree, new Envelope(0, 102, 0, 102)).size());
+    }
+
+    /**
+     * A tree queried on this thread and on its query threads is collected
+     * once it is dropped, as the query state kept for each thread does not
+     * refer to the tree
+     */
+    @Test
+    public void testQueriedTreeIsCollected() throws InterruptedException
+    {
+	Envelope[] envs = randomEnvelopes(new Random(20), 20000);
+	Properties p = new Properties();
+	p.setProperty("QueryThreads", "4");
+	WeakReference<RTree> tree = new WeakReference<RTree>(newTree(envs, p));
+	query(tree.get());
+	assertCollected("Tree", tree);
+    }
+
+    /**
+     * countIntersects() and countContains() return the number of entries
+     * intersects() and contains() find
+     */
+    @Test
+    public void testCountsMatchQueries()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(14), ENTRIES);
+	RTree tree = newTree(envs, new Properties());
+
+	Random r = new Random(15);
+	for (int i = 0; i < 100; i++)
+	{
+	    double x = r.nextDouble() * 100;
+	    double y = r.nextDouble() * 100;
+	    double size = r.nextDouble() * (i % 10 == 0 ? 100 : 10);
+	    Envelope query = new Envelope(x, x + size, y, y + size);
+
+	    final int[] contained = new int[1];
+	    tree.contains(query, new IntProcedure()
+	    {
+		public boolean execute(int id)
+		{
+		    contained[0]++;
+		    return true;
+		}
+	    });
+	    assertEquals("countIntersects " + query, found(tree, query).size(), tree
+		    .countIntersects(query));
+	    assertEquals("countContains " + query, contained[0], tree.countContains(query));
+	}
+    }
+
+    /**
+     * Paging through intersectsCursor() with a small buffer returns the
+     * entries intersects() finds, in the same order
+     */
+    @Test
+    public void testIntersectsCursorPaging()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(16), ENTRIES);
+	RTree tree = newTree(envs, new Properties());
+
+	Envelope query = new Envelope(10, 60, 20, 70);
+	SpatialCursor cursor = tree.intersectsCursor(query);
+	TIntArrayList paged = new TIntArrayList();
+	int[] buf = new int[7];
+	int count;
+	do
+	{
+	    count = cursor.nextBatch(buf);
+	    for (int i = 0; i < count; i++)
+	    {
+		paged.add(buf[i]);
+	    }
+	}
+	while (count == buf.length);
+
+	assertEquals("After the last page", 0, cursor.nextBatch(buf));
+	assertEquals("Paged results", found(tree, query), paged);
+    }
+
+    /**
+     * A cursor throws ConcurrentModificationException once the tree changes
+     */
+    @Test(expected = ConcurrentModificationException.class)
+    public void testIntersectsCursorAfterAdd()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(17), ENTRIES);
+	RTree tree = newTree(envs, new Properties());
+
+	SpatialCursor cursor = tree.intersectsCursor(new Envelope(0, 100, 0, 100));
+	int[] buf = new int[7];
+	assertEquals("First page", buf.length, cursor.nextBatch(buf));
+	tree.add(new Envelope(1, 2, 1, 2), ENTRIES);
+	cursor.nextBatch(buf);
+    }
+
+    /**
+     * delete(int) removes the entry with the id, and only that entry
+     */
+    @Test
+    public void testDeleteById()
+    {
+	Envelope[] envs = randomEnvelopes(new Random(18), ENTRIES);
+	Properties p = new Properties();
+	p.setProperty("IdIndex", "true");
+	RTree tree = newTree(envs, p);
+	RTree reference = newTree(envs, new Properties());
+
+	for (int i = 0; i < ENTRIES; i += 2)
+	{
+	    assertTrue("Delete " + i, tree.delete(i));
+	    reference.delete(envs[i], i);
+	}
+	assertFalse("Delete deleted entry", tree.delete(0));
+	assertFalse("Delete unknown id", tree.delete(ENTRIES));
+
+	assertEquals("Size", reference.size(), tree.size());
+	Envelope[] queries = randomEnvelopes(new Random(19), 50);
+	for (int i = 0; i < queries.length; i++)
+	{
+	    assertEquals("Intersects " + queries[i], intersects(reference, queries[i]),
+			 intersects(tree, queries[i]));
+	}
+	assertEquals("All entries", intersects(reference, new Envelope(0, 102, 0, 102)),
+		     intersects(tree, new Envelope(0, 102, 0, 102)));
+    }
+
+    /**
+     * delete(int) needs the IdIndex property
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testDeleteByIdWithoutIdIndex()
+    {
+	RTree tree = newTree(randomEnvelopes(new Random(20), 100), new Properties());
+	tree.delete(0);
+    }
+
+    /**
+     * Procedure returning false after the given number of calls
+     */
+    private static class StopAfter implements IntProcedure
+    {
+	private final int limit;
+	private int calls = 0;
+
+	StopAfter(int limit)
+	{
+	    this.limit = limit;
+	}
+
+	public boolean execute(int id)
+	{
+	    calls++;
+	    return calls < limit;
+	}
+    }
+
+    /**
+     * Procedure recording the ids it is called with
+     */
+    private static class Collect implements IntProcedure
+    {
+	final TIntArrayList ids = new TIntArrayList();
+
+	public boolean execute(int id)
+	{
+	    ids.add(id);
+	    return true;
+	}
+    }
+
+    /**
+     * Procedure recording the ids it is called with, that queries the tree
+     * again for each entry found and checks the nested results
+     */
+    private static class SelfJoin extends Collect
+    {
+	private final RTree tree;
+	private final Envelope[] envs;
+
+	SelfJoin(RTree tree, Envelope[] envs)
+	{
+	    this.tree = tree;
+	    this.envs = envs;
+	}
+
+	@Override
+	public boolean execute(int id)
+	{
+	    Envelope env = envs[id];
+	    TIntArrayList inner = found(tree, env);
+	    assertTrue("Join of " + id + " finds itself", inner.contains(id));
+	    assertEquals("Count of " + id, inner.size(), tree.countIntersects(env));
+
+	    Collect contained = new Collect();
+	    tree.contains(env, contained);
+	    assertTrue("Contained by " + id, contained.ids.contains(id));
+
+	    double x = (env.getMinX() + env.getMaxX()) / 2;
+	    double y = (env.getMinY() + env.getMaxY()) / 2;
+	    Collect nearest = new Collect();
+	    tree.nearest(x, y, nearest, 0);
+	    assertTrue("Nearest to " + id, nearest.ids.contains(id));
+	    Collect nearestN = new Collect();
+	    tree.nearestN(x, y, 3, nearestN, Double.POSITIVE_INFINITY);
+	    assertEquals("NearestN of " + id, 3, nearestN.ids.size());
+	    return super.execute(id);
+	}
+    }
+
+    /**
+     * Run each kind of query on the index, so that the threads running them
+     * hold query state
+     */
+    private static void query(SpatialIndex index)
+    {
+	Envelope all = new Envelope(0, 100, 0, 100);
+	intersects(index, all);
+	index.contains(all, new Collect());
+	index.nearest(50, 50, new Collect(), Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @return ids found by intersects(), contains() and nearest() for each
+     *         query in turn, each list sorted
+     */
+    private static TIntArrayList[] queryAll(SpatialIndex index, Envelope[] queries)
+    {
+	TIntArrayList[] results = new TIntArrayList[queries.length * 3];
+	for (int i = 0; i < queries.length; i++)
+	{
+	    Envelope query = queries[i];
+	    results[3 * i] = intersects(index, query);
+
+	    Collect contained = new Collect();
+	    index.contains(query, contained);
+	    contained.ids.sort();
+	    results[3 * i + 1] = contained.ids;
+
+	    Collect nearest = new Collect();
+	    index.nearest(query.getMinX(), query.getMinY(), nearest, Double.POSITIVE_INFINITY);
+	    nearest.ids.sort();
+	    results[3 * i + 2] = nearest.ids;
+	}
+	return results;
+    }
+
+    /**
+     * Remove the ids of the entries added after the first ENTRIES
+     */
+    private static void removeAdded(TIntArrayList ids)
+    {
+	for (int i = ids.size() - 1; i >= 0; i--)
+	{
+	    if (ids.get(i) >= ENTRIES)
+	    {
+		ids.remove(i);
+	    }
+	}
+    }
+
+    /**
+     * Check the results of queryAll() against those expected
+     */
+    private static void assertResults(String message, TIntArrayList[] expected,
+	    TIntArrayList[] actual)
+    {
+	String[] kinds = { "intersects", "contains", "nearest" };
+	for (int i = 0; i < expected.length; i++)
+	{
+	    assertEquals(message + ", query " + i / 3 + ", " + kinds[i % 3], expected[i],
+			 actual[i]);
+	}
+    }
+
+    /**
+     * Fail unless the referent is collected once garbage collection has been
+     * asked for a few times
+     */
+    private static void assertCollected(String message, WeakReference<?> ref)
+	    throws InterruptedException
+    {
+	for (int i = 0; i < 20 && ref.get() != null; i++)
+	{
+	    System.gc();
+	    Thread.sleep(50);
+	}
+	assertNull(message + " not collected", ref.get());
+    }
+
+    /**
+     * @return tree of small node size holding the given envelopes, with their
+     *         index in the array as id
+     */
+    private static RTree newTree(Envelope[] envs, Properties p)
+    {
+	p.setProperty("MinNodeEntries", "3");
+	p.setProperty("MaxNodeEntries", "8");
+	RTree tree = new RTree();
+	tree.init(p);
+	for (int i = 0; i < envs.length; i++)
+	{
+	    tree.add(envs[i], i);
+	}
+	return tree;
+    }
+
+    /**
+     * @return small random envelopes in the square from (0, 0) to (100, 100)
+     */
+    private static Envelope[] randomEnvelopes(Random r, int count)
+    {
+	Envelope[] envs = new Envelope[count];
+	for (int i = 0; i < count; i++)
+	{
+	    double x = r.nextDouble() * 100;
+	    double y = r.nextDouble() * 100;
+	    envs[i] = new Envelope(x, x + r.nextDouble() * 2, y, y + r.nextDouble() * 2);
+	}
+	return envs;
+    }
+
+    /**
+     * @return query envelopes from 5 to 15 wide in the square from (0, 0) to
+     *         (100, 100), large enough to contain some entries
+     */
+    private static Envelope[] randomQueries(Random r, int count)
+    {
+	Envelope[] queries = new Envelope[count];
+	for (int i = 0; i < count; i++)
+	{
+	    double x = r.nextDouble() * 100;
+	    double y = r.nextDouble() * 100;
+	    double size = 5 + r.nextDouble() * 10;
+	    queries[i] = new Envelope(x, x + size, y, y + size);
+	}
+	return queries;
+    }
+
+    /**
+     * @return ids of the entries of the tree intersecting the query, in the
+     *         order intersects() finds them
+     */
+    private static TIntArrayList found(RTree tree, Envelope query)
+    {
+	final TIntArrayList ids = new TIntArrayList();
+	tree.intersects(query, new IntProcedure()
+	{
+	    public boolean execute(int id)
+	    {
+		ids.add(id);
+		return true;
+	    }
+	});
+	return ids;
+    }
+
+    /**
+     * @return sorted ids of the entries of the index intersecting the query
+     */
+    private static TIntArrayList intersects(SpatialIndex index, Envelope query)
+    {
+	final TIntArrayList ids = new TIntArrayList();
+	index.intersects(query, new IntProcedure()
+	{
+	    public boolean execute(int id)
+	    {
+		ids.add(id);
+		return true;
+	    }
+	});
+	ids.sort();
+	return ids;
+    }
+
+    /**
+     * @return distance from the point to the nearest point of the envelope
+     */
+    private static double distance(double x, double y, Envelope env)
+    {
+	double dx = Math.max(0, Math.max(env.getMinX() - x, x - env.getMaxX()));
+	double dy = Math.max(0, Math.max(env.getMinY() - y, y - env.getMaxY()));
+	return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,321 @@
+package geoearth.rtree.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import geoearth.rtree.IntProcedure;
+import geoearth.rtree.SpatialIndex;
+import geoearth.rtree.index.SimpleIndex;
+import gnu.trove.TIntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Recovery of an RTree from its LogFile: a tree initialised again with the
+ * same properties must hold the same entries as the tree that wrote the log.
+ */
+public class TestRTreeRecovery
+{
+    // Number of bytes of the log header and of a log record
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 41;
+
+    /**
+     * Every change is on disk when add() or delete() returns
+     */
+    @Test
+    public void testRecoverGroupCommitOne() throws IOException
+    {
+	File log = tempLog();
+	Properties p = logProperties(log, "1");
+
+	RTree tree = new RTree();
+	tree.init(p);
+	SimpleIndex reference = new SimpleIndex();
+	reference.init(null);
+	change(new Random(1), 0, 1050, tree, reference);
+	tree.close();
+
+	RTree recovered = new RTree();
+	recovered.init(p);
+	assertSameEntries(reference, recovered);
+	recovered.close();
+    }
+
+    /**
+     * Changes held back by LogGroupCommit are on disk once sync() returns
+     */
+    @Test
+    public void testRecoverGroupCommitSync() throws IOException
+    {
+	File log = tempLog();
+	Properties p = logProperties(log, "64");
+
+	RTree tree = new RTree();
+	tree.init(p);
+	SimpleIndex reference = new SimpleIndex();
+	reference.init(null);
+	change(new Random(2), 0, 1050, tree, reference);
+	tree.sync();
+	// The 50 changes since the last checkpoint are in the log
+	assertEquals("Log length", HEADER_BYTES + 50 * RECORD_BYTES, log.length());
+	tree.close();
+
+	RTree recovered = new RTree();
+	recovered.init(p);
+	assertSameEntries(reference, recovered);
+	recovered.close();
+    }
+
+    /**
+     * Changes held back by LogGroupCommit are on disk once close() returns
+     */
+    @Test
+    public void testCloseSyncsLog() throws IOException
+    {
+	File log = tempLog();
+	Properties p = logProperties(log, "64");
+
+	RTree tree = new RTree();
+	tree.init(p);
+	SimpleIndex reference = new SimpleIndex();
+	reference.init(null);
+	change(new Random(7), 0, 30, tree, reference);
+	assertEquals("Log length before close", HEADER_BYTES, log.length());
+	tree.close();
+	assertEquals("Log length after close", HEADER_BYTES + 30 * RECORD_BYTES, log.length());
+
+	RTree recovered = new RTree();
+	recovered.init(p);
+	assertSameEntries(reference, recovered);
+	recovered.close();
+    }
+
+    /**
+     * A record cut short by a crash is discarded, and the records and the
+     * checkpoint before it are recovered
+     */
+    @Test
+    public void testRecoverTruncatedLog() throws IOException
+    {
+	File log = tempLog();
+	Properties p = logProperties(log, "1");
+
+	RTree tree = new RTree();
+	tree.init(p);
+	SimpleIndex reference = new SimpleIndex();
+	reference.init(null);
+	Random r = new Random(3);
+	// 1049 changes, so that the last checkpoint is followed by 49 records
+	change(r, 0, 1049, tree, reference);
+	// The last change is lost
+	change(r, 1049, 1, tree, new SimpleIndex());
+	tree.close();
+
+	RandomAccessFile file = new RandomAccessFile(log, "rw");
+	try
+	{
+	    assertTrue("Log holds records", file.length() > RECORD_BYTES);
+	    file.setLength(file.length() - RECORD_BYTES / 2);
+	}
+	finally
+	{
+	    file.close();
+	}
+
+	RTree recovered = new RTree();
+	recovered.init(p);
+	assertSameEntries(reference, recovered);
+	recovered.close();
+    }
+
+    /**
+     * Records replayed on recovery count towards the next checkpoint, so a
+     * process that fails before CheckpointRecords new changes still empties
+     * the log
+     */
+    @Test
+    public void testRecoverTwiceCheckpoints() throws IOException
+    {
+	File log = tempLog();
+	Properties p = logProperties(log, "1");
+
+	RTree tree = new RTree();
+	tree.init(p);
+	SimpleIndex reference = new SimpleIndex();
+	reference.init(null);
+	Random r = new Random(5);
+	change(r, 0, 60, tree, reference);
+	tree.close();
+
+	RTree recovered = new RTree();
+	recovered.init(p);
+	assertSameEntries(reference, recovered);
+	// 60 replayed and 40 new changes make 100, so a checkpoint is written
+	// and the log then holds the last 20 changes
+	change(r, 60, 60, recovered, reference);
+	assertEquals("Log length", HEADER_BYTES + 20 * RECORD_BYTES, log.length());
+	recovered.close();
+
+	RTree recoveredAgain = new RTree();
+	recoveredAgain.init(p);
+	assertSameEntries(reference, recoveredAgain);
+	assertEquals("Log length", HEADER_BYTES + 20 * RECORD_BYTES, log.length());
+	recoveredAgain.close();
+    }
+
+    /**
+     * Nodes emptied by deletes are freed, and are not written to a checkpoint
+     * and restored by recovery as live nodes
+     */
+    @Test
+    public void testRecoverAfterDeletesFreesNodes() throws IOException
+    {
+	File log = tempLog();
+	Properties p = logProperties(log, "1");
+
+	RTree tree = new RTree();
+	tree.init(p);
+	Random r = new Random(6);
+	List<Envelope> envs = new ArrayList<Envelope>();
+	for (int id = 0; id < 500; id++)
+	{
+	    double x = r.nextDouble() * 100;
+	    double y = r.nextDouble() * 100;
+	    Envelope env = new Envelope(x, x + 1, y, y + 1);
+	    tree.add(env, id);
+	    envs.add(env);
+	}
+	for (int id = 0; id < 500; id++)
+	{
+	    assertTrue("Delete " + id, tree.delete(envs.get(id), id));
+	}
+	assertEquals("Nodes after deletes", 1, nodeCount(tree, 500));
+	tree.checkpoint();
+	tree.close();
+
+	RTree recovered = new RTree();
+	recovered.init(p);
+	assertEquals("Size", 0, recovered.size());
+	assertEquals("Nodes after recovery", 1, nodeCount(recovered, 500));
+	recovered.close();
+    }
+
+    /**
+     * @return number of nodes of the tree with ids below the given limit
+     */
+    private static int nodeCount(RTree tree, int idLimit)
+    {
+	int count = 0;
+	for (int i = 0; i < idLimit; i++)
+	{
+	    if (tree.getNode(i) != null)
+	    {
+		count++;
+	    }
+	}
+	return count;
+    }
+
+    /**
+     * @return name of a log file that does not exist yet
+     */
+    private static File tempLog() throws IOException
+    {
+	File log = File.createTempFile("rtree", ".log");
+	log.delete();
+	log.deleteOnExit();
+	new File(log.getPath() + ".checkpoint").deleteOnExit();
+	return log;
+    }
+
+    /**
+     * @return properties of a small tree logging to the given file, with a
+     *         checkpoint every 100 changes
+     */
+    private static Properties logProperties(File log, String groupCommit)
+    {
+	Properties p = new Properties();
+	p.setProperty("MinNodeEntries", "3");
+	p.setProperty("MaxNodeEntries", "6");
+	p.setProperty("LogFile", log.getPath());
+	p.setProperty("CheckpointRecords", "100");
+	p.setProperty("LogGroupCommit", groupCommit);
+	return p;
+    }
+
+    /**
+     * Make the same random adds and deletes to both indexes. Added entries
+     * get ids from firstId on, as SimpleIndex holds one entry per id.
+     */
+    private static void change(Random r, int firstId, int count, SpatialIndex tree,
+	    SimpleIndex reference)
+    {
+	List<Envelope> envs = new ArrayList<Envelope>();
+	TIntArrayList ids = new TIntArrayList();
+	for (int i = 0; i < count; i++)
+	{
+	    if (envs.isEmpty() || r.nextInt(3) > 0)
+	    {
+		double x = r.nextDouble() * 100;
+		double y = r.nextDouble() * 100;
+		Envelope env = new Envelope(x, x + r.nextDouble() * 5, y, y + r.nextDouble() * 5);
+		int id = firstId + i;
+		tree.add(env, id);
+		reference.add(env, id);
+		envs.add(env);
+		ids.add(id);
+	    }
+	    else
+	    {
+		int index = r.nextInt(envs.size());
+		Envelope env = envs.remove(index);
+		int id = ids.remove(index);
+		assertTrue("Delete " + id, tree.delete(env, id));
+		reference.delete(env, id);
+	    }
+	}
+    }
+
+    private static void assertSameEntries(SpatialIndex expected, SpatialIndex actual)
+    {
+	assertEquals("Size", expected.size(), actual.size());
+	Random r = new Random(4);
+	for (int i = 0; i < 100; i++)
+	{
+	    double x = r.nextDouble() * 100;
+	    double y = r.nextDouble() * 100;
+	    Envelope query = new Envelope(x, x + 20, y, y + 20);
+	    assertEquals("Intersects " + query, intersects(expected, query), intersects(actual,
+											 query));
+	}
+    }
+
+    /**
+     * @return sorted ids of the entries of the index intersecting the query
+     */
+    private static TIntArrayList intersects(SpatialIndex index, Envelope query)
+    {
+	final TIntArrayList ids = new TIntArrayList();
+	index.intersects(query, new IntProcedure()
+	{
+	    public boolean execute(int id)
+	    {
+		ids.add(id);
+		return true;
+	    }
+	});
+	ids.sort();
+	return ids;
+    }
+}